@@ -0,0 +1,30 @@
+#!/bin/bash
+
+# Build the microbenchmarks into benchmarks.jar, separately from savilerow.jar.
+# Build savilerow.jar first with ../compile.sh.
+#
+# To run all benchmarks on all fixtures:
+# ./benchmarks
+# or a selection, e.g.
+# ./benchmarks -f 1 -i 10 'makeTableShort:langford'
+# ./benchmarks -l lists the benchmark/fixture pairs.
+#
+# To time the translation of every problem instance and compare with a baseline:
+# ./regression -record baseline.tsv
+# ./regression -compare baseline.tsv
+
+if ! [ -f ../savilerow.jar ] ; then
+    echo "../savilerow.jar not found, run ../compile.sh first."
+    exit 1
+fi
+
+rm -rf classes && mkdir classes
+
+javac -O -Xlint -cp ../savilerow.jar:../lib/trove.jar -d classes/ `find src -name "*.java"`
+if [ $? -ne 0 ]; then exit; fi
+
+cd classes/
+
+jar -cfm ../benchmarks.jar ../manifest savilerow/
+
+cd ..
@@ -0,0 +1,273 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.regex.*;
+
+//  Runs the microbenchmarks on the fixtures, in the manner of JMH: each pair
+//  of benchmark and fixture is run in a fresh JVM (a fork) for some warmup
+//  iterations then some measurement iterations, each of which calls the
+//  benchmark repeatedly for a fixed time. The score is the mean time per call,
+//  in microseconds, over the measurement iterations of all forks.
+//
+//  java -jar benchmarks.jar [-wi N] [-i N] [-r ms] [-f N] [-problems dir] [-l] [regexp ...]
+//
+//  Only the benchmark/fixture pairs whose name (e.g. makeTableShort:langford/langford_02_08)
+//  contains a match for one of the regexps are run. 
+
+public final class BenchRunner
+{
+    private static int warmupIterations=5;
+    private static int iterations=5;
+    private static long iterationTime=1000;   //  ms
+    private static int forks=1;
+    private static String problems="experiments/short-tables-cp18/problems";
+    
+    private static volatile long sink;   //  Consumes the results of the benchmarks.
+    
+    public static ArrayList<Benchmark> benchmarks() {
+        ArrayList<Benchmark> b=new ArrayList<Benchmark>();
+        b.add(new MakeTableBenchmark(true));
+        b.add(new MakeTableBenchmark(false));
+        b.add(new SqueezeBenchmark());
+        b.add(new DedupBenchmark());
+        b.add(new SATBenchmark(false));
+        b.add(new SATBenchmark(true));
+        b.add(new MinionBenchmark());
+        return b;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        ArrayList<Pattern> filters=new ArrayList<Pattern>();
+        boolean list=false;
+        for(int i=0; i<args.length; i++) {
+            if(args[i].equals("-wi") && i+1<args.length) {
+                warmupIterations=Integer.parseInt(args[++i]);
+            }
+            else if(args[i].equals("-i") && i+1<args.length) {
+                iterations=Integer.parseInt(args[++i]);
+            }
+            else if(args[i].equals("-r") && i+1<args.length) {
+                iterationTime=Long.parseLong(args[++i]);
+            }
+            else if(args[i].equals("-f") && i+1<args.length) {
+                forks=Integer.parseInt(args[++i]);
+            }
+            else if(args[i].equals("-problems") && i+1<args.length) {
+                problems=args[++i];
+            }
+            else if(args[i].equals("-l")) {
+                list=true;
+            }
+            else if(args[i].startsWith("-")) {
+                System.err.println("Usage: java -jar benchmarks.jar [-wi N] [-i N] [-r ms] [-f N] [-problems dir] [-l] [regexp ...]");
+                System.exit(1);
+            }
+            else {
+                filters.add(Pattern.compile(args[i]));
+            }
+        }
+        if(warmupIterations<0 || iterations<1 || iterationTime<1 || forks<0) {
+            System.err.println("Expected -wi >= 0, -i >= 1, -r >= 1 and -f >= 0.");
+            System.exit(1);
+        }
+        
+        ArrayList<String> names=new ArrayList<String>();
+        ArrayList<Integer> benchidx=new ArrayList<Integer>();
+        ArrayList<Integer> fixtureidx=new ArrayList<Integer>();
+        ArrayList<Benchmark> bs=benchmarks();
+        for(int i=0; i<bs.size(); i++) {
+            for(int j=0; j<Fixture.fixtures.length; j++) {
+                String name=bs.get(i).getName()+":"+Fixture.fixtureName(j);
+                boolean match=filters.isEmpty();
+                for(Pattern p : filters) {
+                    match=match || p.matcher(name).find();
+                }
+                if(match) {
+                    names.add(name);
+                    benchidx.add(i);
+                    fixtureidx.add(j);
+                }
+            }
+        }
+        
+        if(list) {
+            for(String name : names) {
+                System.out.println(name);
+            }
+            return;
+        }
+        
+        ArrayList<double[]> scores=new ArrayList<double[]>();
+        for(int k=0; k<names.size(); k++) {
+            System.out.println("# Benchmark: "+names.get(k));
+            if(forks==0) {
+                scores.add(runHere(bs.get(benchidx.get(k)), fixtureidx.get(k)));
+            }
+            else {
+                double[] s=new double[0];
+                for(int f=1; f<=forks; f++) {
+                    System.out.println("# Fork: "+f+" of "+forks);
+                    s=concat(s, runFork(names.get(k)));
+                }
+                scores.add(s);
+            }
+            System.out.println();
+        }
+        
+        System.out.println(String.format("%-60s %5s %12s %12s %12s  %s", "Benchmark", "Cnt", "Score", "StdDev", "Min", "Units"));
+        for(int k=0; k<names.size(); k++) {
+            double[] s=scores.get(k);
+            System.out.println(String.format("%-60s %5d %12.3f %12.3f %12.3f  us/op", names.get(k), s.length, mean(s), stddev(s), min(s)));
+        }
+    }
+    
+    //  Run a benchmark on a fixture in this JVM. Returns the score of each measurement iteration.
+    private static double[] runHere(Benchmark b, int fixture) throws Exception {
+        long t0=System.currentTimeMillis();
+        Fixture f=Fixture.load(problems, fixture);
+        System.out.println("# Fixture: "+f.name+", "+f.candidates.size()+" candidates, "
+            +f.rows(f.tables, false)+" rows, "+f.rows(f.shortTables, true)+" short rows, loaded in "
+            +(System.currentTimeMillis()-t0)+" ms");
+        if(f.candidates.isEmpty()) {
+            System.out.println("# No candidates, skipped.");
+            return new double[0];
+        }
+        b.setup(f);
+        
+        double[] s=new double[iterations];
+        for(int i=0; i<warmupIterations+iterations; i++) {
+            b.setupIteration();
+            long ops=0;
+            long time=0;
+            long deadline=System.nanoTime()+iterationTime*1000000L;
+            do {
+                long start=System.nanoTime();
+                sink^=b.run();
+                time+=System.nanoTime()-start;
+                ops++;
+            } while(System.nanoTime()<deadline);
+            b.tearDownIteration();
+            
+            double score=time/1e3/ops;
+            if(i<warmupIterations) {
+                System.out.println(String.format("# Warmup Iteration %2d: %.3f us/op", i+1, score));
+            }
+            else {
+                System.out.println(String.format("Iteration %2d: %.3f us/op", i-warmupIterations+1, score));
+                s[i-warmupIterations]=score;
+            }
+        }
+        return s;
+    }
+    
+    //  Run a benchmark in a new JVM with the same arguments and classpath, and collect its scores.
+    private static double[] runFork(String name) throws Exception {
+        ArrayList<String> cmd=javaCommand(BenchRunner.class);
+        cmd.addAll(Arrays.asList("-wi", String.valueOf(warmupIterations), "-i", String.valueOf(iterations),
+            "-r", String.valueOf(iterationTime), "-f", "0", "-problems", problems, "^"+Pattern.quote(name)+"$"));
+        
+        ProcessBuilder pb=new ProcessBuilder(cmd);
+        pb.redirectErrorStream(true);
+        Process p=pb.start();
+        
+        ArrayList<Double> s=new ArrayList<Double>();
+        Pattern it=Pattern.compile("^Iteration +\\d+: ([0-9.]+) us/op$");
+        BufferedReader r=new BufferedReader(new InputStreamReader(p.getInputStream()));
+        String line;
+        boolean table=false;
+        while((line=r.readLine())!=null) {
+            if(line.startsWith("Benchmark ")) {
+                table=true;   //  The child's summary is not repeated.
+            }
+            if(table || line.startsWith("# Benchmark: ") || line.isEmpty()) {
+                continue;
+            }
+            System.out.println(line);
+            Matcher mt=it.matcher(line);
+            if(mt.matches()) {
+                s.add(Double.parseDouble(mt.group(1)));
+            }
+        }
+        if(p.waitFor()!=0) {
+            System.out.println("# Fork failed with exit status "+p.exitValue());
+        }
+        
+        double[] ret=new double[s.size()];
+        for(int i=0; i<ret.length; i++) {
+            ret[i]=s.get(i);
+        }
+        return ret;
+    }
+    
+    //  Command to run the main method of a class in a new JVM with the same JVM arguments and classpath as this one.
+    static ArrayList<String> javaCommand(Class<?> mainclass) {
+        ArrayList<String> cmd=new ArrayList<String>();
+        cmd.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(mainclass.getName());
+        return cmd;
+    }
+    
+    private static double[] concat(double[] a, double[] b) {
+        double[] c=Arrays.copyOf(a, a.length+b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+    
+    private static double mean(double[] s) {
+        double sum=0;
+        for(double x : s) {
+            sum+=x;
+        }
+        return s.length==0 ? Double.NaN : sum/s.length;
+    }
+    
+    private static double stddev(double[] s) {
+        if(s.length<2) {
+            return Double.NaN;
+        }
+        double mu=mean(s);
+        double sum=0;
+        for(double x : s) {
+            sum+=(x-mu)*(x-mu);
+        }
+        return Math.sqrt(sum/(s.length-1));
+    }
+    
+    private static double min(double[] s) {
+        double m=Double.NaN;
+        for(double x : s) {
+            if(Double.isNaN(m) || x<m) {
+                m=x;
+            }
+        }
+        return m;
+    }
+}
@@ -0,0 +1,43 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+//  One microbenchmark, run by BenchRunner on each fixture.
+//  setup is called once per fixture and is not timed, setupIteration and
+//  tearDownIteration are called around each measurement iteration and are not
+//  timed. Only run is timed. It returns a value depending on its result,
+//  which the runner consumes so the work cannot be optimised away.
+
+public abstract class Benchmark
+{
+    public abstract String getName();
+    
+    public abstract void setup(Fixture f) throws Exception;
+    
+    public void setupIteration() throws Exception {
+    }
+    
+    public abstract long run() throws Exception;
+    
+    public void tearDownIteration() throws Exception {
+    }
+}
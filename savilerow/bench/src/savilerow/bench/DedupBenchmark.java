@@ -0,0 +1,61 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+import savilerow.model.*;
+
+import java.util.*;
+
+//  ConstantMatrixStore.newConstantMatrixDedup on copies of the tables of the
+//  fixture. Every call finds the existing matrix, as when a table is made
+//  again for another constraint with the same table.
+
+public class DedupBenchmark extends Benchmark
+{
+    private ConstantMatrixStore cmstore;
+    private ArrayList<ASTNode> copies;
+    
+    public String getName() {
+        return "newConstantMatrixDedup";
+    }
+    
+    public void setup(Fixture f) {
+        cmstore=f.m.cmstore;
+        copies=new ArrayList<ASTNode>();
+        for(ASTNode t : f.tables) {
+            copies.add(PackedMatrix.getTable(f.m, t.getChild(1), false).copy());
+        }
+        for(ASTNode t : f.shortTables) {
+            copies.add(PackedMatrix.getTable(f.m, t.getChild(1), true).copy());
+        }
+    }
+    
+    public long run() {
+        long h=0;
+        for(ASTNode a : copies) {
+            h+=cmstore.newConstantMatrixDedup(a).hashCode();
+        }
+        return h;
+    }
+}
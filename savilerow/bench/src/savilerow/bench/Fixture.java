@@ -0,0 +1,167 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+import savilerow.model.*;
+import savilerow.treetransformer.*;
+import savilerow.eprimeparser.EPrimeReader;
+
+import java.io.*;
+import java.util.*;
+
+//  The constraints that would be tabulated for one of the problems in
+//  experiments/short-tables-cp18/problems. The model is read and instanced up to
+//  the point where TransformMakeTable runs (as with -O1 -make-short-tab 3), then
+//  the bodies of makeTable functions and the top-level constraints chosen by the
+//  heuristic are collected, once for each distinct table key as with the memory
+//  cache. Candidates that cannot be tabulated as both a conventional and a short
+//  table within the heuristic limits are dropped.
+
+public final class Fixture
+{
+    //  Problem directory, model and parameter file of each fixture.
+    public static final String[][] fixtures={
+        {"blackHole", "blackhole.eprime", "PN-1.param"},
+        {"bpmp", "bpmp.eprime", "412.param"},
+        {"coprime", "coprime.eprime", "8.param"},
+        {"hts", "handball7.eprime", "01.param"},
+        {"JPEncoding", "JPEncoding.eprime", "data100.param"},
+        {"knights", "knights.eprime", "knights_6.param"},
+        {"langford", "langford.eprime", "langford_02_08.param"},
+        {"sportsScheduling", "sportsScheduling.eprime", "12-10-1.param"}
+    };
+    
+    public final String name;
+    public final Model m;
+    
+    //  Normalised candidates, and the conventional and short table constraints made from them.
+    public final ArrayList<ASTNode> candidates=new ArrayList<ASTNode>();
+    public final ArrayList<ASTNode> tables=new ArrayList<ASTNode>();
+    public final ArrayList<ASTNode> shortTables=new ArrayList<ASTNode>();
+    
+    private Fixture(String _name, Model _m) {
+        name=_name;
+        m=_m;
+    }
+    
+    public static String fixtureName(int i) {
+        return fixtures[i][0]+"/"+fixtures[i][2].replace(".param", "");
+    }
+    
+    public static Fixture load(String problems, int i) {
+        String eprime=problems+File.separator+fixtures[i][0]+File.separator+fixtures[i][1];
+        String param=problems+File.separator+fixtures[i][0]+File.separator+fixtures[i][2];
+        if(!new File(eprime).exists() || !new File(param).exists()) {
+            CmdFlags.errorExit("Could not find fixture "+fixtureName(i)+" in "+problems);
+        }
+        
+        //  Fixtures may be loaded one after another in the same JVM (with -f 0).
+        CmdFlags.eprimefile=null;
+        CmdFlags.paramfile=null;
+        CmdFlags.parseArguments(new String[]{"-O1", "-make-short-tab", "3", eprime, param});
+        CmdFlags.startTime=System.currentTimeMillis();
+        
+        EPrimeReader reader=new EPrimeReader(eprime, true);
+        Model m=reader.readModel();
+        EPrimeReader paramfile=new EPrimeReader(param, true);
+        ArrayList<ASTNode> parameters=paramfile.readParameterFile(m);
+        
+        ModelContainer mc=new ModelContainer(m, parameters);
+        mc.processPreamble();
+        mc.instancePreFlattening1();
+        m=mc.m;
+        
+        Fixture f=new Fixture(fixtureName(i), m);
+        f.collect();
+        return f;
+    }
+    
+    private void collect() {
+        TransformMakeTable tmt=new TransformMakeTable(m);
+        ArrayList<ASTNode> found=new ArrayList<ASTNode>();
+        
+        ASTNode top=m.constraints.getChild(0);
+        if(top instanceof And) {
+            for(int i=0; i<top.numChildren(); i++) {
+                collectCandidates(tmt, top.getChild(i), true, found);
+            }
+        }
+        else {
+            collectCandidates(tmt, top, true, found);
+        }
+        
+        HashSet<TableKey> keys=new HashSet<TableKey>();
+        for(ASTNode c : found) {
+            ASTNode a=tmt.normalise(c);
+            if(!keys.add(tmt.makeKey(a, true))) {
+                continue;
+            }
+            
+            ASTNode tab=tmt.makeTableLong(a.copy(), TransformMakeTable.HEURISTIC_SUPLIMIT, TransformMakeTable.HEURISTIC_FAILLIMIT);
+            if(tab==null) {
+                continue;
+            }
+            ASTNode shorttab=tmt.makeTableShort(a.copy(), TransformMakeTable.HEURISTIC_SUPLIMIT, TransformMakeTable.HEURISTIC_FAILLIMIT, TransformMakeTable.HEURISTIC_IMPLIEDLIMIT);
+            if(shorttab==null) {
+                continue;
+            }
+            candidates.add(a);
+            tables.add(tab);
+            shortTables.add(shorttab);
+        }
+    }
+    
+    private void collectCandidates(TransformMakeTable tmt, ASTNode a, boolean toplevel, ArrayList<ASTNode> found) {
+        if(a instanceof MakeTable) {
+            found.add(a.getChild(0));
+            return;
+        }
+        if(toplevel && a.isRelation() && !(a instanceof Table) && !(a instanceof TableShort) && !(a instanceof NegativeTable)
+            && !(a instanceof BooleanConstant) && tmt.heuristic(a)) {
+            found.add(a);
+            return;
+        }
+        for(int i=0; i<a.numChildren(); i++) {
+            collectCandidates(tmt, a.getChild(i), false, found);
+        }
+    }
+    
+    //  Number of rows of all the tables (conventional or short) in a list.
+    public long rows(ArrayList<ASTNode> tabs, boolean shorttable) {
+        long rows=0;
+        for(ASTNode t : tabs) {
+            rows+=PackedMatrix.getTable(m, t.getChild(1), shorttable).numRows();
+        }
+        return rows;
+    }
+    
+    //  Interval sets of the domains of the variables of a table constraint.
+    public static ArrayList<ArrayList<Intpair>> domains(ASTNode tab) {
+        ArrayList<ArrayList<Intpair>> doms=new ArrayList<ArrayList<Intpair>>();
+        for(int i=1; i<tab.getChild(0).numChildren(); i++) {
+            doms.add(((Identifier)tab.getChild(0).getChild(i)).getDomain().getIntervalSet());
+        }
+        return doms;
+    }
+}
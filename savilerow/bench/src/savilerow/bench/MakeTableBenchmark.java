@@ -0,0 +1,68 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+import savilerow.model.*;
+import savilerow.treetransformer.*;
+
+import java.util.*;
+
+//  TransformMakeTable.makeTableShort or makeTableLong on each candidate of the
+//  fixture, without the caches. The tables are deduplicated in the constant
+//  matrix store, as when the same candidate is tabulated again.
+
+public class MakeTableBenchmark extends Benchmark
+{
+    private boolean shorttable;
+    private TransformMakeTable tmt;
+    private ArrayList<ASTNode> candidates;
+    
+    public MakeTableBenchmark(boolean _shorttable) {
+        shorttable=_shorttable;
+    }
+    
+    public String getName() {
+        return shorttable ? "makeTableShort" : "makeTableLong";
+    }
+    
+    public void setup(Fixture f) {
+        tmt=new TransformMakeTable(f.m);
+        candidates=f.candidates;
+    }
+    
+    public long run() {
+        long h=0;
+        for(ASTNode a : candidates) {
+            ASTNode tab;
+            if(shorttable) {
+                tab=tmt.makeTableShort(a.copy(), Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+            }
+            else {
+                tab=tmt.makeTableLong(a.copy(), Long.MAX_VALUE, Long.MAX_VALUE);
+            }
+            h+=tab.getChild(1).hashCode();
+        }
+        return h;
+    }
+}
@@ -0,0 +1,62 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.model.*;
+
+import java.io.*;
+import java.util.*;
+
+//  ConstantMatrixStore.toMinion, which writes the tables of the fixture as
+//  TUPLELIST and SHORTTUPLELIST sections. The output is counted and discarded.
+
+public class MinionBenchmark extends Benchmark
+{
+    private ConstantMatrixStore cmstore;
+    
+    public String getName() {
+        return "minionTupleList";
+    }
+    
+    public void setup(Fixture f) {
+        cmstore=f.m.cmstore;
+    }
+    
+    public long run() throws IOException {
+        CountingStream s=new CountingStream();
+        BufferedWriter b=new BufferedWriter(new OutputStreamWriter(s));
+        cmstore.toMinion(b);
+        b.flush();
+        return s.count;
+    }
+    
+    private static final class CountingStream extends OutputStream {
+        long count=0;
+        public void write(int b) {
+            count++;
+        }
+        public void write(byte[] b, int off, int len) {
+            count+=len;
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+//  Translation performance regression runner. Translates every instance
+//  (problems/*/*.eprime with each *.param file in the same directory) for each
+//  -make-short-tab mode and each output (Minion, SAT, FlatZinc for Chuffed),
+//  each in a new JVM (see TranslationRun), without running a solver. Records the
+//  wall time and allocation of each phase, the total, the size of the output
+//  and whether it succeeded.
+//
+//  java -cp benchmarks.jar savilerow.bench.RegressionRunner [options] [regexp ...]
+//
+//  -record file    Write the results to file, to be the baseline for later runs.
+//  -compare file   Compare the results with the baseline in file, and exit with
+//                  status 1 if anything regressed beyond the thresholds.
+//
+//  Only the runs whose name (e.g. langford/langford_02_08:mst3:minion) contains a
+//  match for one of the regexps are done. See usage() for the other options.
+
+public final class RegressionRunner
+{
+    private static String problems="experiments/short-tables-cp18/problems";
+    private static String[] modes={"0", "2", "3", "4"};
+    private static String[] outputs={"minion", "sat", "flatzinc"};
+    private static String flags="-O1";         //  Other Savile Row flags for every run. -O2 would run Minion to filter domains.
+    private static int repeats=1;              //  Take the minimum time and allocation of this many runs.
+    private static long timeout=600;           //  Seconds for each run.
+    
+    private static double timeThreshold=0.25;  //  Relative increase in time that is a regression
+    private static double minTime=100;         //  if the increase is also at least this many ms.
+    private static double allocThreshold=0.10;
+    private static double minAlloc=1<<20;      //  Bytes.
+    private static double sizeThreshold=0.0;   //  Any increase in the output size is a regression by default.
+    
+    private static void usage() {
+        System.err.println("Usage: java -cp benchmarks.jar savilerow.bench.RegressionRunner [options] [regexp ...]");
+        System.err.println("  -problems dir        Problem directories (default "+problems+")");
+        System.err.println("  -modes 0,2,3,4       -make-short-tab modes");
+        System.err.println("  -outputs minion,sat,flatzinc");
+        System.err.println("  -flags \"-O1\"         Other Savile Row flags");
+        System.err.println("  -n N                 Runs of each instance, the minimum is recorded (default 1)");
+        System.err.println("  -timeout s           Time limit for each run (default 600)");
+        System.err.println("  -record file         Write results as the baseline");
+        System.err.println("  -compare file        Compare results with the baseline");
+        System.err.println("  -time-threshold x    Relative time increase that is a regression (default 0.25)");
+        System.err.println("  -min-time ms         Smallest time increase that is a regression (default 100)");
+        System.err.println("  -alloc-threshold x   Relative allocation increase that is a regression (default 0.10)");
+        System.err.println("  -min-alloc bytes     Smallest allocation increase that is a regression (default 1048576)");
+        System.err.println("  -size-threshold x    Relative output size increase that is a regression (default 0)");
+        System.exit(1);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String record=null;
+        String compare=null;
+        ArrayList<Pattern> filters=new ArrayList<Pattern>();
+        try {
+            for(int i=0; i<args.length; i++) {
+                String cur=args[i];
+                if(cur.startsWith("-") && i+1>=args.length) {
+                    usage();
+                }
+                if(cur.equals("-problems")) {
+                    problems=args[++i];
+                }
+                else if(cur.equals("-modes")) {
+                    modes=args[++i].split(",");
+                }
+                else if(cur.equals("-outputs")) {
+                    outputs=args[++i].split(",");
+                }
+                else if(cur.equals("-flags")) {
+                    flags=args[++i];
+                }
+                else if(cur.equals("-n")) {
+                    repeats=Integer.parseInt(args[++i]);
+                }
+                else if(cur.equals("-timeout")) {
+                    timeout=Long.parseLong(args[++i]);
+                }
+                else if(cur.equals("-record")) {
+                    record=args[++i];
+                }
+                else if(cur.equals("-compare")) {
+                    compare=args[++i];
+                }
+                else if(cur.equals("-time-threshold")) {
+                    timeThreshold=Double.parseDouble(args[++i]);
+                }
+                else if(cur.equals("-min-time")) {
+                    minTime=Double.parseDouble(args[++i]);
+                }
+                else if(cur.equals("-alloc-threshold")) {
+                    allocThreshold=Double.parseDouble(args[++i]);
+                }
+                else if(cur.equals("-min-alloc")) {
+                    minAlloc=Double.parseDouble(args[++i]);
+                }
+                else if(cur.equals("-size-threshold")) {
+                    sizeThreshold=Double.parseDouble(args[++i]);
+                }
+                else if(cur.startsWith("-")) {
+                    usage();
+                }
+                else {
+                    filters.add(Pattern.compile(cur));
+                }
+            }
+        }
+        catch(NumberFormatException e) {
+            usage();
+        }
+        for(String o : outputs) {
+            if(!o.equals("minion") && !o.equals("sat") && !o.equals("flatzinc")) {
+                usage();
+            }
+        }
+        if(repeats<1 || timeout<1) {
+            usage();
+        }
+        
+        //  Read the baseline first, so a missing file is found before the runs.
+        LinkedHashMap<String, LinkedHashMap<String, String>> baseline=null;
+        if(compare!=null) {
+            baseline=read(compare);
+        }
+        
+        LinkedHashMap<String, LinkedHashMap<String, String>> results=new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        File[] dirs=new File(problems).listFiles();
+        if(dirs==null) {
+            System.err.println("Could not read problem directory "+problems);
+            System.exit(1);
+        }
+        Arrays.sort(dirs);
+        for(File dir : dirs) {
+            File[] eprimes=dir.listFiles(new FilenameFilter() {
+                public boolean accept(File d, String name) { return name.endsWith(".eprime"); }
+            });
+            File[] params=dir.listFiles(new FilenameFilter() {
+                public boolean accept(File d, String name) { return name.endsWith(".param"); }
+            });
+            if(eprimes==null || params==null) {
+                continue;
+            }
+            Arrays.sort(eprimes);
+            Arrays.sort(params);
+            for(File eprime : eprimes) {
+                for(File param : params) {
+                    for(String mode : modes) {
+                        for(String output : outputs) {
+                            String key=dir.getName()+"/"+(eprimes.length>1 ? eprime.getName()+":" : "")
+                                +param.getName().replace(".param", "")+":mst"+mode+":"+output;
+                            boolean match=filters.isEmpty();
+                            for(Pattern p : filters) {
+                                match=match || p.matcher(key).find();
+                            }
+                            if(!match) {
+                                continue;
+                            }
+                            
+                            LinkedHashMap<String, String> r=null;
+                            for(int i=0; i<repeats; i++) {
+                                r=best(r, translate(eprime, param, mode, output));
+                            }
+                            results.put(key, r);
+                            System.out.println(key+"  "+r.get("status")+"  "+r.get("time.total")+" ms  "
+                                +r.get("alloc.total")+" bytes allocated  "+r.get("output")+" bytes output");
+                        }
+                    }
+                }
+            }
+        }
+        
+        if(record!=null) {
+            write(record, results);
+            System.out.println("Recorded "+results.size()+" runs in "+record);
+        }
+        if(baseline!=null) {
+            if(compare(baseline, results, filters.isEmpty())) {
+                System.exit(1);
+            }
+        }
+    }
+    
+    //  Run one translation in a new JVM and return its metrics. 
+    private static LinkedHashMap<String, String> translate(File eprime, File param, String mode, String output) throws Exception {
+        File tmp=File.createTempFile("savilerow-regression", "");
+        tmp.delete();
+        tmp.mkdir();
+        String out=tmp.getPath()+File.separator+"out";
+        
+        ArrayList<String> cmd=BenchRunner.javaCommand(TranslationRun.class);
+        for(String f : flags.trim().split("\\s+")) {
+            if(!f.isEmpty()) {
+                cmd.add(f);
+            }
+        }
+        cmd.addAll(Arrays.asList("-make-short-tab", mode));
+        if(output.equals("minion")) {
+            cmd.addAll(Arrays.asList("-minion", "-out-minion", out));
+        }
+        else if(output.equals("sat")) {
+            cmd.addAll(Arrays.asList("-sat", "-out-sat", out));
+        }
+        else {
+            cmd.addAll(Arrays.asList("-chuffed", "-out-chuffed", out));
+        }
+        cmd.addAll(Arrays.asList("-out-info", tmp.getPath()+File.separator+"info", 
+            "-out-aux", tmp.getPath()+File.separator+"aux", 
+            "-out-solution", tmp.getPath()+File.separator+"solution",
+            eprime.getPath(), param.getPath()));
+        
+        ProcessBuilder pb=new ProcessBuilder(cmd);
+        pb.redirectErrorStream(true);
+        final Process p=pb.start();
+        
+        //  Read the output in another thread, so the time limit can be enforced.
+        final ArrayList<String> lines=new ArrayList<String>();
+        Thread reader=new Thread() {
+            public void run() {
+                try {
+                    BufferedReader r=new BufferedReader(new InputStreamReader(p.getInputStream()));
+                    String line;
+                    while((line=r.readLine())!=null) {
+                        if(line.startsWith("#PHASE ")) {
+                            synchronized(lines) {
+                                lines.add(line);
+                            }
+                        }
+                    }
+                }
+                catch(IOException e) {
+                }
+            }
+        };
+        reader.start();
+        
+        String status="ok";
+        if(!p.waitFor(timeout, TimeUnit.SECONDS)) {
+            p.destroyForcibly();
+            p.waitFor();
+            status="timeout";
+        }
+        else if(p.exitValue()!=0) {
+            status="failed";
+        }
+        reader.join();
+        
+        LinkedHashMap<String, String> r=new LinkedHashMap<String, String>();
+        r.put("status", status);
+        double time=0;
+        long alloc=0;
+        synchronized(lines) {
+            for(String line : lines) {
+                String[] s=line.split(" ");
+                r.put("time."+s[1], s[2]);
+                r.put("alloc."+s[1], s[3]);
+                time+=Double.parseDouble(s[2]);
+                alloc=(alloc<0 || Long.parseLong(s[3])<0) ? -1 : alloc+Long.parseLong(s[3]);
+            }
+        }
+        r.put("time.total", String.format(Locale.ROOT, "%.1f", time));
+        r.put("alloc.total", String.valueOf(alloc));
+        r.put("output", String.valueOf(new File(out).length()));
+        
+        for(File f : tmp.listFiles()) {
+            f.delete();
+        }
+        tmp.delete();
+        return r;
+    }
+    
+    //  Combine two repeats of a run: the worse status, and the smaller time and allocation of each phase. 
+    private static LinkedHashMap<String, String> best(LinkedHashMap<String, String> a, LinkedHashMap<String, String> b) {
+        if(a==null) {
+            return b;
+        }
+        if(!a.get("status").equals("ok")) {
+            return a;
+        }
+        if(!b.get("status").equals("ok")) {
+            return b;
+        }
+        for(String metric : a.keySet()) {
+            if((metric.startsWith("time.") || metric.startsWith("alloc.")) && b.containsKey(metric) 
+                && Double.parseDouble(b.get(metric))<Double.parseDouble(a.get(metric))) {
+                a.put(metric, b.get(metric));
+            }
+        }
+        return a;
+    }
+    
+    //  Compare results with the baseline, print the differences and return true if anything regressed. 
+    //  If all runs were done, also print the runs in the baseline that are missing from the results. 
+    private static boolean compare(LinkedHashMap<String, LinkedHashMap<String, String>> baseline, LinkedHashMap<String, LinkedHashMap<String, String>> results, boolean all) {
+        int regressions=0;
+        int improvements=0;
+        System.out.println();
+        for(String key : results.keySet()) {
+            LinkedHashMap<String, String> r=results.get(key);
+            LinkedHashMap<String, String> b=baseline.get(key);
+            if(b==null) {
+                System.out.println("NEW         "+key);
+                continue;
+            }
+            if(b.get("status").equals("ok") && !r.get("status").equals("ok")) {
+                System.out.println("REGRESSION  "+key+" status "+b.get("status")+" -> "+r.get("status"));
+                regressions++;
+                continue;
+            }
+            if(!r.get("status").equals("ok")) {
+                continue;
+            }
+            if(!b.get("status").equals("ok")) {
+                System.out.println("IMPROVED    "+key+" status "+b.get("status")+" -> ok");
+                improvements++;
+                continue;
+            }
+            for(String metric : r.keySet()) {
+                if(!b.containsKey(metric) || metric.equals("status")) {
+                    continue;
+                }
+                double x=Double.parseDouble(b.get(metric));
+                double y=Double.parseDouble(r.get(metric));
+                double threshold;
+                double min;
+                if(metric.startsWith("time.")) {
+                    threshold=timeThreshold;
+                    min=minTime;
+                }
+                else if(metric.startsWith("alloc.")) {
+                    if(x<0 || y<0) {
+                        continue;
+                    }
+                    threshold=allocThreshold;
+                    min=minAlloc;
+                }
+                else {
+                    threshold=sizeThreshold;
+                    min=0;
+                }
+                String change=key+" "+metric+" "+b.get(metric)+" -> "+r.get(metric)
+                    +(x>0 ? String.format(Locale.ROOT, " (%+.1f%%)", 100*(y-x)/x) : "");
+                if(y>x*(1+threshold) && y-x>min) {
+                    System.out.println("REGRESSION  "+change);
+                    regressions++;
+                }
+                else if(y<x*(1-threshold) && x-y>min) {
+                    System.out.println("IMPROVED    "+change);
+                    improvements++;
+                }
+            }
+        }
+        for(String key : baseline.keySet()) {
+            if(all && !results.containsKey(key)) {
+                System.out.println("MISSING     "+key);
+            }
+        }
+        System.out.println(regressions+" regressions, "+improvements+" improvements in "+results.size()+" runs.");
+        return regressions>0;
+    }
+    
+    //  The baseline file has a line for each metric of each run: name, metric, value, separated by tabs. 
+    private static void write(String filename, LinkedHashMap<String, LinkedHashMap<String, String>> results) throws IOException {
+        BufferedWriter w=new BufferedWriter(new FileWriter(filename));
+        for(String key : results.keySet()) {
+            for(Map.Entry<String, String> e : results.get(key).entrySet()) {
+                w.write(key+"\t"+e.getKey()+"\t"+e.getValue()+"\n");
+            }
+        }
+        w.close();
+    }
+    
+    private static LinkedHashMap<String, LinkedHashMap<String, String>> read(String filename) throws IOException {
+        LinkedHashMap<String, LinkedHashMap<String, String>> results=new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        BufferedReader r;
+        try {
+            r=new BufferedReader(new FileReader(filename));
+        }
+        catch(FileNotFoundException e) {
+            System.err.println("Could not read baseline "+filename);
+            System.exit(1);
+            return null;
+        }
+        String line;
+        while((line=r.readLine())!=null) {
+            String[] s=line.split("\t");
+            if(s.length!=3) {
+                continue;
+            }
+            if(!results.containsKey(s[0])) {
+                results.put(s[0], new LinkedHashMap<String, String>());
+            }
+            results.get(s[0]).put(s[1], s[2]);
+        }
+        r.close();
+        return results;
+    }
+}
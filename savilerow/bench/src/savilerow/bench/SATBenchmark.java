@@ -0,0 +1,89 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+import savilerow.model.*;
+
+import java.io.*;
+import java.util.*;
+
+//  SAT encoding of the short table constraints of the fixture, with
+//  TableShort.toSATHelper2 or (reified) toSATHelper. The variables of the
+//  tables are direct encoded, and a new DIMACS file is started for each
+//  iteration in a temporary file.
+
+public class SATBenchmark extends Benchmark
+{
+    private boolean reified;
+    private Model m;
+    private ArrayList<ASTNode> shortTables;
+    private HashSet<String> vars;
+    private Sat sat;
+    
+    public SATBenchmark(boolean _reified) {
+        reified=_reified;
+    }
+    
+    public String getName() {
+        return reified ? "tableShortToSATHelper" : "tableShortToSATHelper2";
+    }
+    
+    public void setup(Fixture f) throws IOException {
+        m=f.m;
+        shortTables=f.shortTables;
+        vars=new HashSet<String>();
+        for(ASTNode t : shortTables) {
+            for(int i=1; i<t.getChild(0).numChildren(); i++) {
+                String name=t.getChild(0).getChild(i).toString();
+                vars.add(name);
+                m.global_symbols.markAsDirectSAT(name);
+            }
+        }
+        File satfile=File.createTempFile("savilerow-bench", ".dimacs");
+        satfile.deleteOnExit();
+        CmdFlags.satfile=satfile.getPath();
+    }
+    
+    public void setupIteration() throws IOException {
+        sat=new Sat(m.global_symbols);
+        sat.generateVariableEncoding(vars);
+    }
+    
+    public long run() throws IOException {
+        for(ASTNode t : shortTables) {
+            if(reified) {
+                ((TableShort)t).toSATHelper(sat, sat.createAuxSATVariable());
+            }
+            else {
+                ((TableShort)t).toSATHelper2(sat);
+            }
+        }
+        return sat.createAuxSATVariable();
+    }
+    
+    public void tearDownIteration() throws IOException {
+        sat.finaliseOutput();
+        sat=null;
+    }
+}
@@ -0,0 +1,66 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+
+import java.util.*;
+
+//  TupleCompress.full_squeeze_short_tuples on the conventional tables of the
+//  fixture, i.e. the short tables made by squeezing full assignments.
+
+public class SqueezeBenchmark extends Benchmark
+{
+    private ArrayList<List<long[]>> tuples;
+    private ArrayList<ArrayList<ArrayList<Intpair>>> domains;
+    
+    public String getName() {
+        return "fullSqueezeShortTuples";
+    }
+    
+    public void setup(Fixture f) {
+        tuples=new ArrayList<List<long[]>>();
+        domains=new ArrayList<ArrayList<ArrayList<Intpair>>>();
+        for(ASTNode t : f.tables) {
+            PackedMatrix p=PackedMatrix.getTable(f.m, t.getChild(1), false);
+            ArrayList<long[]> tups=new ArrayList<long[]>(p.numRows());
+            for(int i=0; i<p.numRows(); i++) {
+                long[] tup=new long[p.rowLength(i)];
+                for(int j=0; j<tup.length; j++) {
+                    tup[j]=p.get(i, j);
+                }
+                tups.add(tup);
+            }
+            tuples.add(tups);
+            domains.add(Fixture.domains(t));
+        }
+    }
+    
+    public long run() {
+        long h=0;
+        for(int i=0; i<tuples.size(); i++) {
+            h+=TupleCompress.full_squeeze_short_tuples(tuples.get(i), domains.get(i)).size();
+        }
+        return h;
+    }
+}
@@ -0,0 +1,116 @@
+package savilerow.bench;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+import savilerow.model.*;
+import savilerow.eprimeparser.EPrimeReader;
+
+import java.lang.management.*;
+import java.util.*;
+
+//  Translate one instance as Savile Row does (without dry runs or a time limit),
+//  printing the wall time and the bytes allocated by the translating thread in
+//  each phase on lines starting #PHASE. Run by RegressionRunner in a new JVM for
+//  each instance. The last phase (output) usually ends in System.exit, so it is
+//  reported from a shutdown hook.
+
+public final class TranslationRun
+{
+    private static String phase=null;
+    private static long phaseStart;
+    private static long allocStart;
+    private static long threadid;
+    
+    public static void main(String[] args) {
+        CmdFlags.parseArguments(args);
+        CmdFlags.startTime=System.currentTimeMillis();
+        
+        threadid=Thread.currentThread().getId();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                endPhase();
+            }
+        });
+        
+        startPhase("parse");
+        EPrimeReader reader=new EPrimeReader(CmdFlags.eprimefile, true);
+        Model m=reader.readModel();
+        ArrayList<ASTNode> parameters=new ArrayList<ASTNode>();
+        if(CmdFlags.paramfile!=null) {
+            EPrimeReader paramfile=new EPrimeReader(CmdFlags.paramfile, true);
+            parameters=paramfile.readParameterFile(m);
+        }
+        ModelContainer mc=new ModelContainer(m, parameters);
+        
+        startPhase("preamble");
+        mc.processPreamble();
+        
+        startPhase("preFlattening1");
+        mc.instancePreFlattening1();
+        
+        if(CmdFlags.getUsePropagate()) {
+            startPhase("squashDomains");
+            mc.squashDomains();
+            CmdFlags.currentModel=mc.m;
+        }
+        
+        startPhase("preFlattening2");
+        mc.instancePreFlattening2(false);
+        
+        startPhase("flattening");
+        mc.instanceFlattening(-1, false);
+        
+        startPhase("output");
+        mc.postFlattening(-1, false);
+        
+        endPhase();
+        System.exit(0);
+    }
+    
+    private static synchronized void startPhase(String name) {
+        endPhase();
+        phase=name;
+        allocStart=allocated();
+        phaseStart=System.nanoTime();
+    }
+    
+    private static synchronized void endPhase() {
+        if(phase!=null) {
+            long time=System.nanoTime()-phaseStart;
+            long alloc=allocated();
+            System.out.println("#PHASE "+phase+" "+String.format(Locale.ROOT, "%.1f", time/1e6)+" "+(alloc<0 ? -1 : alloc-allocStart));
+            System.out.flush();
+            phase=null;
+        }
+    }
+    
+    //  Bytes allocated so far by the translating thread, or -1 if the JVM cannot tell.
+    private static long allocated() {
+        ThreadMXBean t=ManagementFactory.getThreadMXBean();
+        if(t instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)t).getThreadAllocatedBytes(threadid);
+        }
+        return -1;
+    }
+}
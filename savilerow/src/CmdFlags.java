@@ -72,6 +72,25 @@ public final class CmdFlags {
     //      if found (and some other conditions) make a table (limit 10,000 tuples)
     //   4 is same but make a tableshort. 
     
+    public static int tabulation_threads=1;   //  Number of threads used to tabulate independent constraints in modes 3 and 4.
+    public static int tabulation_split=0;     //  Split the search for one table over the values of this many variables (0 is off). 
+    public static boolean tabulation_propagate=false;   //  Bounds propagation in the tabulation search. 
+    public static boolean tabulation_cache=false;       //  Keep tables in the on-disk cache (see TableCache) between runs. 
+    public static boolean tabulation_canonical=false;   //  Cache tables under a canonical labelling of the variables, to share them between isomorphic constraints. 
+    public static boolean tabulation_shift=false;       //  Cache tables with each variable shifted to lower bound 0, to share them between constraints that differ by a translation of values. 
+    public static long tabulation_cache_bytes=1L<<30;   //  Budget for the on-disk cache, least recently used entries are evicted (0 is no limit).
+    public static long tabulation_cache_entries=0;      //  Entry budget for the on-disk cache (0 is no limit).
+    public static long tabulation_time=0;         //  Time budget in ms for tabulating one constraint chosen by the heuristic (0 is no limit), see TabulationBudget. 
+    public static long tabulation_total_time=0;   //  Time budget in ms for all tabulation by the heuristic (0 is no limit). 
+    public static long tabulation_bytes=0;        //  Size budget in bytes for one table made by the heuristic (0 is no limit). 
+    public static long tabulation_total_bytes=0;  //  Size budget in bytes for all tables made by the heuristic (0 is no limit). 
+    public static int tabulation_order=0;     //  Variable and value ordering in the short table search: 0 static, 1 smallest initial domain, 2 most occurrences, 3 impact. 
+    public static boolean tabulation_mdd=false;         //  Output tables as MDD constraints for Minion and SAT, see TransformTableToMDD. 
+    public static boolean tabulation_negative=false;    //  Output tables as negative tables when they have fewer conflicts than supports, see TransformTableToNegative, and collect conflicts while tabulating. 
+    public static boolean tabulation_estimate=false;   //  Predict the cost of tabulating each candidate and reject hopeless ones without searching, see TabulationEstimate. 
+    public static long tabulation_cluster=0;     //  Join constraints with overlapping scopes for tabulation in modes 3 and 4, up to this product of domain sizes (0 is off), see TransformMakeTableScopes. 
+    public static boolean tabulation_early=false;      //  Tabulate makeTable functions before unrolling quantifiers, once per distinct body, see TransformMakeTableEarly. 
+    
     public static boolean short_tab_sat_extra=false;   // Extra clauses in short table encoding to make the aux SAT variables functional.
     
     // Optimisations that may change number of solutions.
@@ -916,6 +935,90 @@ public final class CmdFlags {
                 CmdFlags.make_short_tab=Integer.valueOf(arglist.get(0));
                 arglist.remove(0);
             }
+            else if(cur.equals("-tabulation-threads")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-threads expects an integer argument.");
+                tabulation_threads=Integer.parseInt(arglist.get(0));
+                if(tabulation_threads<1) CmdFlags.cmdLineExit("-tabulation-threads expects a positive integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-split")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-split expects an integer argument.");
+                tabulation_split=Integer.parseInt(arglist.get(0));
+                if(tabulation_split<0) CmdFlags.cmdLineExit("-tabulation-split expects a non-negative integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-propagate")) {
+                tabulation_propagate=true;
+            }
+            else if(cur.equals("-tabulation-cache")) {
+                tabulation_cache=true;
+            }
+            else if(cur.equals("-tabulation-canonical")) {
+                tabulation_canonical=true;
+            }
+            else if(cur.equals("-tabulation-shift")) {
+                tabulation_shift=true;
+            }
+            else if(cur.equals("-tabulation-cache-max-bytes")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-cache-max-bytes expects an integer argument.");
+                tabulation_cache_bytes=Long.parseLong(arglist.get(0));
+                if(tabulation_cache_bytes<0) CmdFlags.cmdLineExit("-tabulation-cache-max-bytes expects a non-negative integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-cache-max-entries")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-cache-max-entries expects an integer argument.");
+                tabulation_cache_entries=Long.parseLong(arglist.get(0));
+                if(tabulation_cache_entries<0) CmdFlags.cmdLineExit("-tabulation-cache-max-entries expects a non-negative integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-time-limit")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-time-limit expects an argument in milliseconds.");
+                tabulation_time=Long.parseLong(arglist.get(0));
+                if(tabulation_time<0) CmdFlags.cmdLineExit("-tabulation-time-limit expects a non-negative integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-total-time-limit")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-total-time-limit expects an argument in milliseconds.");
+                tabulation_total_time=Long.parseLong(arglist.get(0));
+                if(tabulation_total_time<0) CmdFlags.cmdLineExit("-tabulation-total-time-limit expects a non-negative integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-memory-limit")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-memory-limit expects an argument in bytes.");
+                tabulation_bytes=Long.parseLong(arglist.get(0));
+                if(tabulation_bytes<0) CmdFlags.cmdLineExit("-tabulation-memory-limit expects a non-negative integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-total-memory-limit")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-total-memory-limit expects an argument in bytes.");
+                tabulation_total_bytes=Long.parseLong(arglist.get(0));
+                if(tabulation_total_bytes<0) CmdFlags.cmdLineExit("-tabulation-total-memory-limit expects a non-negative integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-estimate")) {
+                tabulation_estimate=true;
+            }
+            else if(cur.equals("-tabulation-cluster")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-cluster expects an integer argument.");
+                tabulation_cluster=Long.parseLong(arglist.get(0));
+                if(tabulation_cluster<0) CmdFlags.cmdLineExit("-tabulation-cluster expects a non-negative integer argument.");
+                arglist.remove(0);
+            }
+            else if(cur.equals("-tabulation-early")) {
+                tabulation_early=true;
+            }
+            else if(cur.equals("-tabulation-mdd")) {
+                tabulation_mdd=true;
+            }
+            else if(cur.equals("-tabulation-negative")) {
+                tabulation_negative=true;
+            }
+            else if(cur.equals("-tabulation-order")) {
+                if(arglist.size()==0) CmdFlags.cmdLineExit("-tabulation-order expects an integer argument.");
+                tabulation_order=Integer.parseInt(arglist.get(0));
+                if(tabulation_order<0 || tabulation_order>3) CmdFlags.cmdLineExit("-tabulation-order expects 0 (static), 1 (smallest initial domain), 2 (most occurrences) or 3 (impact).");
+                arglist.remove(0);
+            }
             else if(cur.equals("-short-tab-sat-extra")) {
                 short_tab_sat_extra=true;
             }
@@ -0,0 +1,1237 @@
+package savilerow;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+
+import savilerow.expression.*;
+
+////////////////////////////////////////////////////////////////////////////////
+//
+//   On-disk cache of tables made by tabulation, shared between runs.
+//
+//   Two files in the cache directory:
+//   tables.seg  Append-only segment. A header then a sequence of records, each
+//               holding the key string and the table as packed primitive arrays.
+//   tables.idx  Open-addressing hash table mapping a 64-bit hash of the key to
+//               the offset of its record in the segment. Memory-mapped.
+//
+//   The key is stored in the record so a hash collision is detected by comparing
+//   the keys. Records are never changed once written. If the index is missing
+//   or covers only part of the segment, it is brought up to date by scanning
+//   the segment.
+//
+//   Failed tabulation attempts are also recorded, with the limits that were
+//   exceeded, under the key prefixed with FAIL|||. A later failure with larger
+//   limits appends a new record and the index is pointed at it.
+//
+//   The cache is bounded by a byte budget and an entry budget. Each index slot
+//   holds the time the entry was last hit, and when the cache goes over budget
+//   the least recently hit entries are removed from the index until it is back
+//   under 90% of the budget. Removed and superseded records stay in the segment
+//   until it is compacted: the live records are copied to a new segment, and a
+//   new index is built for it. Compaction is done when the cache is opened and
+//   more than half the segment is garbage, or offline with the main method
+//   below. The segment and index carry a generation number so that an index
+//   belonging to a different segment is never used.
+//
+//   Several processes can share the cache. Writers (adding records, growing
+//   the index, eviction and compaction) hold an exclusive lock on tables.lock,
+//   and first bring their view up to date with any changes made by others.
+//   A record is complete before an index slot points at it, and the hash is
+//   the last part of a slot to be written, so readers need no lock. Readers
+//   do not write either: the time of a hit is kept in memory and written to
+//   the index under the lock by the next write, or by flush at the end of
+//   tabulation. A
+//   concurrent change to the index can only make a lookup miss, and every
+//   record read is checked against the key. The index is only ever replaced
+//   by renaming a complete new file over it, and a process still using the
+//   old files sees a consistent, older version of the cache. After a miss, a
+//   reader checks whether the index has been replaced and if so looks again.
+
+public final class TableCache {
+    
+    public static final File basedir = new File(System.getProperty("user.home") + "/.savilerow/tablecache/" + RepositoryVersion.repositoryVersion);
+    
+    private static final int SEG_MAGIC=0x53525443;    //  SRTC
+    private static final int IDX_MAGIC=0x53524958;    //  SRIX
+    private static final int VERSION=2;
+    
+    private static final int SEG_HEADER=16;     //  magic, version, generation
+    private static final int IDX_HEADER=48;     //  magic, version, capacity, count, indexed length of the segment, live bytes, generation, padding
+    private static final int SLOT=24;           //  hash, offset, last hit time
+    
+    private static final int MIN_CAPACITY=1024;
+    private static final long COMPACT_MIN_GARBAGE=1L<<20;
+    
+    private static final byte REC_TABLE=1;
+    private static final byte REC_FAIL=2;
+    
+    private static TableCache cache=null;
+    
+    private final File segfile;
+    private final File idxfile;
+    private final FileChannel lockch;
+    
+    private RandomAccessFile seg;
+    private FileChannel segch;
+    private long generation;
+    
+    private FileChannel idxch;
+    private MappedByteBuffer idx;
+    private Object idxkey;          //  Identity of the mapped index file, to detect replacement by another process. 
+    private int capacity;
+    private int count;
+    private long livebytes;
+    
+    //  Budget, 0 for no limit. 
+    private long maxbytes=0;
+    private long maxentries=0;
+    
+    //  Statistics for this process. 
+    private long hits=0;
+    private long misses=0;
+    private long bytesread=0;
+    private long byteswritten=0;
+    private long evictions=0;
+    
+    //  Hits not yet written to the index: key and time of the last hit. 
+    private HashMap<String, Long> pendingHits=new HashMap<String, Long>();
+    
+    //  The cache in the default directory, shared by all users in this process.
+    public static synchronized TableCache getCache() {
+        if(cache==null) {
+            cache=new TableCache(basedir);
+            cache.setBudget(CmdFlags.tabulation_cache_bytes, CmdFlags.tabulation_cache_entries);
+        }
+        return cache;
+    }
+    
+    public TableCache(File dir) {
+        if(!dir.exists() && !dir.mkdirs()) {
+            CmdFlags.errorExit("Unable to create table cache directory: " + dir);
+        }
+        segfile=new File(dir, "tables.seg");
+        idxfile=new File(dir, "tables.idx");
+        FileChannel lc=null;
+        try {
+            lc=new RandomAccessFile(new File(dir, "tables.lock"), "rw").getChannel();
+            FileLock lock=lc.lock();
+            try {
+                openSegment();
+                openIndex();
+                if(segch.size()-SEG_HEADER > 2*livebytes+COMPACT_MIN_GARBAGE) {
+                    compactFiles();
+                }
+            }
+            finally {
+                lock.release();
+            }
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to open table cache in " + dir + ": " + e.getMessage());
+        }
+        lockch=lc;
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Public interface
+    
+    //  Returns the table stored for name (a PackedMatrix, or a matrix literal if
+    //  it is empty or contains an empty short support), or null if there is none.
+    public synchronized ASTNode findTable(String name) {
+        try {
+            int slot=findSlotShared(hash(name), name);
+            if(slot<0) {
+                CmdFlags.printlnIfVerbose("Cache miss");
+                misses++;
+                return null;
+            }
+            CmdFlags.printlnIfVerbose("Cache hit");
+            hits++;
+            pendingHits.put(name, System.currentTimeMillis());
+            ByteBuffer rec=readRecord(slotOffset(slot));
+            bytesread+=4+rec.limit();
+            return decodeTable(rec);
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to read table cache: " + e.getMessage());
+        }
+        return null;
+    }
+    
+    public synchronized boolean contains(String name) {
+        try {
+            return findSlotShared(hash(name), name)>=0;
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to read table cache: " + e.getMessage());
+        }
+        return false;
+    }
+    
+    public synchronized void addTable(String name, PackedMatrix tab) {
+        CmdFlags.printlnIfVerbose("adding to cache");
+        try {
+            FileLock lock=lockch.lock();
+            try {
+                refresh();
+                writeHits();
+                if(lookup(name)>=0) {
+                    return;   //  Added by another process.
+                }
+                ByteBuffer rec=encodeTable(name, tab);
+                int size=4+rec.remaining();
+                insert(hash(name), append(rec), System.currentTimeMillis(), size);
+                idx.putLong(16, segch.size());
+                byteswritten+=size;
+                enforceBudget();
+            }
+            finally {
+                lock.release();
+            }
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to write table cache: " + e.getMessage());
+        }
+    }
+    
+    //  Was the tabulation of name abandoned before, with limits at least as large as the given ones?
+    //  Searching again with the same or smaller limits would fail again. 
+    public synchronized boolean hasFailure(String name, long[] limits) {
+        try {
+            String key=failKey(name);
+            int slot=findSlotShared(hash(key), key);
+            if(slot<0) {
+                misses++;
+                return false;
+            }
+            ByteBuffer rec=readRecord(slotOffset(slot));
+            bytesread+=4+rec.limit();
+            long[] failed=decodeFailure(rec);
+            for(int i=0; i<limits.length; i++) {
+                if(i>=failed.length || limits[i]>failed[i]) {
+                    misses++;
+                    return false;
+                }
+            }
+            hits++;
+            pendingHits.put(key, System.currentTimeMillis());
+            return true;
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to read table cache: " + e.getMessage());
+        }
+        return false;
+    }
+    
+    public synchronized void addFailure(String name, long[] limits) {
+        String key=failKey(name);
+        try {
+            FileLock lock=lockch.lock();
+            try {
+                refresh();
+                writeHits();
+                int slot=findSlot(hash(key), key);
+                if(slot>=0) {
+                    ByteBuffer old=readRecord(slotOffset(slot));
+                    long[] failed=decodeFailure(old);
+                    boolean larger=false;
+                    for(int i=0; i<limits.length; i++) {
+                        if(i<failed.length && failed[i]>limits[i]) {
+                            limits[i]=failed[i];
+                        }
+                        else if(i>=failed.length || limits[i]>failed[i]) {
+                            larger=true;
+                        }
+                    }
+                    if(!larger) {
+                        return;
+                    }
+                    ByteBuffer rec=encodeFailure(key, limits);
+                    int size=4+rec.remaining();
+                    idx.putLong(IDX_HEADER+slot*SLOT+8, append(rec));
+                    touch(slot);
+                    setLiveBytes(livebytes-(4+old.limit())+size);
+                    byteswritten+=size;
+                }
+                else {
+                    ByteBuffer rec=encodeFailure(key, limits);
+                    int size=4+rec.remaining();
+                    insert(hash(key), append(rec), System.currentTimeMillis(), size);
+                    byteswritten+=size;
+                }
+                idx.putLong(16, segch.size());
+                enforceBudget();
+            }
+            finally {
+                lock.release();
+            }
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to write table cache: " + e.getMessage());
+        }
+    }
+    
+    private static String failKey(String name) {
+        return "FAIL|||"+name;
+    }
+    
+    public synchronized int size() {
+        return count;
+    }
+    
+    public synchronized void setBudget(long bytes, long entries) {
+        maxbytes=bytes;
+        maxentries=entries;
+        try {
+            FileLock lock=lockch.lock();
+            try {
+                refresh();
+                writeHits();
+                enforceBudget();
+            }
+            finally {
+                lock.release();
+            }
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to write table cache: " + e.getMessage());
+        }
+    }
+    
+    //  Copy the live records to a new segment, dropping evicted and superseded ones. 
+    public synchronized void compact() {
+        try {
+            FileLock lock=lockch.lock();
+            try {
+                refresh();
+                writeHits();
+                compactFiles();
+            }
+            finally {
+                lock.release();
+            }
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to compact table cache: " + e.getMessage());
+        }
+    }
+    
+    public synchronized String getStats() {
+        return "Table cache: "+hits+" hits, "+misses+" misses, "+bytesread+" bytes read, "+byteswritten+" bytes written, "
+            +evictions+" evictions. "+count+" entries, "+livebytes+" live bytes in a segment of "+segfile.length()+" bytes.";
+    }
+    
+    //  Write the times of the hits so far to the index, if the cache was used. 
+    public static synchronized void flush() {
+        if(cache!=null) {
+            cache.flushHits();
+        }
+    }
+    
+    private synchronized void flushHits() {
+        if(pendingHits.isEmpty()) {
+            return;
+        }
+        try {
+            FileLock lock=lockch.lock();
+            try {
+                refresh();
+                writeHits();
+            }
+            finally {
+                lock.release();
+            }
+        }
+        catch(IOException e) {
+            CmdFlags.errorExit("Unable to write table cache: " + e.getMessage());
+        }
+    }
+    
+    //  Print the statistics for this run, if the cache was used. 
+    public static synchronized void printStats() {
+        if(cache!=null) {
+            CmdFlags.printlnIfVerbose(cache.getStats());
+        }
+    }
+    
+    //  Record the statistics for this run in the .info file, if the cache was used. 
+    public static synchronized void putStats(savilerow.solver.Stats stats) {
+        if(cache!=null) {
+            synchronized(cache) {
+                stats.putValue("TableCacheHits", String.valueOf(cache.hits));
+                stats.putValue("TableCacheMisses", String.valueOf(cache.misses));
+                stats.putValue("TableCacheBytesRead", String.valueOf(cache.bytesread));
+                stats.putValue("TableCacheBytesWritten", String.valueOf(cache.byteswritten));
+                stats.putValue("TableCacheEvictions", String.valueOf(cache.evictions));
+                stats.putValue("TableCacheEntries", String.valueOf(cache.count));
+                stats.putValue("TableCacheBytes", String.valueOf(cache.livebytes));
+            }
+        }
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Segment file
+    
+    private void openSegment() throws IOException {
+        seg=new RandomAccessFile(segfile, "rw");
+        segch=seg.getChannel();
+        if(segch.size()==0) {
+            generation=newGeneration();
+            writeSegmentHeader(segch, generation);
+        }
+        else {
+            ByteBuffer hdr=ByteBuffer.allocate(SEG_HEADER);
+            segch.read(hdr, 0);
+            hdr.flip();
+            if(hdr.remaining()<SEG_HEADER || hdr.getInt()!=SEG_MAGIC || hdr.getInt()!=VERSION) {
+                throw new IOException("not a table cache segment: " + segfile);
+            }
+            generation=hdr.getLong();
+        }
+    }
+    
+    private static void writeSegmentHeader(FileChannel ch, long gen) throws IOException {
+        ByteBuffer hdr=ByteBuffer.allocate(SEG_HEADER);
+        hdr.putInt(SEG_MAGIC).putInt(VERSION).putLong(gen);
+        hdr.flip();
+        ch.write(hdr, 0);
+    }
+    
+    private static long newGeneration() {
+        return System.nanoTime() ^ new Random().nextLong();
+    }
+    
+    //  Write one record (length prefix added here) at the end of the segment. Returns its offset.
+    private long append(ByteBuffer rec) throws IOException {
+        long off=segch.size();
+        ByteBuffer len=ByteBuffer.allocate(4);
+        len.putInt(rec.remaining());
+        len.flip();
+        segch.write(len, off);
+        segch.write(rec, off+4);
+        return off;
+    }
+    
+    private ByteBuffer readRecord(long off) throws IOException {
+        ByteBuffer len=ByteBuffer.allocate(4);
+        readFully(len, off);
+        len.flip();
+        int n=len.getInt();
+        if(n<=0 || off+4+n > segch.size()) {
+            throw new EOFException("truncated table cache segment");
+        }
+        ByteBuffer rec=ByteBuffer.allocate(n);
+        readFully(rec, off+4);
+        rec.flip();
+        return rec;
+    }
+    
+    private void readFully(ByteBuffer b, long off) throws IOException {
+        while(b.hasRemaining()) {
+            int n=segch.read(b, off);
+            if(n<0) {
+                throw new EOFException("truncated table cache segment");
+            }
+            off+=n;
+        }
+    }
+    
+    private static String readKey(ByteBuffer rec) {
+        rec.position(1);
+        byte[] key=new byte[rec.getInt()];
+        rec.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Record format: type byte, key (length and UTF-8 bytes), short table
+    //   flag, number of rows, then either the row length (conventional table) or
+    //   the row start offsets and variables (short table), then the value width
+    //   (4 or 8) and the values.
+    
+    private static ByteBuffer encodeTable(String name, PackedMatrix tab) {
+        byte[] key=name.getBytes(StandardCharsets.UTF_8);
+        boolean shorttable=tab.isShortTable();
+        int rows=tab.numRows();
+        
+        long[] vals;
+        int[] vars=null;
+        int[] rowstart=null;
+        if(shorttable) {
+            rowstart=new int[rows+1];
+            for(int r=0; r<rows; r++) {
+                rowstart[r+1]=rowstart[r]+tab.rowLength(r);
+            }
+            vars=new int[rowstart[rows]];
+            vals=new long[rowstart[rows]];
+            for(int r=0; r<rows; r++) {
+                for(int j=0; j<tab.rowLength(r); j++) {
+                    vars[rowstart[r]+j]=tab.getVar(r, j);
+                    vals[rowstart[r]+j]=tab.getVal(r, j);
+                }
+            }
+        }
+        else {
+            int arity=(rows>0) ? tab.rowLength(0) : 0;
+            vals=new long[rows*arity];
+            for(int r=0; r<rows; r++) {
+                for(int j=0; j<arity; j++) {
+                    vals[r*arity+j]=tab.get(r, j);
+                }
+            }
+        }
+        
+        int width=4;
+        for(int i=0; i<vals.length; i++) {
+            if(vals[i]<Integer.MIN_VALUE || vals[i]>Integer.MAX_VALUE) {
+                width=8;
+                break;
+            }
+        }
+        
+        int size=1+4+key.length+1+4+(shorttable ? 4*(rows+1)+4*vars.length : 4)+1+width*vals.length;
+        ByteBuffer rec=ByteBuffer.allocate(size);
+        rec.put(REC_TABLE);
+        rec.putInt(key.length);
+        rec.put(key);
+        rec.put((byte)(shorttable ? 1 : 0));
+        rec.putInt(rows);
+        if(shorttable) {
+            for(int i=0; i<=rows; i++) {
+                rec.putInt(rowstart[i]);
+            }
+            for(int i=0; i<vars.length; i++) {
+                rec.putInt(vars[i]);
+            }
+        }
+        else {
+            rec.putInt((rows>0) ? tab.rowLength(0) : 0);
+        }
+        rec.put((byte)width);
+        for(int i=0; i<vals.length; i++) {
+            if(width==4) {
+                rec.putInt((int)vals[i]);
+            }
+            else {
+                rec.putLong(vals[i]);
+            }
+        }
+        rec.flip();
+        return rec;
+    }
+    
+    //  Failure record: type byte, key, number of limits, limits. 
+    private static ByteBuffer encodeFailure(String key, long[] limits) {
+        byte[] k=key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer rec=ByteBuffer.allocate(1+4+k.length+4+8*limits.length);
+        rec.put(REC_FAIL);
+        rec.putInt(k.length);
+        rec.put(k);
+        rec.putInt(limits.length);
+        for(int i=0; i<limits.length; i++) {
+            rec.putLong(limits[i]);
+        }
+        rec.flip();
+        return rec;
+    }
+    
+    private static long[] decodeFailure(ByteBuffer rec) throws IOException {
+        if(rec.get(0)!=REC_FAIL) {
+            throw new IOException("unexpected record type " + rec.get(0));
+        }
+        readKey(rec);
+        long[] limits=new long[rec.getInt()];
+        for(int i=0; i<limits.length; i++) {
+            limits[i]=rec.getLong();
+        }
+        return limits;
+    }
+    
+    private static ASTNode decodeTable(ByteBuffer rec) throws IOException {
+        if(rec.get(0)!=REC_TABLE) {
+            throw new IOException("unexpected record type " + rec.get(0));
+        }
+        readKey(rec);
+        boolean shorttable=(rec.get()==1);
+        int rows=rec.getInt();
+        int[] rowstart=null;
+        int[] vars=null;
+        int arity=0;
+        int numvals;
+        if(shorttable) {
+            rowstart=new int[rows+1];
+            for(int i=0; i<=rows; i++) {
+                rowstart[i]=rec.getInt();
+            }
+            vars=new int[rowstart[rows]];
+            for(int i=0; i<vars.length; i++) {
+                vars[i]=rec.getInt();
+            }
+            numvals=rowstart[rows];
+        }
+        else {
+            arity=rec.getInt();
+            numvals=rows*arity;
+        }
+        int width=rec.get();
+        long[] vals=new long[numvals];
+        for(int i=0; i<numvals; i++) {
+            vals[i]=(width==4) ? rec.getInt() : rec.getLong();
+        }
+        
+        if(shorttable) {
+            return PackedMatrix.makeShortTable(rowstart, vars, vals, rows);
+        }
+        else {
+            return PackedMatrix.makeTable(vals, rows, arity);
+        }
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Index file
+    
+    private void openIndex() throws IOException {
+        boolean valid=false;
+        if(idxfile.exists() && idxfile.length()>=IDX_HEADER) {
+            mapIndex();
+            valid=idx.getInt(0)==IDX_MAGIC && idx.getInt(4)==VERSION
+                && idxfile.length()==IDX_HEADER+(long)idx.getInt(8)*SLOT
+                && idx.getLong(32)==generation
+                && idx.getLong(16)<=segch.size();
+        }
+        if(!valid) {
+            //  Missing, damaged or for another segment. Rebuild it from the segment.
+            if(idxch!=null) {
+                idxch.close();
+            }
+            writeEmptyIndex(idxfile, MIN_CAPACITY, generation);
+            mapIndex();
+            idx.putLong(16, SEG_HEADER);
+        }
+        count=idx.getInt(12);
+        livebytes=idx.getLong(24);
+        indexTail();
+    }
+    
+    //  Index any records appended after the index was last updated. A partly
+    //  written record at the end, left by a process that died while appending,
+    //  is cut off. Called only with the lock held.
+    private void indexTail() throws IOException {
+        long off=idx.getLong(16);
+        long end=segch.size();
+        long now=System.currentTimeMillis();
+        while(off<end) {
+            ByteBuffer rec;
+            String key;
+            try {
+                rec=readRecord(off);
+                key=readKey(rec);
+            }
+            catch(EOFException | RuntimeException e) {
+                segch.truncate(off);
+                break;
+            }
+            long h=hash(key);
+            int slot=findSlot(h, key);
+            if(slot<0) {
+                insert(h, off, now, 4+rec.limit());
+            }
+            else if(slotOffset(slot)!=off) {
+                //  A later record for the same key (a failure with larger limits).
+                setLiveBytes(livebytes-(4+readRecord(slotOffset(slot)).limit())+4+rec.limit());
+                idx.putLong(IDX_HEADER+slot*SLOT+8, off);
+            }
+            off=off+4+rec.limit();
+        }
+        idx.putLong(16, off);
+    }
+    
+    //  Bring this process's view up to date with changes made by others. Called
+    //  only with the lock held.
+    private void refresh() throws IOException {
+        if(indexReplaced()) {
+            seg.close();
+            idxch.close();
+            openSegment();
+            openIndex();
+        }
+        else {
+            count=idx.getInt(12);
+            livebytes=idx.getLong(24);
+            indexTail();
+        }
+    }
+    
+    //  Has another process renamed a new index over the one mapped here?
+    private boolean indexReplaced() {
+        try {
+            return !fileKey(idxfile).equals(idxkey);
+        }
+        catch(IOException e) {
+            return true;
+        }
+    }
+    
+    private static Object fileKey(File f) throws IOException {
+        BasicFileAttributes attr=Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        Object key=attr.fileKey();
+        return (key!=null) ? key : attr.creationTime();
+    }
+    
+    private static void writeEmptyIndex(File f, int cap, long gen) throws IOException {
+        try(RandomAccessFile raf=new RandomAccessFile(f, "rw")) {
+            raf.setLength(0);
+            raf.setLength(IDX_HEADER+(long)cap*SLOT);
+            raf.writeInt(IDX_MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(cap);
+            raf.writeInt(0);
+            raf.writeLong(SEG_HEADER);
+            raf.writeLong(0);
+            raf.writeLong(gen);
+        }
+    }
+    
+    private void mapIndex() throws IOException {
+        idxch=new RandomAccessFile(idxfile, "rw").getChannel();
+        idx=idxch.map(FileChannel.MapMode.READ_WRITE, 0, idxch.size());
+        idxkey=fileKey(idxfile);
+        capacity=idx.getInt(8);
+    }
+    
+    //  Offset of the record for name, or -1.
+    private long lookup(String name) throws IOException {
+        int slot=findSlot(hash(name), name);
+        return (slot<0) ? -1 : slotOffset(slot);
+    }
+    
+    private long slotOffset(int slot) {
+        return idx.getLong(IDX_HEADER+slot*SLOT+8);
+    }
+    
+    //  Only called with the lock held. 
+    private void touch(int slot) {
+        idx.putLong(IDX_HEADER+slot*SLOT+16, System.currentTimeMillis());
+    }
+    
+    //  Write the pending hits into the index, for the entries still in it. 
+    //  Only called with the lock held, after refresh. 
+    private void writeHits() throws IOException {
+        for(Map.Entry<String, Long> e : pendingHits.entrySet()) {
+            int slot=findSlot(hash(e.getKey()), e.getKey());
+            if(slot>=0) {
+                idx.putLong(IDX_HEADER+slot*SLOT+16, e.getValue());
+            }
+        }
+        pendingHits.clear();
+    }
+    
+    private void setLiveBytes(long b) {
+        livebytes=b;
+        idx.putLong(24, b);
+    }
+    
+    //  Index slot holding name, or -1. Without the lock, a slot may be
+    //  changed by another process while it is read here, so the record it
+    //  points to is checked and anything unreadable is a mismatch.
+    private int findSlot(long h, String name) throws IOException {
+        int i=(int)(h & (capacity-1));
+        for(int probes=0; probes<capacity; probes++) {
+            long slothash=idx.getLong(IDX_HEADER+i*SLOT);
+            if(slothash==0) {
+                return -1;
+            }
+            if(slothash==h) {
+                long off=slotOffset(i);
+                try {
+                    if(off>=SEG_HEADER && readKey(readRecord(off)).equals(name)) {
+                        return i;
+                    }
+                }
+                catch(EOFException | RuntimeException e) {
+                }
+            }
+            i=(i+1) & (capacity-1);
+        }
+        return -1;
+    }
+    
+    //  Lock-free lookup. On a miss, if another process has replaced the index
+    //  (by growing or compacting it), move to the new files and look again.
+    private int findSlotShared(long h, String name) throws IOException {
+        int slot=findSlot(h, name);
+        if(slot<0 && indexReplaced()) {
+            FileLock lock=lockch.lock();
+            try {
+                refresh();
+            }
+            finally {
+                lock.release();
+            }
+            slot=findSlot(h, name);
+        }
+        return slot;
+    }
+    
+    private void insert(long h, long off, long lasthit, int size) throws IOException {
+        if(4L*(count+1) > 3L*capacity) {
+            grow(capacity*2);
+        }
+        putSlot(idx, capacity, h, off, lasthit);
+        count++;
+        idx.putInt(12, count);
+        setLiveBytes(livebytes+size);
+    }
+    
+    private static void putSlot(ByteBuffer b, int cap, long h, long off, long lasthit) {
+        int i=(int)(h & (cap-1));
+        while(b.getLong(IDX_HEADER+i*SLOT)!=0) {
+            i=(i+1) & (cap-1);
+        }
+        b.putLong(IDX_HEADER+i*SLOT+8, off);
+        b.putLong(IDX_HEADER+i*SLOT+16, lasthit);
+        b.putLong(IDX_HEADER+i*SLOT, h);     //  Last, so a reader never sees the hash with an old offset.
+    }
+    
+    //  Empty a slot, moving later slots in the same probe run back so that
+    //  lookups never stop early at the hole. 
+    private void removeSlot(int i) {
+        int mask=capacity-1;
+        int j=i;
+        while(true) {
+            j=(j+1) & mask;
+            long h=idx.getLong(IDX_HEADER+j*SLOT);
+            if(h==0) {
+                break;
+            }
+            int home=(int)(h & mask);
+            //  Slot j can move to i if its home position is not cyclically in (i, j]. 
+            boolean stay=(i<=j) ? (i<home && home<=j) : (i<home || home<=j);
+            if(!stay) {
+                idx.putLong(IDX_HEADER+i*SLOT+8, idx.getLong(IDX_HEADER+j*SLOT+8));
+                idx.putLong(IDX_HEADER+i*SLOT+16, idx.getLong(IDX_HEADER+j*SLOT+16));
+                idx.putLong(IDX_HEADER+i*SLOT, h);
+                i=j;
+            }
+        }
+        idx.putLong(IDX_HEADER+i*SLOT, 0);
+        idx.putLong(IDX_HEADER+i*SLOT+8, 0);
+        idx.putLong(IDX_HEADER+i*SLOT+16, 0);
+        count--;
+        idx.putInt(12, count);
+    }
+    
+    //  Rehash into an index of the given capacity. The new index is written to
+    //  a temporary file then renamed over the old one.
+    private void grow(int newcap) throws IOException {
+        File tmp=new File(idxfile.getPath()+".tmp");
+        writeEmptyIndex(tmp, newcap, generation);
+        try(FileChannel ch=new RandomAccessFile(tmp, "rw").getChannel()) {
+            MappedByteBuffer nidx=ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            for(int i=0; i<capacity; i++) {
+                long h=idx.getLong(IDX_HEADER+i*SLOT);
+                if(h!=0) {
+                    putSlot(nidx, newcap, h, idx.getLong(IDX_HEADER+i*SLOT+8), idx.getLong(IDX_HEADER+i*SLOT+16));
+                }
+            }
+            nidx.putInt(12, count);
+            nidx.putLong(16, idx.getLong(16));
+            nidx.putLong(24, livebytes);
+            nidx.force();
+        }
+        idxch.close();
+        if(!tmp.renameTo(idxfile)) {
+            throw new IOException("unable to replace " + idxfile);
+        }
+        mapIndex();
+        capacity=newcap;
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Budget and compaction
+    
+    //  If over budget, remove the least recently hit entries from the index
+    //  until the cache is under 90% of the budget. 
+    private void enforceBudget() throws IOException {
+        if((maxbytes<=0 || livebytes<=maxbytes) && (maxentries<=0 || count<=maxentries)) {
+            return;
+        }
+        long bytetarget=(maxbytes>0) ? maxbytes-maxbytes/10 : Long.MAX_VALUE;
+        long entrytarget=(maxentries>0) ? maxentries-maxentries/10 : Long.MAX_VALUE;
+        
+        int n=count;
+        long[] lasthit=new long[n];
+        long[] hashes=new long[n];
+        long[] offs=new long[n];
+        int j=0;
+        for(int i=0; i<capacity; i++) {
+            long h=idx.getLong(IDX_HEADER+i*SLOT);
+            if(h!=0) {
+                hashes[j]=h;
+                offs[j]=idx.getLong(IDX_HEADER+i*SLOT+8);
+                lasthit[j]=idx.getLong(IDX_HEADER+i*SLOT+16);
+                j++;
+            }
+        }
+        Integer[] order=sortBy(lasthit);
+        
+        for(int k=0; k<n && (livebytes>bytetarget || count>entrytarget); k++) {
+            int e=order[k];
+            int i=(int)(hashes[e] & (capacity-1));
+            while(idx.getLong(IDX_HEADER+i*SLOT)!=hashes[e] || idx.getLong(IDX_HEADER+i*SLOT+8)!=offs[e]) {
+                i=(i+1) & (capacity-1);
+            }
+            ByteBuffer len=ByteBuffer.allocate(4);
+            readFully(len, offs[e]);
+            len.flip();
+            removeSlot(i);
+            setLiveBytes(livebytes-4-len.getInt());
+            evictions++;
+        }
+        CmdFlags.printlnIfVerbose("Table cache over budget, evicted least recently used entries. "+count+" entries remain.");
+    }
+    
+    //  Positions of key in increasing order of value. 
+    private static Integer[] sortBy(final long[] key) {
+        Integer[] order=new Integer[key.length];
+        for(int i=0; i<key.length; i++) {
+            order[i]=i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return Long.compare(key[x], key[y]);
+            }
+        });
+        return order;
+    }
+    
+    //  Copy the live records in segment order to a new segment with a new
+    //  generation, build its index, then rename both into place. The segment
+    //  is renamed first; if the index rename does not happen, the generations
+    //  differ and the index is rebuilt when the cache is next opened. 
+    private void compactFiles() throws IOException {
+        long gen=newGeneration();
+        int n=count;
+        long[] hashes=new long[n];
+        long[] offs=new long[n];
+        long[] lasthit=new long[n];
+        int j=0;
+        for(int i=0; i<capacity; i++) {
+            long h=idx.getLong(IDX_HEADER+i*SLOT);
+            if(h!=0) {
+                hashes[j]=h;
+                offs[j]=idx.getLong(IDX_HEADER+i*SLOT+8);
+                lasthit[j]=idx.getLong(IDX_HEADER+i*SLOT+16);
+                j++;
+            }
+        }
+        Integer[] order=sortBy(offs);
+        
+        int newcap=MIN_CAPACITY;
+        while(4L*n > 3L*newcap) {
+            newcap*=2;
+        }
+        
+        File segtmp=new File(segfile.getPath()+".tmp");
+        File idxtmp=new File(idxfile.getPath()+".tmp");
+        writeEmptyIndex(idxtmp, newcap, gen);
+        long off=SEG_HEADER;
+        try(FileChannel nseg=new RandomAccessFile(segtmp, "rw").getChannel();
+            FileChannel ch=new RandomAccessFile(idxtmp, "rw").getChannel()) {
+            nseg.truncate(0);
+            writeSegmentHeader(nseg, gen);
+            MappedByteBuffer nidx=ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            for(int k=0; k<n; k++) {
+                int e=order[k];
+                ByteBuffer rec=readRecord(offs[e]);
+                ByteBuffer len=ByteBuffer.allocate(4);
+                len.putInt(rec.limit());
+                len.flip();
+                nseg.write(len, off);
+                nseg.write(rec, off+4);
+                putSlot(nidx, newcap, hashes[e], off, lasthit[e]);
+                off=off+4+rec.limit();
+            }
+            nseg.force(true);
+            nidx.putInt(12, n);
+            nidx.putLong(16, off);
+            nidx.putLong(24, off-SEG_HEADER);
+            nidx.force();
+        }
+        
+        seg.close();
+        idxch.close();
+        if(!segtmp.renameTo(segfile) || !idxtmp.renameTo(idxfile)) {
+            //  Possible where open files cannot be replaced. The cache stays as it was,
+            //  or if only the segment was replaced the index is rebuilt below.
+            CmdFlags.println("WARNING: Unable to compact table cache in " + segfile.getParent());
+            segtmp.delete();
+            idxtmp.delete();
+        }
+        openSegment();
+        openIndex();
+    }
+    
+    //  First 64 bits of the SHA-256 of the key, never 0 (0 marks an empty slot).
+    static long hash(String name) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] d=messageDigest.digest(name.getBytes(StandardCharsets.UTF_8));
+            long h=0;
+            for(int i=0; i<8; i++) {
+                h=(h<<8) | (d[i] & 0xFF);
+            }
+            return (h==0) ? 1 : h;
+        }
+        catch(NoSuchAlgorithmException e) {
+            CmdFlags.errorExit("SHA-256 doesn't exist");
+        }
+        return 0;
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Offline maintenance.
+    //
+    //   java -cp savilerow.jar savilerow.TableCache [options] [directory]
+    //
+    //   -compact           Compact the segment, after evicting entries if a budget is given.
+    //   -max-bytes N       Byte budget for -compact.
+    //   -max-entries N     Entry budget for -compact.
+    //   -stats             Print the size of the cache.
+    //   -delete            Delete old format files once migrated.
+    //
+    //   With no -compact or -stats, migrate a cache in the old format: one text
+    //   file per entry, named by the SHA-256 of the key, containing '# ' and the
+    //   key on the first line then an Essence' letting of the table.
+    
+    public static void main(String[] args) {
+        boolean delete=false;
+        boolean compact=false;
+        boolean stats=false;
+        long maxbytes=0;
+        long maxentries=0;
+        File dir=basedir;
+        for(int i=0; i<args.length; i++) {
+            String arg=args[i];
+            if(arg.equals("-delete")) {
+                delete=true;
+            }
+            else if(arg.equals("-compact")) {
+                compact=true;
+            }
+            else if(arg.equals("-stats")) {
+                stats=true;
+            }
+            else if((arg.equals("-max-bytes") || arg.equals("-max-entries")) && i+1<args.length) {
+                i++;
+                long v=Long.parseLong(args[i]);
+                if(arg.equals("-max-bytes")) {
+                    maxbytes=v;
+                }
+                else {
+                    maxentries=v;
+                }
+            }
+            else {
+                dir=new File(arg);
+            }
+        }
+        
+        if(!dir.isDirectory()) {
+            System.out.println("ERROR: No table cache directory " + dir);
+            System.exit(1);
+        }
+        
+        if(compact || stats) {
+            TableCache tc=new TableCache(dir);
+            if(compact) {
+                tc.setBudget(maxbytes, maxentries);
+                tc.compact();
+            }
+            System.out.println(tc.getStats());
+            return;
+        }
+        
+        TableCache tc=new TableCache(dir);
+        int migrated=0;
+        int skipped=0;
+        File[] files=dir.listFiles();
+        Arrays.sort(files);
+        for(File f : files) {
+            if(!f.isFile() || !f.getName().matches("[0-9a-f]+")) {
+                continue;
+            }
+            try {
+                PackedMatrix tab=null;
+                String key=null;
+                try(BufferedReader in=new BufferedReader(new FileReader(f))) {
+                    String first=in.readLine();
+                    if(first!=null && first.startsWith("# ")) {
+                        key=first.substring(2);
+                        StringBuilder text=new StringBuilder();
+                        String line;
+                        while((line=in.readLine())!=null) {
+                            text.append(line);
+                        }
+                        tab=parseLetting(text.toString(), key.startsWith("Short|||"));
+                    }
+                }
+                if(tab==null) {
+                    System.out.println("Skipping " + f.getName() + ": not a table cache entry.");
+                    skipped++;
+                    continue;
+                }
+                tc.addTable(key, tab);
+                migrated++;
+                if(delete && !f.delete()) {
+                    System.out.println("WARNING: Unable to delete " + f);
+                }
+            }
+            catch(IOException e) {
+                System.out.println("Skipping " + f.getName() + ": " + e.getMessage());
+                skipped++;
+            }
+        }
+        System.out.println("Migrated " + migrated + " entries, skipped " + skipped + ". Cache now has " + tc.size() + " entries.");
+    }
+    
+    //  Parse 'letting name = [...]' where the matrix contains only integers, as written
+    //  by the old cache. Returns null for anything else.
+    private static PackedMatrix parseLetting(String text, boolean shorttable) {
+        int eq=text.indexOf('=');
+        if(!text.startsWith("letting") || eq<0) {
+            return null;
+        }
+        int[] pos=new int[]{eq+1};
+        Object o;
+        try {
+            o=parseList(text, pos);
+        }
+        catch(RuntimeException e) {
+            return null;
+        }
+        if(!(o instanceof ArrayList)) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        ArrayList<Object> tups=(ArrayList<Object>) o;
+        
+        int rows=tups.size();
+        if(shorttable) {
+            int[] rowstart=new int[rows+1];
+            ArrayList<Long> vals=new ArrayList<Long>();
+            ArrayList<Integer> vars=new ArrayList<Integer>();
+            for(int r=0; r<rows; r++) {
+                if(!(tups.get(r) instanceof ArrayList)) return null;
+                for(Object pair : (ArrayList<?>) tups.get(r)) {
+                    if(!(pair instanceof ArrayList) || ((ArrayList<?>)pair).size()!=2) return null;
+                    ArrayList<?> p=(ArrayList<?>) pair;
+                    if(!(p.get(0) instanceof Long) || !(p.get(1) instanceof Long)) return null;
+                    vars.add((int)(long)(Long)p.get(0));
+                    vals.add((Long)p.get(1));
+                }
+                rowstart[r+1]=vals.size();
+            }
+            int[] v=new int[vars.size()];
+            long[] a=new long[vals.size()];
+            for(int i=0; i<v.length; i++) {
+                v[i]=vars.get(i);
+                a[i]=vals.get(i);
+            }
+            ASTNode tab=PackedMatrix.makeShortTable(rowstart, v, a, rows);
+            return PackedMatrix.getTable(null, tab, true);
+        }
+        else {
+            int arity=(rows>0 && tups.get(0) instanceof ArrayList) ? ((ArrayList<?>)tups.get(0)).size() : 0;
+            long[] a=new long[rows*arity];
+            for(int r=0; r<rows; r++) {
+                if(!(tups.get(r) instanceof ArrayList) || ((ArrayList<?>)tups.get(r)).size()!=arity) return null;
+                ArrayList<?> tup=(ArrayList<?>) tups.get(r);
+                for(int j=0; j<arity; j++) {
+                    if(!(tup.get(j) instanceof Long)) return null;
+                    a[r*arity+j]=(Long)tup.get(j);
+                }
+            }
+            ASTNode tab=PackedMatrix.makeTable(a, rows, arity);
+            return PackedMatrix.getTable(null, tab, false);
+        }
+    }
+    
+    //  Nested lists of integers, with an optional index domain after ';' that is ignored.
+    private static Object parseList(String s, int[] pos) {
+        skipSpace(s, pos);
+        if(s.charAt(pos[0])=='[') {
+            pos[0]++;
+            ArrayList<Object> l=new ArrayList<Object>();
+            skipSpace(s, pos);
+            while(s.charAt(pos[0])!=']' && s.charAt(pos[0])!=';') {
+                l.add(parseList(s, pos));
+                skipSpace(s, pos);
+                if(s.charAt(pos[0])==',') {
+                    pos[0]++;
+                    skipSpace(s, pos);
+                }
+            }
+            if(s.charAt(pos[0])==';') {
+                //  Skip the index domain.
+                int depth=0;
+                while(depth>0 || s.charAt(pos[0])!=']') {
+                    char c=s.charAt(pos[0]);
+                    if(c=='(') depth++;
+                    if(c==')') depth--;
+                    pos[0]++;
+                }
+            }
+            pos[0]++;
+            return l;
+        }
+        int start=pos[0];
+        if(s.charAt(pos[0])=='-') {
+            pos[0]++;
+        }
+        while(pos[0]<s.length() && Character.isDigit(s.charAt(pos[0]))) {
+            pos[0]++;
+        }
+        return Long.parseLong(s.substring(start, pos[0]));
+    }
+    
+    private static void skipSpace(String s, int[] pos) {
+        while(Character.isWhitespace(s.charAt(pos[0]))) {
+            pos[0]++;
+        }
+    }
+}
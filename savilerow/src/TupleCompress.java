@@ -22,193 +22,354 @@ package savilerow;
 */
 
 import java.util.*;
+import java.util.concurrent.*;
 import savilerow.expression.Intpair;
+import savilerow.treetransformer.TransformMakeTable;
 
-public class TupleCompress {
-
-	public static class TupleReturn
-	{
-		public HashSet<ArrayList<Long>> squashed_tuples;
-		public HashSet<ArrayList<Long>> unsquashed_tuples;
-
-		public TupleReturn(HashSet<ArrayList<Long>> _squashed_tuples,
-								       HashSet<ArrayList<Long>> _unsquashed_tuples)
-		{
-			squashed_tuples = _squashed_tuples;
-			unsquashed_tuples = _unsquashed_tuples;
-		}
-	};
-/*
-	public static void main(String[] args) {
-
-		HashSet<ArrayList<Long>> tuples = new HashSet<ArrayList<Long>>();
-		tuples.add(new ArrayList<Long>(Arrays.asList(1,1,1)));
-		tuples.add(new ArrayList<Long>(Arrays.asList(1,1,2)));
-		tuples.add(new ArrayList<Long>(Arrays.asList(1,2,1)));
-		tuples.add(new ArrayList<Long>(Arrays.asList(1,2,2)));
-		tuples.add(new ArrayList<Long>(Arrays.asList(2,1,1)));
-		tuples.add(new ArrayList<Long>(Arrays.asList(2,1,2)));
-	ArrayList<ArrayList<Long>> domains = new ArrayList<ArrayList<Long>>();
-
-		domains.add(new ArrayList<Long>(Arrays.asList(1,2)));
-		domains.add(new ArrayList<Long>(Arrays.asList(1,2)));
-		domains.add(new ArrayList<Long>(Arrays.asList(1,2)));
-
-		HashSet<ArrayList<Long>> res =
-		full_squeeze_tuples(tuples, domains, false);
-
-		System.out.println(res);
-	}
-*/
-	public static long free_value = Long.MIN_VALUE;
-
-public static HashSet<ArrayList<Long>>
-full_squeeze_tuples(HashSet<ArrayList<Long>> tuples, ArrayList<ArrayList<Intpair>> domains,
-               boolean eager_prune) {
-	HashSet<ArrayList<Long>> ret_tuples = new HashSet<ArrayList<Long>>();
-	HashSet<ArrayList<Long>> tup_loop = tuples;
-	while(true) {
-		TupleReturn ret =
-			squeeze_tuples(tup_loop, domains, eager_prune);
-
-		for(ArrayList<Long> tup : ret.unsquashed_tuples) {
-			ret_tuples.add(tup);
-		}
-		tup_loop = ret.squashed_tuples;
-
-		if(tup_loop.isEmpty()) {
-			return ret_tuples;
-		}
-	}
-}
-
-public static HashSet<ArrayList<Long>>
-full_squeeze_short_tuples(HashSet<ArrayList<Long>> tuples, ArrayList<ArrayList<Intpair>> domains,
-               boolean eager_prune) {
-	ArrayList<HashSet<ArrayList<Long>>> seperated;
-	seperated = filterTuplesByFreeValues(tuples);
-	
-	//System.out.println("Seperated: " + seperated);
-	
-	HashSet<ArrayList<Long>> ret_tuples = new HashSet<ArrayList<Long>>();
-	HashSet<ArrayList<Long>> tup_loop = new HashSet<ArrayList<Long>>();
-	
-
-	for(int i = 0; i < seperated.size(); ++i) {
-		//System.out.println("Trying :" + tup_loop.size() + " at depth " + i);
-		tup_loop.addAll(seperated.get(i));
-		//System.out.println("Added :" + seperated.get(i).size());
-		
-		if(!tup_loop.isEmpty()) {
-			int frees = -1;
-			for(ArrayList<Long> t : tup_loop) {
-				int count = 0;
-				for(Long l : t) {
-					if(l == free_value) count++;
-				}
-				if(frees != -1 && count != frees) {
-					//System.out.println("Inconsistent: " + frees + ":" + count);
-				}
-				frees = count;
-			}
-			//System.out.println("Frees: " + frees);
-		}
-		
-		
-		TupleReturn ret =
-			squeeze_tuples(tup_loop, domains, eager_prune);
-
-			//System.out.println("Squashed :" + ret.squashed_tuples.size());
-		//System.out.println("Rejects :" + ret.unsquashed_tuples.size());
-
-		for(ArrayList<Long> tup : ret.unsquashed_tuples) {
-			ret_tuples.add(tup);
-		}
-		tup_loop = ret.squashed_tuples;
-	}
-	ret_tuples.addAll(tup_loop);
-	return ret_tuples;
-}
-
+//  Squeezing of tables into short tables (an extension of the IJCAI'13 algorithm).
+//  A set of tuples that differ only in one column and cover the whole domain of
+//  that column is replaced by one tuple with free_value in that column, repeatedly.
+//
+//  Tuples are long[] (or rows of one packed long[], see compress_short_tuples),
+//  with free_value in the free columns. The merge partners of
+//  the tuples are found by sorting them on all columns except one, so that each
+//  set of partners is contiguous. The columns are independent, so for large
+//  tables they are sorted in parallel (-tabulation-threads). 
+//  The sets of tuples are HashSets of Tuple, which hashes like the ArrayList<Long>
+//  this class used to work on, so the tuples come out in the same order as before.
 
-static ArrayList<HashSet<ArrayList<Long>>>
-filterTuplesByFreeValues(HashSet<ArrayList<Long>> tuples) {
-	ArrayList<HashSet<ArrayList<Long>>> seperated;
-	seperated = new ArrayList<HashSet<ArrayList<Long>>>();
-	if(tuples.isEmpty()) {
-		return seperated;
-	}
-
-	int tuplength = tuples.iterator().next().size();
-	for(int i = 0; i <= tuplength; ++i) {
-		seperated.add(new HashSet<ArrayList<Long>>());
-	}
-
-	for(ArrayList<Long> tup : tuples) {
-		int count = 0;
-		for(int i = 0; i < tuplength; ++i) {
-			if(tup.get(i) == Long.MIN_VALUE)
-				count++;
-		}
-		seperated.get(count).add(tup);
-	}
-
-	return seperated;
-}
-
-static TupleReturn
-squeeze_tuples(HashSet<ArrayList<Long>> tuples, ArrayList<ArrayList<Intpair>> domains,
-               boolean eager_prune) {
-  HashSet<ArrayList<Long>> used_tuples = new HashSet<ArrayList<Long>>();
-  HashSet<ArrayList<Long>> ret_tuples = new HashSet<ArrayList<Long>>();
-  for(ArrayList<Long> tuple : tuples) {
-		//System.out.println("Considering: "+ tuple);
-    if(!eager_prune || !used_tuples.contains(tuple)) {
-			//System.out.println("A" + domains.size());
-      for(int i = 0; i < domains.size(); ++i) {
-        if(used_tuples.contains(tuple) && eager_prune)
-          break;
-			//System.out.println("B");
-
-        if(tuple.get(i) == free_value)
-          continue;
-			//System.out.println("C");
-
-        ArrayList<Long> tuple_copy = new ArrayList<Long>(tuple);
-        boolean found = true;
-				searchloop:
-        for(Intpair pair : domains.get(i)) {
-					for(long j = pair.lower; j <= pair.upper; ++j) {
-	          tuple_copy.set(i, j);
-						//System.out.println("Do we have: "+ tuple_copy);
-	          if(!tuples.contains(tuple_copy) || (eager_prune && used_tuples.contains(tuple_copy))) {
-	            found = false;
-							//System.out.println("no");
-	            break searchloop;
-	          }
-					}
-        }
-				
-        if(found) {
-					for(Intpair pair : domains.get(i)) {
-          	for(long j = pair.lower; j <= pair.upper; ++j) {
-            	tuple_copy.set(i, j);
-            	used_tuples.add(new ArrayList<Long>(tuple_copy));
-          	}
-					}
-          tuple_copy.set(i, free_value);
-          ret_tuples.add(tuple_copy);
-        }
-      }
+public class TupleCompress {
+    
+    public static final long free_value = Long.MIN_VALUE;
+    
+    //  Sort the columns in parallel when there are at least this many values in the table. 
+    private static final int PARALLEL_VALUES=1<<16;
+    
+    //  A tuple, in its own array or a row of a packed array that it does not copy. 
+    static final class Tuple {
+        private final long[] data;
+        private final int off;
+        final int len;
+        private final int hash;
+        
+        Tuple(long[] v) {
+            this(v, 0, v.length);
+        }
+        
+        Tuple(long[] d, int o, int l) {
+            data=d;
+            off=o;
+            len=l;
+            int h=1;
+            for(int i=o; i<o+l; i++) {
+                h=31*h+(int)(d[i]^(d[i]>>>32));   //  As List.hashCode with Long elements. 
+            }
+            hash=h;
+        }
+        
+        long get(int i) {
+            return data[off+i];
+        }
+        
+        long[] toArray() {
+            if(off==0 && data.length==len) {
+                return data;
+            }
+            return copy();
+        }
+        
+        long[] copy() {
+            return Arrays.copyOfRange(data, off, off+len);
+        }
+        
+        public int hashCode() {
+            return hash;
+        }
+        
+        public boolean equals(Object o) {
+            if(!(o instanceof Tuple)) {
+                return false;
+            }
+            Tuple t=(Tuple)o;
+            if(t.hash!=hash || t.len!=len) {
+                return false;
+            }
+            for(int i=0; i<len; i++) {
+                if(t.data[t.off+i]!=data[off+i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    static final class TupleReturn {
+        final HashSet<Tuple> squashed_tuples;
+        final HashSet<Tuple> unsquashed_tuples;
+        
+        TupleReturn(HashSet<Tuple> _squashed_tuples, HashSet<Tuple> _unsquashed_tuples) {
+            squashed_tuples = _squashed_tuples;
+            unsquashed_tuples = _unsquashed_tuples;
+        }
+    }
+    
+    //  Squeeze a conventional table until no more tuples can be merged. 
+    public static ArrayList<long[]> full_squeeze_tuples(List<long[]> tuples, ArrayList<ArrayList<Intpair>> domains) {
+        HashSet<Tuple> ret_tuples = new HashSet<Tuple>();
+        HashSet<Tuple> tup_loop = toSet(tuples);
+        while(true) {
+            TupleReturn ret = squeeze_tuples(tup_loop, domains);
+            ret_tuples.addAll(ret.unsquashed_tuples);
+            tup_loop = ret.squashed_tuples;
+            
+            if(tup_loop.isEmpty()) {
+                return toList(ret_tuples);
+            }
+        }
+    }
+    
+    //  Squeeze a table of short tuples. The tuples are squeezed in layers by their
+    //  number of free values, and the tuples squashed in one layer join the next. 
+    public static ArrayList<long[]> full_squeeze_short_tuples(List<long[]> tuples, ArrayList<ArrayList<Intpair>> domains) {
+        return toList(squeeze_short_set(toSet(tuples), domains));
+    }
+    
+    //  Squeeze the short tuples in rows*arity entries of a packed array, read in place.
+    //  Returns null if that does not make the table smaller. 
+    public static ArrayList<long[]> compress_short_tuples(long[] data, int rows, int arity, ArrayList<ArrayList<Intpair>> domains) {
+        HashSet<Tuple> tuples = new HashSet<Tuple>();
+        for(int i = 0; i < rows; ++i) {
+            tuples.add(new Tuple(data, i*arity, arity));
+        }
+        HashSet<Tuple> ret_tuples = squeeze_short_set(tuples, domains);
+        if(ret_tuples.size() < tuples.size()) {
+            return toList(ret_tuples);
+        }
+        return null;
+    }
+    
+    private static HashSet<Tuple> squeeze_short_set(HashSet<Tuple> tuples, ArrayList<ArrayList<Intpair>> domains) {
+        ArrayList<HashSet<Tuple>> seperated = filterTuplesByFreeValues(tuples);
+        
+        HashSet<Tuple> ret_tuples = new HashSet<Tuple>();
+        HashSet<Tuple> tup_loop = new HashSet<Tuple>();
+        
+        for(int i = 0; i < seperated.size(); ++i) {
+            tup_loop.addAll(seperated.get(i));
+            
+            TupleReturn ret = squeeze_tuples(tup_loop, domains);
+            ret_tuples.addAll(ret.unsquashed_tuples);
+            tup_loop = ret.squashed_tuples;
+        }
+        ret_tuples.addAll(tup_loop);
+        return ret_tuples;
+    }
+    
+    //  Number of distinct tuples. 
+    public static int numDistinct(List<long[]> tuples) {
+        return toSet(tuples).size();
+    }
+    
+    private static HashSet<Tuple> toSet(List<long[]> tuples) {
+        HashSet<Tuple> set = new HashSet<Tuple>();
+        for(long[] t : tuples) {
+            set.add(new Tuple(t));
+        }
+        return set;
+    }
+    
+    private static ArrayList<long[]> toList(HashSet<Tuple> set) {
+        ArrayList<long[]> list = new ArrayList<long[]>(set.size());
+        for(Tuple t : set) {
+            list.add(t.toArray());
+        }
+        return list;
+    }
+    
+    static ArrayList<HashSet<Tuple>> filterTuplesByFreeValues(HashSet<Tuple> tuples) {
+        ArrayList<HashSet<Tuple>> seperated = new ArrayList<HashSet<Tuple>>();
+        if(tuples.isEmpty()) {
+            return seperated;
+        }
+        
+        int tuplength = tuples.iterator().next().len;
+        for(int i = 0; i <= tuplength; ++i) {
+            seperated.add(new HashSet<Tuple>());
+        }
+        
+        for(Tuple tup : tuples) {
+            int count = 0;
+            for(int i = 0; i < tuplength; ++i) {
+                if(tup.get(i) == free_value) {
+                    count++;
+                }
+            }
+            seperated.get(count).add(tup);
+        }
+        
+        return seperated;
+    }
+    
+    //  One round of merging. Each tuple is merged on every column where its partners
+    //  cover the domain. The squashed tuples are made in the order the tuples are
+    //  iterated, then the columns. 
+    static TupleReturn squeeze_tuples(HashSet<Tuple> tuples, final ArrayList<ArrayList<Intpair>> domains) {
+        final Tuple[] rows = tuples.toArray(new Tuple[tuples.size()]);
+        int arity = domains.size();
+        
+        //  complete[i][r] is true if tuple r is not free in column i and its partners on column i cover the domain.
+        boolean[][] complete = new boolean[arity][];
+        if(CmdFlags.tabulation_threads>1 && (long)rows.length*arity >= PARALLEL_VALUES) {
+            ArrayList<Callable<boolean[]>> tasks = new ArrayList<Callable<boolean[]>>();
+            for(int i = 0; i < arity; ++i) {
+                final int col = i;
+                tasks.add(new Callable<boolean[]>() {
+                    public boolean[] call() {
+                        return completeGroups(rows, col, domains.get(col));
+                    }
+                });
+            }
+            try {
+                List<Future<boolean[]>> results = TransformMakeTable.getPool().invokeAll(tasks);
+                for(int i = 0; i < arity; ++i) {
+                    complete[i] = results.get(i).get();
+                }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                CmdFlags.errorExit("Interrupted while compressing a table.");
+            }
+            catch(ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        else {
+            for(int i = 0; i < arity; ++i) {
+                complete[i] = completeGroups(rows, i, domains.get(i));
+            }
+        }
+        
+        HashSet<Tuple> ret_tuples = new HashSet<Tuple>();
+        boolean[] used = new boolean[rows.length];
+        for(int r = 0; r < rows.length; ++r) {
+            for(int i = 0; i < arity; ++i) {
+                if(complete[i][r]) {
+                    //  The partners with a value in the domain are used, the others (if any) are not.
+                    if(inDomain(rows[r].get(i), domains.get(i))) {
+                        used[r] = true;
+                    }
+                    long[] squashed = rows[r].copy();
+                    squashed[i] = free_value;
+                    ret_tuples.add(new Tuple(squashed));
+                }
+            }
+        }
+        
+        HashSet<Tuple> unsquashed_tuples = new HashSet<Tuple>();
+        for(int r = 0; r < rows.length; ++r) {
+            if(!used[r]) {
+                unsquashed_tuples.add(rows[r]);
+            }
+        }
+        return new TupleReturn(ret_tuples, unsquashed_tuples);
+    }
+    
+    //  For each tuple that is not free in column col, whether the tuples that agree with it
+    //  on all other columns have every value of the domain of col. 
+    private static boolean[] completeGroups(Tuple[] rows, int col, ArrayList<Intpair> dom) {
+        boolean[] res = new boolean[rows.length];
+        long domsize = Intpair.numValues(dom);
+        if(domsize > rows.length) {
+            return res;
+        }
+        
+        int[] idx = new int[rows.length];
+        int len = 0;
+        for(int r = 0; r < rows.length; ++r) {
+            if(rows[r].get(col) != free_value) {
+                idx[len++] = r;
+            }
+        }
+        sort(idx, new int[len], 0, len, rows, col);
+        
+        int start = 0;
+        while(start < len) {
+            int end = start+1;
+            while(end < len && compare(rows[idx[start]], rows[idx[end]], col) == 0) {
+                end++;
+            }
+            long count = 0;
+            for(int k = start; k < end; ++k) {
+                if(inDomain(rows[idx[k]].get(col), dom)) {
+                    count++;
+                }
+            }
+            if(count == domsize) {
+                for(int k = start; k < end; ++k) {
+                    res[idx[k]] = true;
+                }
+            }
+            start = end;
+        }
+        return res;
+    }
+    
+    //  Compare tuples on all columns except col. 
+    private static int compare(Tuple a, Tuple b, int col) {
+        for(int i = 0; i < a.len; ++i) {
+            if(i != col && a.get(i) != b.get(i)) {
+                return (a.get(i) < b.get(i)) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+    
+    //  Merge sort of idx[from..to-1] by compare. 
+    private static void sort(int[] idx, int[] tmp, int from, int to, Tuple[] rows, int col) {
+        if(to-from < 2) {
+            return;
+        }
+        int mid = (from+to)>>>1;
+        sort(idx, tmp, from, mid, rows, col);
+        sort(idx, tmp, mid, to, rows, col);
+        if(compare(rows[idx[mid-1]], rows[idx[mid]], col) <= 0) {
+            return;
+        }
+        int i = from;
+        int j = mid;
+        int k = from;
+        while(i < mid && j < to) {
+            if(compare(rows[idx[i]], rows[idx[j]], col) <= 0) {
+                tmp[k++] = idx[i++];
+            }
+            else {
+                tmp[k++] = idx[j++];
+            }
+        }
+        while(i < mid) {
+            tmp[k++] = idx[i++];
+        }
+        while(j < to) {
+            tmp[k++] = idx[j++];
+        }
+        System.arraycopy(tmp, from, idx, from, to-from);
+    }
+    
+    private static boolean inDomain(long v, ArrayList<Intpair> dom) {
+        int lo = 0;
+        int hi = dom.size()-1;
+        while(lo <= hi) {
+            int mid = (lo+hi)>>>1;
+            if(v < dom.get(mid).lower) {
+                hi = mid-1;
+            }
+            else if(v > dom.get(mid).upper) {
+                lo = mid+1;
+            }
+            else {
+                return true;
+            }
+        }
+        return false;
     }
-  }
-
-  HashSet<ArrayList<Long>> unsquashed_tuples = new HashSet<ArrayList<Long>>();
-  for(ArrayList<Long> tup : tuples) {
-    if(!used_tuples.contains(tup))
-      unsquashed_tuples.add(tup);
-  }
-  return new TupleReturn(ret_tuples, unsquashed_tuples);
-}
-
 }
@@ -0,0 +1,538 @@
+package savilerow.expression;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.model.*;
+import java.util.*;
+import java.io.*;
+
+//  Table constraint represented as a reduced, layered multi-valued decision diagram.
+//  The second child is a 2d matrix of edges [node, value, child]. Nodes are numbered
+//  from 1 with the root as node 1, and node 0 is the terminal (true). A node at depth
+//  i tests the i'th variable, and a value with no edge from the node is not allowed.
+//  Made from table constraints by TransformTableToMDD (-tabulation-mdd).
+
+public class MDD extends ASTNodeC
+{
+    public static final long serialVersionUID = 1L;
+    protected transient Model m;
+    
+    public MDD(Model _m, ASTNode v, ASTNode edges) {
+        super(v, edges);
+        m=_m;
+    }
+    
+    public boolean hasModel() {
+        return true;
+    }
+    public Model getModel() {
+        return m;
+    }
+    public void setModel(Model _m) {
+        m=_m;
+    }
+    
+    public ASTNode copy()
+    {
+        return new MDD(m, getChild(0), getChild(1));
+    }
+    public boolean isRelation(){return true;}
+    public boolean strongProp() {
+        return getChild(0).strongProp();
+    }
+    public boolean typecheck(SymbolTable st) {
+        if(!getChild(0).typecheck(st)) return false;
+        if(!getChild(1).typecheck(st)) return false;
+        
+        if(getChild(0).getDimension()!=1) {
+            CmdFlags.println("ERROR: First argument of mdd should be 1-dimensional matrix: "+this);
+            return false;
+        }
+        if(getChild(1).getDimension()!=2) {
+            CmdFlags.println("ERROR: Second argument of mdd should be 2-dimensional matrix: "+this);
+            return false;
+        }
+        return true;
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Construction from a table. The rows are sorted, then the diagram is built
+    //   bottom-up over the sorted rows with nodes hash-consed by their depth and
+    //   edges, so equal subtrees are shared and the result is reduced.
+    
+    //  Returns the MDD constraint on vars equivalent to a conventional table, or false if the table is empty.
+    public static ASTNode fromTable(Model m, ASTNode vars, PackedMatrix tab) {
+        if(tab.numRows()==0) {
+            return new BooleanConstant(false);
+        }
+        final PackedMatrix t=tab;
+        final int arity=tab.rowLength(0);
+        if(arity==0) {
+            return new BooleanConstant(true);
+        }
+        Integer[] order=new Integer[tab.numRows()];
+        for(int i=0; i<order.length; i++) {
+            order[i]=i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                for(int c=0; c<arity; c++) {
+                    int r=Long.compare(t.get(x, c), t.get(y, c));
+                    if(r!=0) {
+                        return r;
+                    }
+                }
+                return 0;
+            }
+        });
+        
+        HashMap<ArrayList<Long>, Integer> unique=new HashMap<ArrayList<Long>, Integer>();
+        ArrayList<long[]> nodes=new ArrayList<long[]>();   //  Edges of node i+1 as value, child pairs.
+        int root=build(tab, order, 0, order.length, 0, arity, unique, nodes);
+        
+        return makeMDD(m, vars, root, nodes);
+    }
+    
+    //  Node for the sorted rows order[lo..hi-1] from column depth onwards, all equal before depth.
+    private static int build(PackedMatrix tab, Integer[] order, int lo, int hi, int depth, int arity, HashMap<ArrayList<Long>, Integer> unique, ArrayList<long[]> nodes) {
+        if(depth==arity) {
+            return 0;
+        }
+        ArrayList<Long> key=new ArrayList<Long>();
+        key.add((long)depth);
+        int start=lo;
+        while(start<hi) {
+            long val=tab.get(order[start], depth);
+            int end=start+1;
+            while(end<hi && tab.get(order[end], depth)==val) {
+                end++;
+            }
+            key.add(val);
+            key.add((long)build(tab, order, start, end, depth+1, arity, unique, nodes));
+            start=end;
+        }
+        return addNode(key, unique, nodes);
+    }
+    
+    //  Node with key (depth followed by value, child pairs), shared if it exists already.
+    private static int addNode(ArrayList<Long> key, HashMap<ArrayList<Long>, Integer> unique, ArrayList<long[]> nodes) {
+        Integer id=unique.get(key);
+        if(id==null) {
+            long[] e=new long[key.size()-1];
+            for(int i=0; i<e.length; i++) {
+                e[i]=key.get(i+1);
+            }
+            nodes.add(e);
+            id=nodes.size();
+            unique.put(key, id);
+        }
+        return id;
+    }
+    
+    //  The MDD constraint with the given root, numbering the nodes breadth-first.
+    private static ASTNode makeMDD(Model m, ASTNode vars, int root, ArrayList<long[]> nodes) {
+        //  Number the nodes breadth-first from the root.
+        int[] newid=new int[nodes.size()+1];
+        ArrayList<Integer> queue=new ArrayList<Integer>();
+        queue.add(root);
+        newid[root]=1;
+        for(int q=0; q<queue.size(); q++) {
+            long[] e=nodes.get(queue.get(q)-1);
+            for(int j=1; j<e.length; j+=2) {
+                int c=(int)e[j];
+                if(c!=0 && newid[c]==0) {
+                    queue.add(c);
+                    newid[c]=queue.size();
+                }
+            }
+        }
+        
+        int numedges=0;
+        for(int q=0; q<queue.size(); q++) {
+            numedges+=nodes.get(queue.get(q)-1).length/2;
+        }
+        long[] vals=new long[numedges*3];
+        int k=0;
+        for(int q=0; q<queue.size(); q++) {
+            long[] e=nodes.get(queue.get(q)-1);
+            for(int j=0; j<e.length; j+=2) {
+                vals[k++]=q+1;
+                vals[k++]=e[j];
+                vals[k++]=newid[(int)e[j+1]];
+            }
+        }
+        ASTNode edges=m.cmstore.newConstantMatrixDedup(PackedMatrix.makeTable(vals, numedges, 3));
+        return new MDD(m, vars, edges);
+    }
+    
+    
+    //  Returns the MDD constraint on vars equivalent to a short table, where the
+    //  values of the i'th variable are domvals[i] in ascending order. The wildcards
+    //  are expanded node by node: the child of a node for a value is built from
+    //  the short supports that allow the value. Nodes for the same depth and set of
+    //  supports are built once. Returns null if the diagram would have more than 
+    //  maxedges edges.
+    public static ASTNode fromShortTable(Model m, ASTNode vars, PackedMatrix tab, long[][] domvals, long maxedges) {
+        int rows=tab.numRows();
+        if(rows==0) {
+            return new BooleanConstant(false);
+        }
+        int arity=domvals.length;
+        ShortRows sr=new ShortRows(rows, arity);
+        for(int r=0; r<rows; r++) {
+            if(tab.rowLength(r)==0) {
+                return new BooleanConstant(true);
+            }
+            for(int pos=0; pos<tab.rowLength(r); pos++) {
+                int c=tab.getVar(r, pos)-1;
+                sr.vals[r*arity+c]=tab.getVal(r, pos);
+                sr.fixed[r*arity+c]=true;
+                sr.last[r]=Math.max(sr.last[r], c+1);
+            }
+        }
+        
+        HashMap<ArrayList<Long>, Integer> unique=new HashMap<ArrayList<Long>, Integer>();
+        ArrayList<long[]> nodes=new ArrayList<long[]>();
+        ArrayList<HashMap<RowSet, Integer>> memo=new ArrayList<HashMap<RowSet, Integer>>();
+        for(int i=0; i<arity; i++) {
+            memo.add(new HashMap<RowSet, Integer>());
+        }
+        int[] full=new int[arity];
+        int[] all=new int[rows];
+        for(int r=0; r<rows; r++) {
+            all[r]=r;
+        }
+        int root=buildShort(sr, domvals, all, 0, memo, full, unique, nodes);
+        if(root<0) {
+            return new BooleanConstant(false);
+        }
+        long numedges=0;
+        for(long[] e : nodes) {
+            numedges+=e.length/2;
+        }
+        if(numedges>maxedges) {
+            return null;
+        }
+        return makeMDD(m, vars, root, nodes);
+    }
+    
+    //  Short supports as values and flags indexed by row*arity+column, and for each
+    //  row one more than the last column it assigns.
+    private static class ShortRows {
+        long[] vals;
+        boolean[] fixed;
+        int[] last;
+        ShortRows(int rows, int arity) {
+            vals=new long[rows*arity];
+            fixed=new boolean[rows*arity];
+            last=new int[rows];
+        }
+    }
+    
+    //  Sorted set of row indices, as a hash key. 
+    private static class RowSet {
+        int[] rows;
+        RowSet(int[] _rows) {
+            rows=_rows;
+        }
+        public int hashCode() {
+            return Arrays.hashCode(rows);
+        }
+        public boolean equals(Object o) {
+            return o instanceof RowSet && Arrays.equals(rows, ((RowSet)o).rows);
+        }
+    }
+    
+    //  Node for the short supports rowset from column depth onwards, or -1 if they
+    //  allow no assignment. 
+    private static int buildShort(ShortRows sr, long[][] domvals, int[] rowset, int depth, ArrayList<HashMap<RowSet, Integer>> memo, int[] full, HashMap<ArrayList<Long>, Integer> unique, ArrayList<long[]> nodes) {
+        int arity=domvals.length;
+        if(depth==arity) {
+            return 0;
+        }
+        for(int r : rowset) {
+            if(sr.last[r]<=depth) {
+                return fullNode(domvals, depth, full, unique, nodes);   //  Allows anything from here on.
+            }
+        }
+        RowSet rs=new RowSet(rowset);
+        Integer id=memo.get(depth).get(rs);
+        if(id!=null) {
+            return id;
+        }
+        
+        ArrayList<Long> key=new ArrayList<Long>();
+        key.add((long)depth);
+        int[] buf=new int[rowset.length];
+        for(long val : domvals[depth]) {
+            int n=0;
+            for(int r : rowset) {
+                int idx=r*arity+depth;
+                if(!sr.fixed[idx] || sr.vals[idx]==val) {
+                    buf[n++]=r;
+                }
+            }
+            if(n>0) {
+                int child=buildShort(sr, domvals, Arrays.copyOf(buf, n), depth+1, memo, full, unique, nodes);
+                if(child>=0) {
+                    key.add(val);
+                    key.add((long)child);
+                }
+            }
+        }
+        int node=(key.size()==1) ? -1 : addNode(key, unique, nodes);
+        memo.get(depth).put(rs, node);
+        return node;
+    }
+    
+    //  Node at depth allowing every value of every remaining variable.
+    private static int fullNode(long[][] domvals, int depth, int[] full, HashMap<ArrayList<Long>, Integer> unique, ArrayList<long[]> nodes) {
+        if(depth==domvals.length) {
+            return 0;
+        }
+        if(full[depth]==0) {
+            int child=fullNode(domvals, depth+1, full, unique, nodes);
+            ArrayList<Long> key=new ArrayList<Long>();
+            key.add((long)depth);
+            for(long val : domvals[depth]) {
+                key.add(val);
+                key.add((long)child);
+            }
+            full[depth]=addNode(key, unique, nodes);
+        }
+        return full[depth];
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Access to the diagram
+    
+    //  Edges of each node, indexed by node. Each is an array of value, child pairs.
+    private long[][] getNodes() {
+        PackedMatrix e=PackedMatrix.getTable(m, getChild(1), false);
+        int numnodes=0;
+        for(int i=0; i<e.numRows(); i++) {
+            numnodes=Math.max(numnodes, (int)e.get(i, 0));
+        }
+        int[] count=new int[numnodes+1];
+        for(int i=0; i<e.numRows(); i++) {
+            count[(int)e.get(i, 0)]++;
+        }
+        long[][] nodes=new long[numnodes+1][];
+        for(int n=0; n<=numnodes; n++) {
+            nodes[n]=new long[count[n]*2];
+            count[n]=0;
+        }
+        for(int i=0; i<e.numRows(); i++) {
+            int n=(int)e.get(i, 0);
+            nodes[n][count[n]++]=e.get(i, 1);
+            nodes[n][count[n]++]=e.get(i, 2);
+        }
+        return nodes;
+    }
+    
+    //  The tuples of the diagram as a conventional table.
+    public PackedMatrix toTable() {
+        long[][] nodes=getNodes();
+        int arity=getChild(0).numChildren()-1;
+        long[] paths=new long[nodes.length];   //  Number of paths from each node to the terminal.
+        paths[0]=1;
+        for(int n=nodes.length-1; n>=1; n--) {    //  Children are numbered after their parents.
+            for(int j=1; j<nodes[n].length; j+=2) {
+                paths[n]+=paths[(int)nodes[n][j]];
+            }
+        }
+        long[] vals=new long[(int)(paths[1]*arity)];
+        long[] tup=new long[arity];
+        int[] next=new int[1];
+        expand(nodes, 1, 0, tup, vals, next);
+        return (PackedMatrix) PackedMatrix.makeTable(vals, (int)paths[1], arity);
+    }
+    
+    private void expand(long[][] nodes, int n, int depth, long[] tup, long[] vals, int[] next) {
+        if(n==0) {
+            System.arraycopy(tup, 0, vals, next[0], tup.length);
+            next[0]+=tup.length;
+            return;
+        }
+        for(int j=0; j<nodes[n].length; j+=2) {
+            tup[depth]=nodes[n][j];
+            expand(nodes, (int)nodes[n][j+1], depth+1, tup, vals, next);
+        }
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Simplification. When a variable is assigned, restrict the diagram by
+    //   going through the table.
+    
+    public ASTNode simplify() {
+        ASTNode c0=getChild(0);
+        if(!(c0 instanceof CompoundMatrix) || getChild(1).getCategory()!=ASTNode.Constant) {
+            return null;
+        }
+        boolean assigned=false;
+        for(int i=1; i<c0.numChildren(); i++) {
+            if(c0.getChild(i).isConstant()) {
+                assigned=true;
+                break;
+            }
+        }
+        if(!assigned) {
+            return null;
+        }
+        
+        PackedMatrix tab=toTable();
+        ArrayList<ASTNode> vars=new ArrayList<ASTNode>();
+        ArrayList<Integer> cols=new ArrayList<Integer>();
+        for(int i=1; i<c0.numChildren(); i++) {
+            if(!c0.getChild(i).isConstant()) {
+                vars.add(c0.getChild(i));
+                cols.add(i-1);
+            }
+        }
+        
+        ArrayList<Long> vals=new ArrayList<Long>();
+        int rows=0;
+        for(int r=0; r<tab.numRows(); r++) {
+            boolean retain=true;
+            for(int i=1; i<c0.numChildren(); i++) {
+                if(c0.getChild(i).isConstant() && c0.getChild(i).getValue()!=tab.get(r, i-1)) {
+                    retain=false;
+                    break;
+                }
+            }
+            if(retain) {
+                if(vars.size()==0) {
+                    return new BooleanConstant(true);
+                }
+                for(int j=0; j<cols.size(); j++) {
+                    vals.add(tab.get(r, cols.get(j)));
+                }
+                rows++;
+            }
+        }
+        if(rows==0) {
+            return new BooleanConstant(false);
+        }
+        long[] v=new long[vals.size()];
+        for(int i=0; i<v.length; i++) {
+            v[i]=vals.get(i);
+        }
+        for(int i=0; i<vars.size(); i++) {
+            vars.get(i).setParent(null);
+        }
+        return fromTable(m, CompoundMatrix.make(vars), (PackedMatrix) PackedMatrix.makeTable(v, rows, vars.size()));
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Output
+    
+    static long mddcount=1;   //  Counter to get unique name for tuple list in Minion output.
+    
+    //  Name of the tuple list written for each diagram in the current Minion output, 
+    //  so MDDs that share a diagram share the list. 
+    private static HashMap<String, String> minionLists=new HashMap<String, String>();
+    
+    public static void startMinionOutput() {
+        minionLists.clear();
+    }
+    
+    //  Minion's mddc constraint builds its diagram from a list of tuples.
+    public void toMinion(BufferedWriter b, boolean bool_context) throws IOException
+    {
+        assert bool_context;
+        String name=minionLists.get(getChild(1).toString());
+        if(name==null) {
+            name="mdd"+mddcount;
+            mddcount++;
+            minionLists.put(getChild(1).toString(), name);
+            
+            PackedMatrix tab=toTable();
+            b.append("**TUPLELIST**\n");
+            b.append(name);
+            b.append(" ");
+            b.append(String.valueOf(tab.numRows()));
+            b.append(" ");
+            b.append(String.valueOf(tab.rowLength(0)));
+            b.append("\n");
+            for(int i=0; i<tab.numRows(); i++) {
+                for(int j=0; j<tab.rowLength(i); j++) {
+                    b.append(String.valueOf(tab.get(i, j)));
+                    b.append(" ");
+                }
+                b.append("\n");
+            }
+            b.append("**CONSTRAINTS**\n");
+        }
+        
+        b.append("mddc(");
+        getChild(0).toMinion(b, false);
+        b.append(", ");
+        b.append(name);
+        b.append(")");
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   SAT encoding. One SAT variable for each node, true when the assignment
+    //   reaches the node. The root is reached, a reached node has one of its
+    //   edges' values, and a node that is reached and whose variable takes a value
+    //   reaches the child on that value's edge. The encoding of the variable allows
+    //   only one value, so values with no edge need no clauses, and the size is
+    //   linear in the number of edges.
+    
+    public void toSAT(Sat satModel) throws IOException {
+        long[][] nodes=getNodes();
+        long[] nodevars=new long[nodes.length];
+        int[] depth=new int[nodes.length];
+        for(int n=1; n<nodes.length; n++) {
+            nodevars[n]=satModel.createAuxSATVariable();
+        }
+        satModel.addClause(nodevars[1]);
+        
+        for(int n=1; n<nodes.length; n++) {   //  Parents are numbered before their children.
+            ASTNode var=getChild(0).getChild(depth[n]+1);
+            ArrayList<Long> some=new ArrayList<Long>(nodes[n].length/2+1);
+            some.add(-nodevars[n]);
+            
+            for(int j=0; j<nodes[n].length; j+=2) {
+                long lit=var.directEncode(satModel, nodes[n][j]);
+                int c=(int)nodes[n][j+1];
+                if(c!=0) {
+                    depth[c]=depth[n]+1;
+                    satModel.addClause(-nodevars[n], -lit, nodevars[c]);
+                }
+                some.add(lit);
+            }
+            satModel.addClause(some);
+        }
+    }
+    
+    //  Not made in a reified context by TransformTableToMDD, but encode as the table if it is.
+    public void toSATWithAuxVar(Sat satModel, long auxVar) throws IOException {
+        new Table(m, getChild(0), toTable()).toSATWithAuxVar(satModel, auxVar);
+    }
+}
@@ -75,6 +75,10 @@ public class NegativeTable extends ASTNodeC
     public ASTNode simplify() {
         ASTNode c0=getChildConst(0);
         if((c0 instanceof CompoundMatrix || c0 instanceof EmptyMatrix) && (getChild(1).getCategory()==ASTNode.Constant)) {
+            if(Table.packedUnfiltered(m, c0, getChild(1))) {
+                return null;
+            }
+            
             ASTNode table=getChildConst(1);
             if(table==getChild(1) && (table instanceof CompoundMatrix || table instanceof EmptyMatrix)) {
                 // Also of category constant, must be a matrix literal. 
@@ -228,15 +232,15 @@ public class NegativeTable extends ASTNodeC
 	
 	public void toSAT(Sat satModel) throws IOException {
         ASTNode vars = getChild(0);
-        ASTNode tab=getChildConst(1);
+        PackedMatrix tab=PackedMatrix.getTable(m, getChild(1), false);
         
         // Direct encoding.
         
-        for (int i =1; i < tab.numChildren(); i++) {
+        for (int i =0; i < tab.numRows(); i++) {
             ArrayList<Long> cl=new ArrayList<Long>();
             
-            for(int j=1; j<tab.getChild(i).numChildren(); j++) {
-                long lit=vars.getChild(j).directEncode(satModel, tab.getChild(i).getChild(j).getValue());
+            for(int j=0; j<tab.rowLength(i); j++) {
+                long lit=vars.getChild(j+1).directEncode(satModel, tab.get(i, j));
                 cl.add(-lit);
             }
             satModel.addClause(cl);
@@ -245,15 +249,15 @@ public class NegativeTable extends ASTNodeC
     
     public void toSATWithAuxVar(Sat satModel, long reifyVar) throws IOException {
         ASTNode vars = getChild(0);
-        ASTNode tab=getChildConst(1);
+        PackedMatrix tab=PackedMatrix.getTable(m, getChild(1), false);
         
         ArrayList<Long> newVars=new ArrayList<Long>();
         
-        for (int i =1; i < tab.numChildren(); i++) {
+        for (int i =0; i < tab.numRows(); i++) {
             ArrayList<Long> cl=new ArrayList<Long>();
             
-            for(int j=1; j<tab.getChild(i).numChildren(); j++) {
-                long lit=vars.getChild(j).directEncode(satModel, tab.getChild(i).getChild(j).getValue());
+            for(int j=0; j<tab.rowLength(i); j++) {
+                long lit=vars.getChild(j+1).directEncode(satModel, tab.get(i, j));
                 cl.add(-lit);   //  Positive literals, unlike the direct encoding above. 
             }
             
@@ -0,0 +1,493 @@
+package savilerow.expression;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import java.util.*;
+import java.io.*;
+import savilerow.model.*;
+
+////////////////////////////////////////////////////////////////////////////////
+//
+//   Constant matrix of tuples stored in flat primitive arrays, as an alternative
+//   to a CompoundMatrix of NumberConstants. Either a conventional table (a 2-d
+//   matrix of values) or a table of short supports (3-d, each short support is
+//   a list of [variable, value] pairs with variables indexed from 1).
+//
+//   Only lives in the ConstantMatrixStore. The equivalent matrix literal is
+//   built by toAST when a transformation needs it. Immutable, and the hash is a
+//   digest of the contents computed once.
+
+public class PackedMatrix extends ASTNode
+{
+    public static final long serialVersionUID = 1L;
+    
+    private final boolean shorttable;
+    private final int rows;
+    private final int arity;      //  Row length for conventional tables.
+    private final int[] rowstart;   //  Short tables only: row r is rowstart[r] .. rowstart[r+1]-1 in vars and vals.
+    private final int[] vars;       //  Short tables only.
+    
+    //  Values, in one of the two arrays.
+    private final int[] ivals;
+    private final long[] lvals;
+    
+    //  Added to every value in each column (each variable of a short table, indexed from 0),
+    //  or null. Set only on views made by shiftColumns, which share the arrays above. 
+    private final long[] offset;
+    
+    private final long digest;
+    
+    private PackedMatrix(boolean _shorttable, int _rows, int _arity, int[] _rowstart, int[] _vars, long[] vals, int numvals) {
+        shorttable=_shorttable;
+        rows=_rows;
+        arity=_arity;
+        rowstart=_rowstart;
+        vars=_vars;
+        
+        boolean fitsint=true;
+        for(int i=0; i<numvals; i++) {
+            if(vals[i]<Integer.MIN_VALUE || vals[i]>Integer.MAX_VALUE) {
+                fitsint=false;
+                break;
+            }
+        }
+        if(fitsint) {
+            ivals=new int[numvals];
+            for(int i=0; i<numvals; i++) {
+                ivals[i]=(int)vals[i];
+            }
+            lvals=null;
+        }
+        else {
+            ivals=null;
+            lvals=Arrays.copyOf(vals, numvals);
+        }
+        offset=null;
+        
+        digest=computeDigest();
+    }
+    
+    //  Sharing constructor for copy.
+    private PackedMatrix(PackedMatrix p) {
+        shorttable=p.shorttable;
+        rows=p.rows;
+        arity=p.arity;
+        rowstart=p.rowstart;
+        vars=p.vars;
+        ivals=p.ivals;
+        lvals=p.lvals;
+        offset=p.offset;
+        digest=p.digest;
+    }
+    
+    //  Sharing constructor for shiftColumns.
+    private PackedMatrix(PackedMatrix p, long[] _offset) {
+        shorttable=p.shorttable;
+        rows=p.rows;
+        arity=p.arity;
+        rowstart=p.rowstart;
+        vars=p.vars;
+        ivals=p.ivals;
+        lvals=p.lvals;
+        offset=_offset;
+        digest=computeDigest();
+    }
+    
+    //  Make a conventional table from rows*arity values in reading order.
+    //  Returns a matrix literal instead when the table is empty.
+    public static ASTNode makeTable(long[] vals, int rows, int arity) {
+        if(rows==0 || arity==0) {
+            return new PackedMatrix(false, rows, arity, null, null, vals, rows*arity).toAST();
+        }
+        return new PackedMatrix(false, rows, arity, null, null, vals, rows*arity);
+    }
+    
+    //  Make a short table. Row r has the pairs (vars[k], vals[k]) for rowstart[r] <= k < rowstart[r+1].
+    //  Returns a matrix literal instead when the table or any short support is empty.
+    public static ASTNode makeShortTable(int[] rowstart, int[] vars, long[] vals, int rows) {
+        PackedMatrix p=new PackedMatrix(true, rows, 0, Arrays.copyOf(rowstart, rows+1), Arrays.copyOf(vars, rowstart[rows]), vals, rowstart[rows]);
+        if(rows==0) {
+            return p.toAST();
+        }
+        for(int r=0; r<rows; r++) {
+            if(rowstart[r]==rowstart[r+1]) {
+                return p.toAST();
+            }
+        }
+        return p;
+    }
+    
+    //  Pack a matrix literal that represents a table (or short table).
+    //  Returns the matrix literal unchanged if it is not a non-empty table of numbers.
+    public static ASTNode fromAST(ASTNode tab, boolean shorttable) {
+        PackedMatrix p=pack(tab, shorttable);
+        if(p==null) {
+            return tab;
+        }
+        for(int r=0; r<p.rows; r++) {
+            if(p.rowLength(r)==0) {
+                return tab;
+            }
+        }
+        return p;
+    }
+    
+    //  Get a table (the second child of a table constraint) in packed form. If it refers to
+    //  a packed matrix in the constant matrix store, the AST is not materialised.
+    public static PackedMatrix getTable(Model m, ASTNode tab, boolean shorttable) {
+        if(tab instanceof Identifier) {
+            PackedMatrix p=m.cmstore.getConstantMatrixPacked(((Identifier)tab).getName());
+            if(p!=null) {
+                return p;
+            }
+            tab=((Identifier)tab).getCM();
+        }
+        if(tab instanceof PackedMatrix) {
+            return (PackedMatrix) tab;
+        }
+        if(tab instanceof EmptyMatrix) {
+            return new PackedMatrix(shorttable, 0, 0, new int[1], new int[0], new long[0], 0);
+        }
+        PackedMatrix p=pack(tab, shorttable);
+        assert p!=null : "Table contains something other than numbers: "+tab;
+        return p;
+    }
+    
+    private static PackedMatrix pack(ASTNode tab, boolean shorttable) {
+        if(!(tab instanceof CompoundMatrix)) {
+            return null;
+        }
+        int rows=tab.numChildren()-1;
+        if(shorttable) {
+            int[] rowstart=new int[rows+1];
+            for(int r=0; r<rows; r++) {
+                ASTNode tup=tab.getChild(r+1);
+                if(!(tup instanceof CompoundMatrix || tup instanceof EmptyMatrix)) {
+                    return null;
+                }
+                rowstart[r+1]=rowstart[r]+tup.numChildren()-1;
+            }
+            int[] vars=new int[rowstart[rows]];
+            long[] vals=new long[rowstart[rows]];
+            for(int r=0; r<rows; r++) {
+                ASTNode tup=tab.getChild(r+1);
+                for(int j=1; j<tup.numChildren(); j++) {
+                    ASTNode pair=tup.getChild(j);
+                    if(pair.numChildren()!=3 || !(pair.getChild(1) instanceof NumberConstant) || !(pair.getChild(2) instanceof NumberConstant)) {
+                        return null;
+                    }
+                    vars[rowstart[r]+j-1]=(int)pair.getChild(1).getValue();
+                    vals[rowstart[r]+j-1]=pair.getChild(2).getValue();
+                }
+            }
+            return new PackedMatrix(true, rows, 0, rowstart, vars, vals, rowstart[rows]);
+        }
+        else {
+            if(!(tab.getChild(1) instanceof CompoundMatrix)) {
+                return null;
+            }
+            int arity=tab.getChild(1).numChildren()-1;
+            long[] vals=new long[rows*arity];
+            for(int r=0; r<rows; r++) {
+                ASTNode tup=tab.getChild(r+1);
+                if(!(tup instanceof CompoundMatrix) || tup.numChildren()-1!=arity) {
+                    return null;
+                }
+                for(int j=1; j<=arity; j++) {
+                    if(!(tup.getChild(j) instanceof NumberConstant)) {
+                        return null;
+                    }
+                    vals[r*arity+j-1]=tup.getChild(j).getValue();
+                }
+            }
+            return new PackedMatrix(false, rows, arity, null, null, vals, rows*arity);
+        }
+    }
+    
+    //  The same table with its columns (or short table variables) reordered:
+    //  column c becomes column perm[c], both counted from 0.
+    public PackedMatrix permuteColumns(int[] perm) {
+        long[] v=new long[numValues()];
+        if(shorttable) {
+            int[] nvars=new int[vars.length];
+            for(int k=0; k<vars.length; k++) {
+                nvars[k]=perm[vars[k]-1]+1;
+                v[k]=value(k);
+            }
+            return new PackedMatrix(true, rows, 0, rowstart, nvars, v, v.length);
+        }
+        for(int r=0; r<rows; r++) {
+            for(int c=0; c<arity; c++) {
+                v[r*arity+perm[c]]=value(r*arity+c);
+            }
+        }
+        return new PackedMatrix(false, rows, arity, null, null, v, v.length);
+    }
+    
+    //  The same table with d[c] added to every value in column c (or of variable c+1 of 
+    //  a short table). The values are not copied. 
+    public PackedMatrix shiftColumns(long[] d) {
+        long[] o=new long[d.length];
+        for(int c=0; c<d.length; c++) {
+            o[c]=d[c]+((offset!=null) ? offset[c] : 0);
+        }
+        return new PackedMatrix(this, o);
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Access to the contents
+    
+    public boolean isShortTable() {
+        return shorttable;
+    }
+    
+    public int numRows() {
+        return rows;
+    }
+    
+    //  Length of a row: number of values, or number of pairs for a short table.
+    public int rowLength(int row) {
+        if(shorttable) {
+            return rowstart[row+1]-rowstart[row];
+        }
+        return arity;
+    }
+    
+    //  Conventional tables: value at column col of row.
+    public long get(int row, int col) {
+        return value(row*arity+col);
+    }
+    
+    //  Short tables: variable (indexed from 1) of the pair at position pos of row.
+    public int getVar(int row, int pos) {
+        return vars[rowstart[row]+pos];
+    }
+    
+    //  Short tables: value of the pair at position pos of row.
+    public long getVal(int row, int pos) {
+        return value(rowstart[row]+pos);
+    }
+    
+    private long value(int idx) {
+        long v=(ivals!=null) ? ivals[idx] : lvals[idx];
+        if(offset!=null) {
+            v+=offset[shorttable ? vars[idx]-1 : idx%arity];
+        }
+        return v;
+    }
+    
+    private int numValues() {
+        return (ivals!=null) ? ivals.length : lvals.length;
+    }
+    
+    //  All row lengths the same
+    @Override
+    public boolean isRegularMatrix() {
+        if(shorttable) {
+            for(int r=1; r<rows; r++) {
+                if(rowLength(r)!=rowLength(0)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    //  Build the equivalent matrix literal.
+    public ASTNode toAST() {
+        ArrayList<ASTNode> tups=new ArrayList<ASTNode>(rows);
+        for(int r=0; r<rows; r++) {
+            ArrayList<ASTNode> tup=new ArrayList<ASTNode>(rowLength(r));
+            for(int j=0; j<rowLength(r); j++) {
+                if(shorttable) {
+                    tup.add(CompoundMatrix.make(NumberConstant.make(getVar(r, j)), NumberConstant.make(getVal(r, j))));
+                }
+                else {
+                    tup.add(NumberConstant.make(get(r, j)));
+                }
+            }
+            tups.add(CompoundMatrix.make(tup));
+        }
+        return CompoundMatrix.make(tups);
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   ASTNode methods
+    
+    public ASTNode copy() {
+        return new PackedMatrix(this);
+    }
+    
+    private long computeDigest() {
+        long h=shorttable ? 0x9E3779B97F4A7C15L : 0x632BE59BD9B4E019L;
+        h=mix(h, rows);
+        h=mix(h, arity);
+        for(int i=0; i<numValues(); i++) {
+            h=mix(h, value(i));
+        }
+        if(shorttable) {
+            for(int i=0; i<vars.length; i++) {
+                h=mix(h, vars[i]);
+            }
+            for(int r=1; r<=rows; r++) {
+                h=mix(h, rowstart[r]);
+            }
+        }
+        return h;
+    }
+    
+    private static long mix(long h, long v) {
+        h=(h^v)*0x100000001B3L;
+        return h^(h>>>29);
+    }
+    
+    @Override
+    public boolean equals(Object b) {
+        if(!(b instanceof PackedMatrix)) {
+            return false;
+        }
+        PackedMatrix p=(PackedMatrix)b;
+        if(p.digest!=digest || p.shorttable!=shorttable || p.rows!=rows || p.arity!=arity || p.numValues()!=numValues()) {
+            return false;
+        }
+        if(shorttable && !(Arrays.equals(p.rowstart, rowstart) && Arrays.equals(p.vars, vars))) {
+            return false;
+        }
+        for(int i=0; i<numValues(); i++) {
+            if(p.value(i)!=value(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public int hashCode() {
+        return (int)(digest^(digest>>>32));
+    }
+    
+    public boolean isNumerical() {
+        return true;
+    }
+    
+    @Override public boolean isMatrixLiteral() {
+        return true;
+    }
+    
+    public int getDimension() {
+        return shorttable ? 3 : 2;
+    }
+    
+    //  Bounds of all numbers in the matrix (including variable indices in short tables).
+    public Intpair getBounds() {
+        long lower=Long.MAX_VALUE;
+        long upper=Long.MIN_VALUE;
+        for(int i=0; i<numValues(); i++) {
+            long v=value(i);
+            if(v<lower) lower=v;
+            if(v>upper) upper=v;
+        }
+        if(shorttable) {
+            for(int i=0; i<vars.length; i++) {
+                if(vars[i]<lower) lower=vars[i];
+                if(vars[i]>upper) upper=vars[i];
+            }
+        }
+        return new Intpair(lower, upper);
+    }
+    
+    //  Same as CompoundMatrix.getIndexDomainsIrregular for the equivalent matrix literal.
+    public ArrayList<ASTNode> getIndexDomainsIrregular() {
+        ArrayList<ASTNode> out=new ArrayList<ASTNode>();
+        out.add(new IntegerDomain(new Range(NumberConstant.make(1), NumberConstant.make(rows))));
+        if(isRegularMatrix()) {
+            out.add(new IntegerDomain(new Range(NumberConstant.make(1), NumberConstant.make(rowLength(0)))));
+        }
+        else {
+            out.add(new IntegerDomain(new Range(null, null)));
+        }
+        if(shorttable) {
+            out.add(new IntegerDomainConcrete(1, 2));
+        }
+        return out;
+    }
+    
+    //  Same output as the equivalent matrix literal.
+    public String toString() {
+        StringBuilder st=new StringBuilder();
+        st.append("[");
+        for(int r=0; r<rows; r++) {
+            st.append("[");
+            for(int j=0; j<rowLength(r); j++) {
+                if(shorttable) {
+                    st.append("[");
+                    st.append(getVar(r, j));
+                    st.append(", ");
+                    st.append(getVal(r, j));
+                    st.append("]");
+                }
+                else {
+                    st.append(get(r, j));
+                }
+                if(j<rowLength(r)-1) {
+                    st.append(shorttable ? ", \n" : ", ");
+                }
+            }
+            st.append("]");
+            if(r<rows-1) {
+                st.append(", \n");
+            }
+        }
+        st.append("]");
+        return st.toString();
+    }
+    
+    public void toMinion(BufferedWriter b, boolean bool_context) throws IOException {
+        assert !bool_context;
+        b.append("[");
+        for(int r=0; r<rows; r++) {
+            b.append("[");
+            for(int j=0; j<rowLength(r); j++) {
+                if(shorttable) {
+                    b.append("[");
+                    b.append(String.valueOf(getVar(r, j)));
+                    b.append(", ");
+                    b.append(String.valueOf(getVal(r, j)));
+                    b.append("]");
+                }
+                else {
+                    b.append(String.valueOf(get(r, j)));
+                }
+                if(j<rowLength(r)-1) {
+                    b.append(", ");
+                }
+            }
+            b.append("]");
+            if(r<rows-1) {
+                b.append(", ");
+            }
+        }
+        b.append("]");
+    }
+}
@@ -71,9 +71,28 @@ public class Table extends ASTNodeC
         return true;
     }
     
+    //  A packed table is not empty, so simplify has nothing to do unless some
+    //  variable in the scope is assigned and the table needs filtering. Used by
+    //  TableShort and NegativeTable as well, to avoid building the matrix literal. 
+    static boolean packedUnfiltered(Model m, ASTNode scope, ASTNode tab) {
+        if(!(scope instanceof CompoundMatrix) || !m.cmstore.isPackedTable(tab)) {
+            return false;
+        }
+        for(int i=1; i<scope.numChildren(); i++) {
+            if(scope.getChild(i).isConstant()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     public ASTNode simplify() {
         ASTNode c0=getChildConst(0);
         if((c0 instanceof CompoundMatrix || c0 instanceof EmptyMatrix) && (getChild(1).getCategory()==ASTNode.Constant)) {
+            if(c0.numChildren()>2 && packedUnfiltered(m, c0, getChild(1))) {
+                return null;
+            }
+            
             ASTNode table=getChildConst(1);
             if(table==getChild(1) && (table instanceof CompoundMatrix || table instanceof EmptyMatrix)) {
                 // Also of category constant, must be a matrix literal. 
@@ -290,21 +309,19 @@ public class Table extends ASTNodeC
 	//   these new SAT variables. Allows reification. 
 	
 	public void toSATHelper(Sat satModel, long auxVar, boolean toSATWithAuxVar) throws IOException {
-        ASTNode tab=getChildConst(1);
+        PackedMatrix tab=PackedMatrix.getTable(m, getChild(1), false);
         
-        ArrayList<Long> newSatVars = new ArrayList<Long>(tab.numChildren());
+        ArrayList<Long> newSatVars = new ArrayList<Long>(tab.numRows());
         
-        for (int i=1; i < tab.numChildren(); i++) {
-            ASTNode tuple = tab.getChild(i);
-            
+        for (int i=0; i < tab.numRows(); i++) {
             // One sat variable for each tuple. 
             long auxSatVar = satModel.createAuxSATVariable();
             
             ArrayList<Long> iffclause=new ArrayList<Long>();
             
-            for (int j =1; j < tuple.numChildren(); j++) {
-                long value=tuple.getChild(j).getValue();
-                long satLit=getChild(0).getChild(j).directEncode(satModel, value);
+            for (int j =0; j < tab.rowLength(i); j++) {
+                long value=tab.get(i, j);
+                long satLit=getChild(0).getChild(j+1).directEncode(satModel, value);
                 
                 satModel.addClause(-auxSatVar, satLit);
                 iffclause.add(-satLit);
@@ -332,9 +349,14 @@ public class Table extends ASTNodeC
     //   Same as Bacchus except for final clause. 
     
     public void toSATHelper2(Sat satModel) throws IOException {
-        ASTNode tab=getChildConst(1);
+        PackedMatrix tab=PackedMatrix.getTable(m, getChild(1), false);
         
-        ArrayList<ASTNode> tups=tab.getChildren();
+        //  Indices of the valid tuples in tab. 
+        int numtups=tab.numRows();
+        int[] tups=new int[numtups];
+        for(int i=0; i<numtups; i++) {
+            tups[i]=i;
+        }
         
         ArrayList<ASTNode> vardoms=new ArrayList<ASTNode>();
         for(int i=1; i<getChild(0).numChildren(); i++) {
@@ -353,22 +375,22 @@ public class Table extends ASTNodeC
             }
         }
         
-        ArrayList<Long> tupleSatVars = new ArrayList<Long>(tups.size());
+        ArrayList<Long> tupleSatVars = new ArrayList<Long>(numtups);
         
         // Make a SAT variable for each tuple. 
-        for(int i=1; i < tups.size(); i++) {
+        for(int i=0; i < numtups; i++) {
             // Filter out tuples that are not valid.
             boolean valid=true;
             for(int var=1; var<getChild(0).numChildren(); var++) {
-                if(!vardoms.get(var-1).containsValue(tups.get(i).getChild(var).getValue())) {
+                if(!vardoms.get(var-1).containsValue(tab.get(tups[i], var-1))) {
                     valid=false;
                     break;
                 }
             }
             
             if(!valid) {
-                tups.set(i, tups.get(tups.size()-1));
-                tups.remove(tups.size()-1);
+                tups[i]=tups[numtups-1];
+                numtups--;
                 i--;
                 continue;
             }
@@ -391,8 +413,8 @@ public class Table extends ASTNodeC
                 clauses.add(new ArrayList<Long>());
             }
             
-            for(int tup=1; tup<tups.size(); tup++) {
-                long valintup=tups.get(tup).getChild(var).getValue();
+            for(int tup=0; tup<numtups; tup++) {
+                long valintup=tab.get(tups[tup], var-1);
                 
                 // Find the value in the domain
                 int childidx=-1;   /// out of bounds
@@ -409,12 +431,12 @@ public class Table extends ASTNodeC
                 if(childidx==-1) {
                     // Not in domain. Current tuple is invalid.
                     assert false : "Should be no invalid tuples";
-                    satModel.addClause(-tupleSatVars.get(tup-1));
+                    satModel.addClause(-tupleSatVars.get(tup));
                 }
                 else {
                     // Add the SAT var for this tuple to one of the clauses.
                     assert vals.get(childidx)==valintup;
-                    clauses.get(childidx).add(tupleSatVars.get(tup-1));
+                    clauses.get(childidx).add(tupleSatVars.get(tup));
                 }
             }
             
@@ -80,6 +80,10 @@ public class TableShort extends ASTNodeC
     public ASTNode simplify() {
         ASTNode c0=getChildConst(0);
         if( (c0 instanceof CompoundMatrix || c0 instanceof EmptyMatrix) && (getChild(1).getCategory()==ASTNode.Constant)) {
+            if(Table.packedUnfiltered(m, c0, getChild(1))) {
+                return null;
+            }
+            
             ASTNode table=getChildConst(1);
             
             if(getChild(1) instanceof CompoundMatrix || getChild(1) instanceof EmptyMatrix) {
@@ -285,21 +289,19 @@ public class TableShort extends ASTNodeC
 	//   these new SAT variables iff reification variable. 
 	
 	public void toSATHelper(Sat satModel, long auxVar) throws IOException {
-        ASTNode tab=getChildConst(1);
+        PackedMatrix tab=PackedMatrix.getTable(m, getChild(1), true);
         
-        ArrayList<Long> newSatVars = new ArrayList<Long>(tab.numChildren());
+        ArrayList<Long> newSatVars = new ArrayList<Long>(tab.numRows());
         
-        for (int i=1; i < tab.numChildren(); i++) {
-            ASTNode tuple = tab.getChild(i);
-            
+        for (int i=0; i < tab.numRows(); i++) {
             // One sat variable for each tuple. 
             long auxSatVar = satModel.createAuxSATVariable();
             
-            ArrayList<Long> iffclause=new ArrayList<Long>(tuple.numChildren()-1);
+            ArrayList<Long> iffclause=new ArrayList<Long>(tab.rowLength(i));
             
-            for (int j =1; j < tuple.numChildren(); j++) {
-                long varidx=tuple.getChild(j).getChild(1).getValue();
-                long value=tuple.getChild(j).getChild(2).getValue();
+            for (int j =0; j < tab.rowLength(i); j++) {
+                long varidx=tab.getVar(i, j);
+                long value=tab.getVal(i, j);
                 
                 long satLit=getChild(0).getChild((int)varidx).directEncode(satModel, value);
                 
@@ -321,11 +323,16 @@ public class TableShort extends ASTNodeC
     //   Same as Bacchus except for final clause. 
     
     public void toSATHelper2(Sat satModel) throws IOException {
-        ASTNode tab=getChildConst(1);
+        PackedMatrix tab=PackedMatrix.getTable(m, getChild(1), true);
         
         int varcount = getChild(0).numChildren()-1;
         
-        ArrayList<ASTNode> tups=tab.getChildren();
+        //  Indices of the valid tuples in tab. 
+        int numtups=tab.numRows();
+        int[] tups=new int[numtups];
+        for(int i=0; i<numtups; i++) {
+            tups[i]=i;
+        }
         
         ArrayList<ASTNode> vardoms=new ArrayList<ASTNode>();
         for(int i=1; i<=varcount; i++) {
@@ -344,17 +351,17 @@ public class TableShort extends ASTNodeC
             }
         }
         
-        ArrayList<Long> tupleSatVars = new ArrayList<Long>(tups.size());
+        ArrayList<Long> tupleSatVars = new ArrayList<Long>(numtups);
         
         // Make a SAT variable for each tuple. 
-        for(int i=1; i < tups.size(); i++) {
+        for(int i=0; i < numtups; i++) {
             // Filter out tuples that are not valid.
             boolean valid=true;
-            ASTNode t = tups.get(i);
-            int length = t.numChildren();
-            for(int j = 1; j < length; ++j) {
-              long var = t.getChild(j).getChild(1).getValue()-1;
-              long val = t.getChild(j).getChild(2).getValue();
+            int t = tups[i];
+            int length = tab.rowLength(t);
+            for(int j = 0; j < length; ++j) {
+              long var = tab.getVar(t, j)-1;
+              long val = tab.getVal(t, j);
               if(!vardoms.get((int)var).containsValue(val)) {
                 valid = false;
                 break;
@@ -362,8 +369,8 @@ public class TableShort extends ASTNodeC
             }
             
             if(!valid) {
-                tups.set(i, tups.get(tups.size()-1));
-                tups.remove(tups.size()-1);
+                tups[i]=tups[numtups-1];
+                numtups--;
                 i--;
                 continue;
             }
@@ -374,13 +381,11 @@ public class TableShort extends ASTNodeC
             
             // If command line flag, generate an iff to define the new sat variable.
             if(CmdFlags.short_tab_sat_extra) {
-                ArrayList<Long> c=new ArrayList<Long>(tups.get(i).numChildren()-1);
+                ArrayList<Long> c=new ArrayList<Long>(length);
                 
                 // Get the literals for this tuple into c. 
-                for(int j=1; j<t.numChildren(); j++) {
-                    ASTNode pair=t.getChild(j);
-                    // System.out.print(pair);
-                    c.add(-getChild(0).getChild((int) pair.getChild(1).getValue()).directEncode(satModel, pair.getChild(2).getValue()));
+                for(int j=0; j<length; j++) {
+                    c.add(-getChild(0).getChild(tab.getVar(t, j)).directEncode(satModel, tab.getVal(t, j)));
                 }
                 
                 satModel.addClauseReified(c, -newSatVar);
@@ -407,25 +412,25 @@ public class TableShort extends ASTNodeC
             }
           }
           
-          for(int tup=1; tup < tups.size(); tup++) {
-            ASTNode t = tups.get(tup);
-            int length = t.numChildren();
+          for(int tup=0; tup < numtups; tup++) {
+            int t = tups[tup];
+            int length = tab.rowLength(t);
             // Track used variables
             ArrayList<Boolean> used_vars = new ArrayList<Boolean>(Collections.nCopies(varcount, false));
-            for(int j = 1; j < length; ++j) {
-              int var = (int)(t.getChild(j).getChild(1).getValue() - 1);
-              long val = t.getChild(j).getChild(2).getValue();
+            for(int j = 0; j < length; ++j) {
+              int var = tab.getVar(t, j) - 1;
+              long val = tab.getVal(t, j);
               assert used_vars.get(var) == false;
               used_vars.set(var, true);
               int loc = Collections.binarySearch(vallist.get(var), val);
               assert vallist.get(var).get(loc) == val;
-              expclauselist.get(var).get(loc).add(tupleSatVars.get(tup-1));
+              expclauselist.get(var).get(loc).add(tupleSatVars.get(tup));
             }
             
             for(int j = 0; j < varcount; ++j)
             {
               if(used_vars.get(j) == false) {
-                impclauselist.get(j).add(tupleSatVars.get(tup-1));
+                impclauselist.get(j).add(tupleSatVars.get(tup));
               }
             }
           }
@@ -140,7 +140,7 @@ public class ToVariable extends ASTNodeC
 	                
 	                ASTNode newTable = tmt.makeTableLong(a, Long.MAX_VALUE, Long.MAX_VALUE);
 	                
-	                tmt.saveToCacheNormalised(ret.expstring, a, newTable);
+	                tmt.saveToCacheNormalised(ret.key, a, newTable);
 	                
 	                return newTable;
 	            }
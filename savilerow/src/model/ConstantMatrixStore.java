@@ -37,6 +37,10 @@ import savilerow.*;
 //  updated when copying. 
 //  No need for simplify, substitute or any other operation. 
 
+//  Tables made by tabulation may be stored as a PackedMatrix. The matrix literal
+//  is only built when getConstantMatrix is called for it, and then replaces the
+//  PackedMatrix for all names of the matrix. 
+
 public class ConstantMatrixStore 
 {
     // Map names to matrix literals (may contain a matrix literal more than once)
@@ -92,9 +96,49 @@ public class ConstantMatrixStore
     
     public ASTNode getConstantMatrix(String name) {
         assert cm.containsKey(name);
+        if(cm.get(name) instanceof PackedMatrix) {
+            materialise(name);
+        }
         return cm.get(name);
     }
     
+    //  Returns the stored PackedMatrix, or null if the matrix is not packed.
+    //  Does not build the matrix literal. 
+    public PackedMatrix getConstantMatrixPacked(String name) {
+        assert cm.containsKey(name);
+        ASTNode mat=cm.get(name);
+        if(mat instanceof PackedMatrix) {
+            return (PackedMatrix) mat;
+        }
+        return null;
+    }
+    
+    //  Is a (the second child of a table constraint) an identifier referring to a
+    //  PackedMatrix? If so, getChildConst on it would build the matrix literal. 
+    public boolean isPackedTable(ASTNode a) {
+        return a instanceof Identifier && a.getCategory()==ASTNode.Constant
+            && getConstantMatrixPacked(((Identifier)a).getName())!=null;
+    }
+    
+    //  Replace a PackedMatrix with the equivalent matrix literal under all its names.
+    //  Does not add or remove keys in cm, so it is safe while iterating over cm.keySet(). 
+    private void materialise(String name) {
+        ASTNode packed=cm.get(name);
+        ASTNode matlit=((PackedMatrix)packed).toAST();
+        HashSet<String> names=cm_names.remove(packed);
+        
+        if(cm_names.containsKey(matlit)) {
+            matlit=cm.get(cm_names.get(matlit).iterator().next());
+            cm_names.get(matlit).addAll(names);
+        }
+        else {
+            cm_names.put(matlit, names);
+        }
+        for(String n : names) {
+            cm.put(n, matlit);
+        }
+    }
+    
     // Replace an existing entry
     public void setConstantMatrix(String name, ASTNode replacement) {
         removeEntry(name);
@@ -225,7 +269,10 @@ public class ConstantMatrixStore
     // Get max and min of the values in a compound matrix/empty matrix.
     ///   Why not use getBounds?
     Intpair getConstantMatrixBounds(ASTNode mat) {
-        if (mat instanceof CompoundMatrix) {
+        if (mat instanceof PackedMatrix) {
+            return mat.getBounds();
+        }
+        else if (mat instanceof CompoundMatrix) {
             Intpair a = null;
 
             for (int i =1; i < mat.numChildren(); i++) {
@@ -253,7 +300,7 @@ public class ConstantMatrixStore
     // Makes lettings where a given (or letting--really??) statement has 'matrix indexed by [int(a..b)...]'
     // and we don't know a and b, but can determine it from the index domains of the letting/param constant matrix.
     public ArrayList<ASTNode> makeLettingsConstantMatrix(String matname) {
-        ASTNode mat = cm.get(matname);
+        ASTNode mat = getConstantMatrix(matname);
         ASTNode dom = m.global_symbols.getDomain(matname);
         
         ArrayList<ASTNode> idxdoms = mat.getIndexDomains();
@@ -301,7 +348,7 @@ public class ConstantMatrixStore
         // Uses the method below to correct the indices of the matrix literal
         // to line up with the domain (that may have come from a given, and
         // therefore may be different to the domain in a letting or the index domains in the matrix literal).
-        ASTNode mat = cm.get(matname).copy();    //  Copy here to avoid changing in-place a key in cm_names
+        ASTNode mat = getConstantMatrix(matname).copy();    //  Copy here to avoid changing in-place a key in cm_names
         ASTNode dom = m.global_symbols.getDomain(matname);
         
         // fixIndicesConstantMatrix may change matrix in place so first remove it.
@@ -415,7 +462,8 @@ public class ConstantMatrixStore
             boolean boolMatrix = basedom.isBooleanSet();
             ArrayList<ASTNode> indexdoms = matdom.getChildren(3);
             
-            if(cm.get(name).getDimension() != indexdoms.size()) {
+            ASTNode mat = getConstantMatrix(name);
+            if(mat.getDimension() != indexdoms.size()) {
                 CmdFlags.println("ERROR: Number of dimensions differs for constant matrix: "+name);
                 return false;
             }
@@ -424,7 +472,7 @@ public class ConstantMatrixStore
             TransformSimplify ts = new TransformSimplify();
             ArrayList<Intpair> basedomset = ts.transform(basedom).getIntervalSet();
             
-            if (!checkConstantMatrixDomain(name, cm.get(name), indexdoms, basedomset, boolMatrix, 0)) {
+            if (!checkConstantMatrixDomain(name, mat, indexdoms, basedomset, boolMatrix, 0)) {
                 return false;
             }
         }
@@ -498,6 +546,11 @@ public class ConstantMatrixStore
     public void toMinion(BufferedWriter b) throws IOException {
         // Output constant matrices.
         for (String name : cm.keySet()) {
+            if(cm.get(name) instanceof PackedMatrix) {
+                toMinionPacked(b, name, (PackedMatrix) cm.get(name));
+                continue;
+            }
+            
             ArrayList<Long> dimensions = getConstantMatrixSize(cm.get(name));
             
             // If two dimensional, print as tuplelist.
@@ -569,8 +622,56 @@ public class ConstantMatrixStore
         }
     }
     
+    //  Same output as toMinion gives for the equivalent matrix literal. 
+    private void toMinionPacked(BufferedWriter b, String name, PackedMatrix p) throws IOException {
+        int rows=p.numRows();
+        
+        if(!p.isShortTable()) {
+            b.append("**TUPLELIST**\n");
+            b.append(name + " ");
+            b.append(rows + " " + p.rowLength(0) + "\n");
+            for (int i=0; i < rows; i++) {
+                for (int j=0; j < p.rowLength(i); j++) {
+                    b.append(String.valueOf(p.get(i, j)));
+                    b.append(" ");
+                }
+                b.append("\n");
+            }
+        }
+        else {
+            b.append("**SHORTTUPLELIST**\n");
+            b.append(name);
+            b.append(" ");
+            b.append(String.valueOf(rows));
+            b.append("\n");
+            
+            for(int i=0; i<rows; i++) {
+                b.append("[");
+                for(int j=0; j<p.rowLength(i); j++) {
+                    b.append("(");
+                    b.append(String.valueOf(p.getVar(i, j)-1));    //  Minion indexes variables from 0, SR from 1.
+                    b.append(",");
+                    b.append(String.valueOf(p.getVal(i, j)));
+                    b.append("),");
+                }
+                b.append("]\n");
+            }
+        }
+        
+        if(p.isRegularMatrix()) {
+            b.append("**VARIABLES**\n");
+            b.append("ALIAS " + name + "[" + rows + "," + p.rowLength(0));
+            if(p.isShortTable()) {
+                b.append(",2");
+            }
+            b.append("]=");
+            p.toMinion(b, false);
+            b.append("\n");
+        }
+    }
+    
     public void toDominion(StringBuilder b, String name) {
-        ArrayList<Long> dimensions = getConstantMatrixSize(cm.get(name));
+        ArrayList<Long> dimensions = getConstantMatrixSize(getConstantMatrix(name));
         
         b.append("define " + name + "[");
         
@@ -583,7 +684,7 @@ public class ConstantMatrixStore
         
         b.append("] = ");
         
-        cm.get(name).toDominionParam(b);
+        getConstantMatrix(name).toDominionParam(b);
         b.append("\n");
     }
     
@@ -591,7 +692,7 @@ public class ConstantMatrixStore
         // Constant matrices
         // look like this: array [1..10] of int: b =  [0, 0, 0, 0, 0, 0, 0, 0, 0, -50];
         for (String name : cm.keySet()) {
-            ASTNode mat = cm.get(name);
+            ASTNode mat = getConstantMatrix(name);
             ArrayList<Long> dim = getConstantMatrixSize(mat);
             ArrayList<Long> cont = getConstantMatrixContents(mat);
             if (dim.size() == 1) {
@@ -604,7 +705,7 @@ public class ConstantMatrixStore
         // Constant matrices
         // look like this: array [1..10] of int: b =  [0, 0, 0, 0, 0, 0, 0, 0, 0, -50];
         for (String name : cm.keySet()) {
-            ASTNode mat = cm.get(name);
+            ASTNode mat = getConstantMatrix(name);
             ArrayList<Long> dim = getConstantMatrixSize(mat);
             ArrayList<Long> cont = getConstantMatrixContents(mat);
             if (dim.size() == 1) {
@@ -375,6 +375,7 @@ public class Model
     // Output to minion
     public void toMinion(BufferedWriter b, ArrayList<ASTNode> scope) throws IOException {
         b.append("MINION 3\n");
+        MDD.startMinionOutput();
         
         for (String key : CmdFlags.stats.keySet()) {
             b.append("# "+key+" = "+CmdFlags.stats.get(key)+"\n");
@@ -221,12 +221,20 @@ public class ModelContainer {
             m.simplify();
         }
         
-        //TransformMakeTableEarly tmte=new TransformMakeTableEarly(m);   //  Attempt to deal with makeTable functions before unrolling quantifiers.
-        //m.transform(tmte);
+        TransformMakeTableEarly tmte=null;
+        if(CmdFlags.tabulation_early) {
+            tmte=new TransformMakeTableEarly(m);   //  Deal with makeTable functions before unrolling quantifiers.
+            m.transform(tmte);
+        }
         
         TransformQuantifiedExpression t2 = new TransformQuantifiedExpression(m);
         m.transform(t2);
         
+        if(tmte!=null) {
+            m.transform(tmte);   //  makeTable functions that depend on the values of quantifier variables.
+            tmte.printStats();
+        }
+        
         //  TransformMatrixIndices must be done before TransformMatrixDeref.
         //  No longer -- shift to transform to element constraint will occur later.
         /*HashMap<String, ASTNode> doms = m.global_symbols.getDomains();
@@ -387,9 +395,29 @@ public class ModelContainer {
             
             m.transform(tmts);    //  Scan for identical scopes
             tmts.doIt();          //  Tabulate sets of constraints on identical scopes.
+            
+            if(CmdFlags.tabulation_threads>1) {
+                tmt.precomputeHeuristic();   //  Tabulate candidates in parallel before the serial pass below.
+            }
         }
         
         m.transform(tmt);
+        TableCache.flush();
+        TableCache.printStats();
+        TabulationBudget.printStats();
+        TabulationEstimate.printStats();
+        
+        if(CmdFlags.tabulation_negative && !propagate) {
+            TransformTableToNegative tttn=new TransformTableToNegative(m);
+            m.transform(tttn);
+            tttn.deleteUnusedTables();
+        }
+        
+        if(CmdFlags.tabulation_mdd && !propagate && (CmdFlags.getMiniontrans() || CmdFlags.getSattrans())) {
+            TransformTableToMDD tttm=new TransformTableToMDD(m);
+            m.transform(tttm);
+            tttm.deleteUnusedTables();
+        }
         
         TransformLexAlldiff tla=new TransformLexAlldiff(m);
         m.transform(tla);
@@ -168,6 +168,8 @@ public class Stats
     
     public void makeInfoFiles() {
         try {
+            TableCache.putStats(this);
+            
             BufferedWriter out;
             out= new BufferedWriter(new FileWriter(CmdFlags.infofile, CmdFlags.mining));
             
@@ -0,0 +1,304 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.expression.*;
+
+import java.util.*;
+
+//  Canonical labelling of the decision variables of an expression, so that
+//  two expressions that are the same up to renaming variables (and the order
+//  of arguments of commutative operators) label corresponding variables the
+//  same way.
+//
+//  Colour refinement: each variable starts with a colour from its domain. In
+//  each round every node gets a hash of its subtree (variables hashed by their
+//  colour, children of commutative operators as a multiset) and a hash of its
+//  context from the root, and each variable's new colour combines its old
+//  colour with the contexts of all its occurrences. When the colours stop
+//  splitting, a class of variables with the same colour is broken by trying
+//  each member in turn as distinct from the rest (individualisation). Each
+//  leaf of this search is a labelling, and the one whose certificate (hash of
+//  the expression under the labelling) is smallest is chosen. The search is
+//  cut off after a few leaves, when the result may not be canonical; callers
+//  must only rely on the labelling for sharing, never for correctness.
+
+public final class CanonicalLabelling {
+    private static final int LEAF_LIMIT=16;
+    
+    private static final long VAR=0x56415249414c4cL;
+    private static final long LAB=0x4c4142454cL;
+    private static final long INDIV=0x494e444956L;
+    
+    //  The tree in postorder, so children come before their parent and the root is last.
+    private final int n;
+    private final long[] kind;
+    private final int[][] children;
+    private final boolean[] comm;          //  Children are a multiset.
+    private final long[] weight;           //  Weight given to the node by its parent (WeightedSum), otherwise 0.
+    private final int[] var;               //  Variable index of a leaf, or -1.
+    private final int[][] occ;             //  Leaves of each variable.
+    private final int nvars;
+    
+    private final long[] up;
+    private final long[] down;
+    
+    private long bestcert;
+    private int[] bestlab;
+    private int leaves;
+    
+    //  Returns the canonical position of each variable in vars (which must be all the decision variables in a).
+    public static int[] label(ASTNode a, ArrayList<ASTNode> vars, ArrayList<ASTNode> doms) {
+        CanonicalLabelling c=new CanonicalLabelling(a, vars);
+        long[] col=new long[vars.size()];
+        for(int i=0; i<col.length; i++) {
+            col[i]=mix(0x444f4dL, doms.get(i).hashCode());
+        }
+        c.search(col);
+        return c.bestlab;
+    }
+    
+    private CanonicalLabelling(ASTNode a, ArrayList<ASTNode> vars) {
+        HashMap<ASTNode, Integer> varidx=new HashMap<ASTNode, Integer>();
+        for(int i=0; i<vars.size(); i++) {
+            varidx.put(vars.get(i), i);
+        }
+        nvars=vars.size();
+        
+        ArrayList<long[]> nodes=new ArrayList<long[]>();     //  kind, var, weight, comm
+        ArrayList<int[]> ch=new ArrayList<int[]>();
+        flatten(a, 0, varidx, nodes, ch);
+        
+        n=nodes.size();
+        kind=new long[n];
+        var=new int[n];
+        weight=new long[n];
+        comm=new boolean[n];
+        children=new int[n][];
+        int[] occcount=new int[nvars];
+        for(int i=0; i<n; i++) {
+            long[] nd=nodes.get(i);
+            kind[i]=nd[0];
+            var[i]=(int)nd[1];
+            weight[i]=nd[2];
+            comm[i]=nd[3]!=0;
+            children[i]=ch.get(i);
+            if(var[i]>=0) {
+                occcount[var[i]]++;
+            }
+        }
+        occ=new int[nvars][];
+        for(int v=0; v<nvars; v++) {
+            occ[v]=new int[occcount[v]];
+            occcount[v]=0;
+        }
+        for(int i=0; i<n; i++) {
+            if(var[i]>=0) {
+                occ[var[i]][occcount[var[i]]++]=i;
+            }
+        }
+        up=new long[n];
+        down=new long[n];
+    }
+    
+    //  Returns the postorder index of a.
+    private int flatten(ASTNode a, long wt, HashMap<ASTNode, Integer> varidx, ArrayList<long[]> nodes, ArrayList<int[]> ch) {
+        if(a instanceof Identifier && varidx.containsKey(a)) {
+            nodes.add(new long[]{VAR, varidx.get(a), wt, 0});
+            ch.add(new int[0]);
+            return nodes.size()-1;
+        }
+        int nc=a.numChildren();
+        long k=mix(a.getClass().getName().hashCode(), nc);
+        if(nc==0) {
+            k=mix(k, a.hashCode());
+        }
+        else if(a instanceof Mapping) {
+            k=mix(mix(k, ((Mapping)a).map.hashCode()), ((Mapping)a).defaultval);
+        }
+        boolean c=isCommutative(a);
+        int[] chidx=new int[nc];
+        for(int i=0; i<nc; i++) {
+            long w=(a instanceof WeightedSum) ? ((WeightedSum)a).getWeight(i) : 0;
+            chidx[i]=flatten(a.getChild(i), w, varidx, nodes, ch);
+        }
+        nodes.add(new long[]{k, -1, wt, c ? 1 : 0});
+        ch.add(chidx);
+        return nodes.size()-1;
+    }
+    
+    //  Operators whose arguments TransformNormaliseAlpha puts in a fixed order,
+    //  so their order in the input says nothing.
+    private static boolean isCommutative(ASTNode a) {
+        if(a instanceof And || a instanceof Or || a instanceof WeightedSum || a instanceof Times
+            || a instanceof Min || a instanceof Max || a instanceof Equals || a instanceof Iff || a instanceof Xor) {
+            return true;
+        }
+        //  The matrix inside an alldiff.
+        return a instanceof CompoundMatrix && a.getParent() instanceof AllDifferent;
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Refinement and search
+    
+    //  Subtree hash of every node, with variable leaves hashed by vhash.
+    private void computeUp(long[] vhash) {
+        for(int i=0; i<n; i++) {
+            if(var[i]>=0) {
+                up[i]=mix(VAR, vhash[var[i]]);
+                continue;
+            }
+            int[] c=children[i];
+            long h=kind[i];
+            if(c.length>0) {
+                long[] ch=new long[c.length];
+                for(int j=0; j<c.length; j++) {
+                    ch[j]=mix(up[c[j]], weight[c[j]]);
+                }
+                if(comm[i]) {
+                    Arrays.sort(ch);
+                }
+                for(int j=0; j<c.length; j++) {
+                    h=mix(h, ch[j]);
+                }
+            }
+            up[i]=h;
+        }
+    }
+    
+    //  Context hash of every node: its parent's context and subtree, its weight,
+    //  and its position unless the parent is commutative.
+    private void computeDown() {
+        down[n-1]=0x524f4f54L;
+        for(int i=n-1; i>=0; i--) {
+            int[] c=children[i];
+            long base=mix(down[i], up[i]);
+            for(int j=0; j<c.length; j++) {
+                down[c[j]]=mix(mix(base, comm[i] ? -1 : j), weight[c[j]]);
+            }
+        }
+    }
+    
+    private long[] refine(long[] col) {
+        int classes=countClasses(col);
+        while(true) {
+            computeUp(col);
+            computeDown();
+            long[] next=new long[nvars];
+            for(int v=0; v<nvars; v++) {
+                long[] ctx=new long[occ[v].length];
+                for(int j=0; j<ctx.length; j++) {
+                    ctx[j]=down[occ[v][j]];
+                }
+                Arrays.sort(ctx);
+                long h=col[v];
+                for(int j=0; j<ctx.length; j++) {
+                    h=mix(h, ctx[j]);
+                }
+                next[v]=h;
+            }
+            int nextclasses=countClasses(next);
+            if(nextclasses<=classes) {
+                return col;
+            }
+            col=next;
+            classes=nextclasses;
+        }
+    }
+    
+    private static int countClasses(long[] col) {
+        long[] s=col.clone();
+        Arrays.sort(s);
+        int c=(s.length>0) ? 1 : 0;
+        for(int i=1; i<s.length; i++) {
+            if(s[i]!=s[i-1]) {
+                c++;
+            }
+        }
+        return c;
+    }
+    
+    private void search(long[] col) {
+        col=refine(col);
+        
+        //  Find the smallest colour that more than one variable has.
+        long[] s=col.clone();
+        Arrays.sort(s);
+        boolean found=false;
+        long tie=0;
+        for(int i=1; i<s.length; i++) {
+            if(s[i]==s[i-1]) {
+                tie=s[i];
+                found=true;
+                break;
+            }
+        }
+        
+        if(!found) {
+            leaf(col);
+            return;
+        }
+        
+        for(int v=0; v<nvars && leaves<LEAF_LIMIT; v++) {
+            if(col[v]==tie) {
+                long[] col2=col.clone();
+                col2[v]=mix(col[v], INDIV);
+                search(col2);
+            }
+        }
+    }
+    
+    //  All colours distinct: label the variables in order of colour.
+    private void leaf(long[] col) {
+        leaves++;
+        Integer[] order=new Integer[nvars];
+        for(int v=0; v<nvars; v++) {
+            order[v]=v;
+        }
+        final long[] c=col;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                return Long.compare(c[x], c[y]);
+            }
+        });
+        int[] lab=new int[nvars];
+        long[] vhash=new long[nvars];
+        for(int i=0; i<nvars; i++) {
+            lab[order[i]]=i;
+            vhash[order[i]]=mix(LAB, i);
+        }
+        computeUp(vhash);
+        long cert=(n>0) ? up[n-1] : 0;
+        if(bestlab==null || cert<bestcert) {
+            bestcert=cert;
+            bestlab=lab;
+        }
+    }
+    
+    private static long mix(long h, long x) {
+        h=(h^x)*0x9E3779B97F4A7C15L;
+        h^=h>>>32;
+        h*=0xC2B2AE3D27D4EB4FL;
+        return h^(h>>>29);
+    }
+}
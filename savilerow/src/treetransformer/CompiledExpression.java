@@ -0,0 +1,945 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+
+import java.util.*;
+
+//  Flat postfix form of an expression over a fixed list of variables, used by
+//  the tabulation search in place of copy-assign-simplify.
+//  Evaluation is three-valued: each subexpression is either a value or UNKNOWN.
+//  The rules are deliberately weak -- a node is only evaluated when TransformSimplify
+//  would also reduce it to a constant (all relevant children known, or a
+//  short-circuit in And, Or, Implies and AllDifferent). Anything else is UNKNOWN
+//  and the caller falls back to simplifying the AST, so the search is unchanged.
+
+public class CompiledExpression
+{
+    public static final long UNKNOWN=Long.MIN_VALUE;
+
+    //  Opcodes.  Each instruction is three ints: opcode, a, b.
+    private static final int LOAD=0;        // a=slot
+    private static final int CONST=1;       // a=index into constants
+    private static final int SUM=2;         // a=arity, b=offset of weights in constants
+    private static final int PRODUCT=3;     // a=arity
+    private static final int DIV=4;
+    private static final int SAFEDIV=5;
+    private static final int MOD=6;
+    private static final int SAFEMOD=7;
+    private static final int POW=8;
+    private static final int SAFEPOW=9;
+    private static final int ABS=10;
+    private static final int UMINUS=11;
+    private static final int MIN=12;        // a=arity
+    private static final int MAX=13;        // a=arity
+    private static final int NOT=14;
+    private static final int AND=15;        // a=arity
+    private static final int OR=16;         // a=arity
+    private static final int XOR=17;        // a=arity
+    private static final int IMPLIES=18;
+    private static final int IFF=19;
+    private static final int EQ=20;
+    private static final int LEQ=21;
+    private static final int LESS=22;
+    private static final int ALLDIFF=23;    // a=arity
+    private static final int INSET=24;      // a=number of intervals, b=offset of bounds in constants
+    private static final int ELEMENT=25;    // a=number of matrix elements, b=index base (0 or 1)
+    private static final int SAFEELEMENT=26;// a=number of matrix elements, b=0
+
+    private int[] code;
+    private long[] constants;
+
+    private long[] slots;     //  Current value of each variable, or UNKNOWN.
+    private long[] stack;
+    
+    private long[] lostack;   //  Used by mayBeTrue.
+    private long[] histack;
+
+    private CompiledExpression() {}
+
+    //  Compile exp over the variables in varlist. Returns null if exp
+    //  contains anything that cannot be compiled.
+    public static CompiledExpression compile(ASTNode exp, ArrayList<ASTNode> varlist) {
+        if(CmdFlags.mining) {
+            return null;  //  And.simplify behaves differently when mining.
+        }
+
+        HashMap<ASTNode, Integer> varidx=new HashMap<ASTNode, Integer>();
+        for(int i=0; i<varlist.size(); i++) {
+            varidx.put(varlist.get(i), i);
+        }
+
+        Builder b=new Builder(varidx);
+        if(!b.compileNode(exp)) {
+            return null;
+        }
+
+        CompiledExpression c=new CompiledExpression();
+        c.code=new int[b.code.size()];
+        for(int i=0; i<c.code.length; i++) {
+            c.code[i]=b.code.get(i);
+        }
+        c.constants=new long[b.constants.size()];
+        for(int i=0; i<c.constants.length; i++) {
+            c.constants[i]=b.constants.get(i);
+        }
+        c.stack=new long[b.maxdepth+1];
+        c.lostack=new long[b.maxdepth+1];
+        c.histack=new long[b.maxdepth+1];
+        c.slots=new long[varlist.size()];
+        Arrays.fill(c.slots, UNKNOWN);
+        return c;
+    }
+
+    public void setValue(int var, long val) {
+        slots[var]=val;
+    }
+
+    public void clearValue(int var) {
+        slots[var]=UNKNOWN;
+    }
+
+    public void clearAll() {
+        Arrays.fill(slots, UNKNOWN);
+    }
+
+    //  Evaluate with the current slot values. Returns the value of the
+    //  expression (0 or 1 for a relation) or UNKNOWN.
+    public long evaluate() {
+        final int[] code=this.code;
+        final long[] st=stack;
+        int sp=0;   //  Next free position on the stack.
+
+        for(int pc=0; pc<code.length; pc+=3) {
+            int a=code[pc+1];
+            switch(code[pc]) {
+                case LOAD:
+                    st[sp++]=slots[a];
+                    break;
+                case CONST:
+                    st[sp++]=constants[a];
+                    break;
+                case SUM: {
+                    int base=sp-a;
+                    int woff=code[pc+2];
+                    long acc=0;
+                    for(int i=0; i<a; i++) {
+                        long v=st[base+i];
+                        if(v==UNKNOWN) {
+                            acc=UNKNOWN;
+                            break;
+                        }
+                        acc=add(acc, mul(v, constants[woff+i]));
+                        if(acc==UNKNOWN) break;
+                    }
+                    st[base]=acc;
+                    sp=base+1;
+                    break;
+                }
+                case PRODUCT: {
+                    int base=sp-a;
+                    long acc=1;
+                    for(int i=0; i<a; i++) {
+                        long v=st[base+i];
+                        if(v==UNKNOWN) {
+                            acc=UNKNOWN;
+                            break;
+                        }
+                        acc=mul(acc, v);
+                        if(acc==UNKNOWN) break;
+                    }
+                    st[base]=acc;
+                    sp=base+1;
+                    break;
+                }
+                case DIV:
+                case SAFEDIV:
+                case MOD:
+                case SAFEMOD:
+                case POW:
+                case SAFEPOW: {
+                    sp--;
+                    long r=st[sp];
+                    long l=st[sp-1];
+                    st[sp-1]=binaryArith(code[pc], l, r);
+                    break;
+                }
+                case ABS: {
+                    long v=st[sp-1];
+                    if(v!=UNKNOWN) {
+                        st[sp-1]=(v<0)?-v:v;
+                    }
+                    break;
+                }
+                case UMINUS: {
+                    long v=st[sp-1];
+                    if(v!=UNKNOWN) {
+                        st[sp-1]=-v;
+                    }
+                    break;
+                }
+                case MIN:
+                case MAX: {
+                    int base=sp-a;
+                    long acc=st[base];
+                    for(int i=1; i<a && acc!=UNKNOWN; i++) {
+                        long v=st[base+i];
+                        if(v==UNKNOWN) {
+                            acc=UNKNOWN;
+                        }
+                        else if(code[pc]==MIN) {
+                            acc=(v<acc)?v:acc;
+                        }
+                        else {
+                            acc=(v>acc)?v:acc;
+                        }
+                    }
+                    st[base]=acc;
+                    sp=base+1;
+                    break;
+                }
+                case NOT: {
+                    long v=st[sp-1];
+                    if(v!=UNKNOWN) {
+                        st[sp-1]=(v==0)?1:0;
+                    }
+                    break;
+                }
+                case AND:
+                case OR: {
+                    //  For And, a false child decides it; for Or, a true child.
+                    long decider=(code[pc]==AND)?0:1;
+                    int base=sp-a;
+                    long acc=1-decider;
+                    for(int i=0; i<a; i++) {
+                        long v=st[base+i];
+                        if(v==UNKNOWN) {
+                            acc=UNKNOWN;
+                        }
+                        else if((v==1?1:0)==decider) {
+                            acc=decider;
+                            break;
+                        }
+                    }
+                    st[base]=acc;
+                    sp=base+1;
+                    break;
+                }
+                case XOR: {
+                    int base=sp-a;
+                    long acc=0;
+                    for(int i=0; i<a; i++) {
+                        long v=st[base+i];
+                        if(v==UNKNOWN) {
+                            acc=UNKNOWN;
+                            break;
+                        }
+                        acc=acc^(v==1?1:0);
+                    }
+                    st[base]=acc;
+                    sp=base+1;
+                    break;
+                }
+                case IMPLIES: {
+                    sp--;
+                    long r=st[sp];
+                    long l=st[sp-1];
+                    if(l==0 || r==1) {
+                        st[sp-1]=1;
+                    }
+                    else if(l==1 && r!=UNKNOWN) {
+                        st[sp-1]=r;
+                    }
+                    else {
+                        st[sp-1]=UNKNOWN;
+                    }
+                    break;
+                }
+                case IFF:
+                case EQ:
+                case LEQ:
+                case LESS: {
+                    sp--;
+                    long r=st[sp];
+                    long l=st[sp-1];
+                    if(l==UNKNOWN || r==UNKNOWN) {
+                        st[sp-1]=UNKNOWN;
+                    }
+                    else if(code[pc]==LEQ) {
+                        st[sp-1]=(l<=r)?1:0;
+                    }
+                    else if(code[pc]==LESS) {
+                        st[sp-1]=(l<r)?1:0;
+                    }
+                    else {
+                        st[sp-1]=(l==r)?1:0;
+                    }
+                    break;
+                }
+                case ALLDIFF: {
+                    int base=sp-a;
+                    long acc=1;
+                    outer:
+                    for(int i=0; i<a; i++) {
+                        long v=st[base+i];
+                        if(v==UNKNOWN) {
+                            acc=UNKNOWN;
+                            continue;
+                        }
+                        for(int j=i+1; j<a; j++) {
+                            if(st[base+j]==v) {
+                                acc=0;
+                                break outer;
+                            }
+                        }
+                    }
+                    st[base]=acc;
+                    sp=base+1;
+                    break;
+                }
+                case INSET: {
+                    long v=st[sp-1];
+                    if(v!=UNKNOWN) {
+                        int off=code[pc+2];
+                        long in=0;
+                        for(int i=0; i<a; i++) {
+                            if(v>=constants[off+2*i] && v<=constants[off+2*i+1]) {
+                                in=1;
+                                break;
+                            }
+                        }
+                        st[sp-1]=in;
+                    }
+                    break;
+                }
+                case ELEMENT:
+                case SAFEELEMENT: {
+                    //  Matrix elements are below the index on the stack.
+                    int base=sp-a-1;
+                    long idx=st[sp-1];
+                    long res;
+                    if(idx==UNKNOWN) {
+                        res=UNKNOWN;
+                    }
+                    else {
+                        idx=idx-code[pc+2];
+                        if(idx<0 || idx>=a) {
+                            //  Out of bounds. The unsafe version is left alone by simplify.
+                            res=(code[pc]==SAFEELEMENT)?0:UNKNOWN;
+                        }
+                        else {
+                            res=st[base+(int)idx];
+                        }
+                    }
+                    st[base]=res;
+                    sp=base+1;
+                    break;
+                }
+                default:
+                    assert false;
+            }
+        }
+        assert sp==1;
+        return st[0];
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //  Interval evaluation. Each subexpression is given bounds that contain every
+    //  value it can take when the unassigned variables range over [lo[i], hi[i]]. 
+    //  NEG_INF and POS_INF stand for unbounded; any arithmetic on an unbounded 
+    //  interval is unbounded. Relations get [0,0], [1,1] or [0,1].
+    
+    private static final long NEG_INF=Long.MIN_VALUE;
+    private static final long POS_INF=Long.MAX_VALUE;
+    
+    //  Returns false only if the expression is false for every assignment of the 
+    //  unassigned variables within the given bounds. Assigned variables (set by 
+    //  setValue) take their value. 
+    public boolean mayBeTrue(long[] lo, long[] hi) {
+        final int[] code=this.code;
+        final long[] sl=lostack;
+        final long[] sh=histack;
+        int sp=0;
+        
+        for(int pc=0; pc<code.length; pc+=3) {
+            int a=code[pc+1];
+            int op=code[pc];
+            switch(op) {
+                case LOAD:
+                    if(slots[a]!=UNKNOWN) {
+                        sl[sp]=slots[a];
+                        sh[sp]=slots[a];
+                    }
+                    else {
+                        sl[sp]=lo[a];
+                        sh[sp]=hi[a];
+                    }
+                    sp++;
+                    break;
+                case CONST:
+                    sl[sp]=constants[a];
+                    sh[sp]=constants[a];
+                    sp++;
+                    break;
+                case SUM: {
+                    int base=sp-a;
+                    int woff=code[pc+2];
+                    long accl=0;
+                    long acch=0;
+                    for(int i=0; i<a && accl!=NEG_INF; i++) {
+                        long w=constants[woff+i];
+                        long l=sl[base+i];
+                        long h=sh[base+i];
+                        if(unbounded(l, h)) {
+                            accl=NEG_INF;
+                            break;
+                        }
+                        long p1=mul(l, w);
+                        long p2=mul(h, w);
+                        if(p1==UNKNOWN || p2==UNKNOWN) {
+                            accl=NEG_INF;
+                            break;
+                        }
+                        accl=add(accl, Math.min(p1, p2));
+                        acch=add(acch, Math.max(p1, p2));
+                        if(accl==UNKNOWN || acch==UNKNOWN) {
+                            accl=NEG_INF;
+                        }
+                    }
+                    setInterval(base, accl, acch);
+                    sp=base+1;
+                    break;
+                }
+                case PRODUCT: {
+                    int base=sp-a;
+                    long accl=1;
+                    long acch=1;
+                    for(int i=0; i<a && accl!=NEG_INF; i++) {
+                        long l=sl[base+i];
+                        long h=sh[base+i];
+                        if(unbounded(l, h)) {
+                            accl=NEG_INF;
+                            break;
+                        }
+                        long p1=mul(accl, l);
+                        long p2=mul(accl, h);
+                        long p3=mul(acch, l);
+                        long p4=mul(acch, h);
+                        if(p1==UNKNOWN || p2==UNKNOWN || p3==UNKNOWN || p4==UNKNOWN) {
+                            accl=NEG_INF;
+                            break;
+                        }
+                        accl=Math.min(Math.min(p1, p2), Math.min(p3, p4));
+                        acch=Math.max(Math.max(p1, p2), Math.max(p3, p4));
+                    }
+                    setInterval(base, accl, acch);
+                    sp=base+1;
+                    break;
+                }
+                case DIV:
+                case SAFEDIV:
+                case MOD:
+                case SAFEMOD:
+                case POW:
+                case SAFEPOW: {
+                    sp--;
+                    long rl=sl[sp];
+                    long rh=sh[sp];
+                    long ll=sl[sp-1];
+                    long lh=sh[sp-1];
+                    if(unbounded(ll, lh) || unbounded(rl, rh)) {
+                        setInterval(sp-1, NEG_INF, POS_INF);
+                    }
+                    else if(ll==lh && rl==rh) {
+                        long v=binaryArith(op, ll, rl);
+                        setInterval(sp-1, (v==UNKNOWN)?NEG_INF:v, (v==UNKNOWN)?POS_INF:v);
+                    }
+                    else if((op==DIV || op==SAFEDIV) && rl>0) {
+                        //  Floor division by a positive divisor is monotonic in each argument.
+                        long q1=Math.floorDiv(ll, rl);
+                        long q2=Math.floorDiv(ll, rh);
+                        long q3=Math.floorDiv(lh, rl);
+                        long q4=Math.floorDiv(lh, rh);
+                        setInterval(sp-1, Math.min(Math.min(q1, q2), Math.min(q3, q4)), Math.max(Math.max(q1, q2), Math.max(q3, q4)));
+                    }
+                    else if((op==MOD || op==SAFEMOD) && rl>0) {
+                        setInterval(sp-1, 0, rh-1);
+                    }
+                    else {
+                        setInterval(sp-1, NEG_INF, POS_INF);
+                    }
+                    break;
+                }
+                case ABS: {
+                    long l=sl[sp-1];
+                    long h=sh[sp-1];
+                    if(unbounded(l, h)) {
+                        setInterval(sp-1, NEG_INF, POS_INF);
+                    }
+                    else if(l<0 && h<=0) {
+                        setInterval(sp-1, -h, -l);
+                    }
+                    else if(l<0) {
+                        setInterval(sp-1, 0, Math.max(-l, h));
+                    }
+                    break;
+                }
+                case UMINUS: {
+                    long l=sl[sp-1];
+                    long h=sh[sp-1];
+                    if(unbounded(l, h)) {
+                        setInterval(sp-1, NEG_INF, POS_INF);
+                    }
+                    else {
+                        setInterval(sp-1, -h, -l);
+                    }
+                    break;
+                }
+                case MIN:
+                case MAX: {
+                    int base=sp-a;
+                    long accl=sl[base];
+                    long acch=sh[base];
+                    for(int i=1; i<a; i++) {
+                        if(op==MIN) {
+                            accl=Math.min(accl, sl[base+i]);
+                            acch=Math.min(acch, sh[base+i]);
+                        }
+                        else {
+                            accl=Math.max(accl, sl[base+i]);
+                            acch=Math.max(acch, sh[base+i]);
+                        }
+                    }
+                    setInterval(base, accl, acch);
+                    sp=base+1;
+                    break;
+                }
+                case NOT: {
+                    if(isTrue(sp-1)) {
+                        setInterval(sp-1, 0, 0);
+                    }
+                    else if(isFalse(sp-1)) {
+                        setInterval(sp-1, 1, 1);
+                    }
+                    else {
+                        setInterval(sp-1, 0, 1);
+                    }
+                    break;
+                }
+                case AND:
+                case OR: {
+                    int base=sp-a;
+                    boolean anytrue=false;
+                    boolean anyfalse=false;
+                    boolean allknown=true;
+                    for(int i=0; i<a; i++) {
+                        if(isTrue(base+i)) {
+                            anytrue=true;
+                        }
+                        else if(isFalse(base+i)) {
+                            anyfalse=true;
+                        }
+                        else {
+                            allknown=false;
+                        }
+                    }
+                    if(op==AND) {
+                        setBool(base, anyfalse, allknown && !anyfalse);
+                    }
+                    else {
+                        setBool(base, allknown && !anytrue, anytrue);
+                    }
+                    sp=base+1;
+                    break;
+                }
+                case XOR: {
+                    int base=sp-a;
+                    long acc=0;
+                    for(int i=0; i<a && acc!=-1; i++) {
+                        if(isTrue(base+i)) {
+                            acc=acc^1;
+                        }
+                        else if(!isFalse(base+i)) {
+                            acc=-1;
+                        }
+                    }
+                    setBool(base, acc==0, acc==1);
+                    sp=base+1;
+                    break;
+                }
+                case IMPLIES: {
+                    sp--;
+                    boolean t=isFalse(sp-1) || isTrue(sp);
+                    boolean f=isTrue(sp-1) && isFalse(sp);
+                    setBool(sp-1, f, t);
+                    break;
+                }
+                case IFF:
+                case EQ: {
+                    sp--;
+                    long rl=sl[sp], rh=sh[sp], ll=sl[sp-1], lh=sh[sp-1];
+                    if(op==IFF) {
+                        //  Compare as booleans.
+                        rl=isTrue(sp)?1:0;
+                        rh=isFalse(sp)?0:1;
+                        ll=isTrue(sp-1)?1:0;
+                        lh=isFalse(sp-1)?0:1;
+                    }
+                    setBool(sp-1, lh<rl || ll>rh, ll==lh && rl==rh && ll==rl);
+                    break;
+                }
+                case LEQ: {
+                    sp--;
+                    setBool(sp-1, sl[sp-1]>sh[sp], sh[sp-1]<=sl[sp]);
+                    break;
+                }
+                case LESS: {
+                    sp--;
+                    setBool(sp-1, sl[sp-1]>=sh[sp], sh[sp-1]<sl[sp]);
+                    break;
+                }
+                case ALLDIFF: {
+                    int base=sp-a;
+                    boolean f=false;
+                    boolean allfixed=true;
+                    for(int i=0; i<a && !f; i++) {
+                        if(sl[base+i]!=sh[base+i]) {
+                            allfixed=false;
+                            continue;
+                        }
+                        for(int j=i+1; j<a; j++) {
+                            if(sl[base+j]==sh[base+j] && sl[base+j]==sl[base+i]) {
+                                f=true;
+                                break;
+                            }
+                        }
+                    }
+                    setBool(base, f, allfixed && !f);
+                    sp=base+1;
+                    break;
+                }
+                case INSET: {
+                    long l=sl[sp-1];
+                    long h=sh[sp-1];
+                    int off=code[pc+2];
+                    boolean meets=false;
+                    boolean inside=false;
+                    for(int i=0; i<a; i++) {
+                        long il=constants[off+2*i];
+                        long ih=constants[off+2*i+1];
+                        if(h>=il && l<=ih) {
+                            meets=true;
+                        }
+                        if(l>=il && h<=ih) {
+                            inside=true;
+                        }
+                    }
+                    setBool(sp-1, !meets, inside);
+                    break;
+                }
+                case ELEMENT:
+                case SAFEELEMENT: {
+                    int base=sp-a-1;
+                    long il=sl[sp-1];
+                    long ih=sh[sp-1];
+                    long accl=POS_INF;
+                    long acch=NEG_INF;
+                    if(il==NEG_INF || ih==POS_INF) {
+                        accl=NEG_INF;
+                        acch=POS_INF;
+                    }
+                    else {
+                        il=il-code[pc+2];
+                        ih=ih-code[pc+2];
+                        if(il<0 || ih>=a) {
+                            //  The index can be out of bounds. 
+                            if(op==SAFEELEMENT) {
+                                accl=0;
+                                acch=0;
+                            }
+                            else {
+                                accl=NEG_INF;
+                                acch=POS_INF;
+                            }
+                        }
+                        for(long i=Math.max(il, 0); i<=Math.min(ih, a-1); i++) {
+                            accl=Math.min(accl, sl[base+(int)i]);
+                            acch=Math.max(acch, sh[base+(int)i]);
+                        }
+                        if(accl>acch) {
+                            //  Empty index range. 
+                            accl=NEG_INF;
+                            acch=POS_INF;
+                        }
+                    }
+                    setInterval(base, accl, acch);
+                    sp=base+1;
+                    break;
+                }
+                default:
+                    assert false;
+            }
+        }
+        assert sp==1;
+        return histack[0]>=1;
+    }
+    
+    private static boolean unbounded(long l, long h) {
+        return l==NEG_INF || h==POS_INF;
+    }
+    
+    private void setInterval(int pos, long l, long h) {
+        if(l==NEG_INF || h==POS_INF) {
+            l=NEG_INF;
+            h=POS_INF;
+        }
+        lostack[pos]=l;
+        histack[pos]=h;
+    }
+    
+    //  Set a boolean interval: [0,0] if f, [1,1] if t, [0,1] otherwise.
+    private void setBool(int pos, boolean f, boolean t) {
+        lostack[pos]=t?1:0;
+        histack[pos]=f?0:1;
+    }
+    
+    //  Boolean values are 0 and 1; a relation is true if its interval is [1,1].
+    private boolean isTrue(int pos) {
+        return lostack[pos]==1 && histack[pos]==1;
+    }
+    
+    private boolean isFalse(int pos) {
+        return lostack[pos]==0 && histack[pos]==0;
+    }
+    
+    private static long binaryArith(int op, long l, long r) {
+        if(l==UNKNOWN || r==UNKNOWN) {
+            return UNKNOWN;
+        }
+        switch(op) {
+            case DIV:
+            case SAFEDIV:
+                if(r==0) {
+                    return (op==SAFEDIV)?0:UNKNOWN;
+                }
+                if(r<0 && l%r!=0) {
+                    return UNKNOWN;   //  Simplifier prints a warning in this case, so let it handle it.
+                }
+                return Math.floorDiv(l, r);
+            case MOD:
+            case SAFEMOD:
+                if(r==0) {
+                    return (op==SAFEMOD)?0:UNKNOWN;
+                }
+                return Math.floorMod(l, r);
+            case POW:
+            case SAFEPOW:
+                if((l==0 && r==0) || r<0) {
+                    return (op==SAFEPOW)?0:UNKNOWN;
+                }
+                long p=Power.pow(l, r);
+                return (p==Long.MIN_VALUE || p==Long.MAX_VALUE)?UNKNOWN:p;
+            default:
+                assert false;
+                return UNKNOWN;
+        }
+    }
+
+    //  Overflow (or hitting the UNKNOWN sentinel) gives UNKNOWN,
+    //  leaving the saturating arithmetic to the simplifier.
+    private static long mul(long a, long b) {
+        try {
+            return Math.multiplyExact(a, b);
+        }
+        catch(ArithmeticException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private static long add(long a, long b) {
+        try {
+            return Math.addExact(a, b);
+        }
+        catch(ArithmeticException e) {
+            return UNKNOWN;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //  Compiler from AST to postfix code.
+
+    private static class Builder {
+        ArrayList<Integer> code=new ArrayList<Integer>();
+        ArrayList<Long> constants=new ArrayList<Long>();
+        HashMap<ASTNode, Integer> varidx;
+        int depth=0;
+        int maxdepth=0;
+
+        Builder(HashMap<ASTNode, Integer> _varidx) {
+            varidx=_varidx;
+        }
+
+        private void emit(int op, int a, int b, int pushed, int popped) {
+            code.add(op);
+            code.add(a);
+            code.add(b);
+            depth=depth-popped+pushed;
+            if(depth>maxdepth) maxdepth=depth;
+        }
+
+        private boolean compileChildren(ASTNode exp) {
+            for(int i=0; i<exp.numChildren(); i++) {
+                if(!compileNode(exp.getChild(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean compileNary(ASTNode exp, int op) {
+            if(exp.numChildren()==0 || !compileChildren(exp)) {
+                return false;
+            }
+            emit(op, exp.numChildren(), 0, 1, exp.numChildren());
+            return true;
+        }
+
+        private boolean compileBinary(ASTNode exp, int op) {
+            if(exp.numChildren()!=2 || !compileChildren(exp)) {
+                return false;
+            }
+            emit(op, 0, 0, 1, 2);
+            return true;
+        }
+
+        private boolean compileUnary(ASTNode exp, int op) {
+            if(exp.numChildren()!=1 || !compileChildren(exp)) {
+                return false;
+            }
+            emit(op, 0, 0, 1, 1);
+            return true;
+        }
+
+        boolean compileNode(ASTNode exp) {
+            if(exp instanceof NumberConstant || exp instanceof BooleanConstant) {
+                constants.add(exp.getValue());
+                emit(CONST, constants.size()-1, 0, 1, 0);
+                return true;
+            }
+            if(exp instanceof Identifier || exp instanceof MatrixDeref || exp instanceof SafeMatrixDeref) {
+                //  Matrix derefs are variables when tabulating before quantifiers are unrolled.
+                Integer idx=varidx.get(exp);
+                if(idx==null) {
+                    return false;
+                }
+                emit(LOAD, idx, 0, 1, 0);
+                return true;
+            }
+            if(exp instanceof WeightedSum) {
+                if(exp.numChildren()==0 || !compileChildren(exp)) {
+                    return false;
+                }
+                int woff=constants.size();
+                for(int i=0; i<exp.numChildren(); i++) {
+                    constants.add(((WeightedSum)exp).getWeight(i));
+                }
+                emit(SUM, exp.numChildren(), woff, 1, exp.numChildren());
+                return true;
+            }
+            if(exp instanceof Times) return compileNary(exp, PRODUCT);
+            if(exp instanceof Min) return compileNary(exp, MIN);
+            if(exp instanceof Max) return compileNary(exp, MAX);
+            if(exp instanceof And) return compileNary(exp, AND);
+            if(exp instanceof Or) return compileNary(exp, OR);
+            if(exp instanceof Xor) return compileNary(exp, XOR);
+
+            if(exp instanceof SafeDivide) return compileBinary(exp, SAFEDIV);
+            if(exp instanceof Divide) return compileBinary(exp, DIV);
+            if(exp instanceof SafeMod) return compileBinary(exp, SAFEMOD);
+            if(exp instanceof Mod) return compileBinary(exp, MOD);
+            if(exp instanceof SafePower) return compileBinary(exp, SAFEPOW);
+            if(exp instanceof Power) return compileBinary(exp, POW);
+            if(exp instanceof Implies) return compileBinary(exp, IMPLIES);
+            if(exp instanceof Iff) return compileBinary(exp, IFF);
+            if(exp instanceof Equals) return compileBinary(exp, EQ);
+            if(exp instanceof LessEqual) return compileBinary(exp, LEQ);
+            if(exp instanceof Less) return compileBinary(exp, LESS);
+
+            if(exp instanceof Absolute) return compileUnary(exp, ABS);
+            if(exp instanceof UnaryMinus) return compileUnary(exp, UMINUS);
+            if(exp instanceof Negate) return compileUnary(exp, NOT);
+
+            if(exp instanceof AllDifferent) {
+                ASTNode mat=exp.getChildConst(0);
+                if(!(mat instanceof CompoundMatrix) || mat.numChildren()<2) {
+                    return false;
+                }
+                for(int i=1; i<mat.numChildren(); i++) {
+                    if(!compileNode(mat.getChild(i))) {
+                        return false;
+                    }
+                }
+                emit(ALLDIFF, mat.numChildren()-1, 0, 1, mat.numChildren()-1);
+                return true;
+            }
+
+            if(exp instanceof InSet) {
+                if(exp.getChild(1).getCategory()!=ASTNode.Constant || !compileNode(exp.getChild(0))) {
+                    return false;
+                }
+                ArrayList<Intpair> intervals=exp.getChild(1).getIntervalSet();
+                int off=constants.size();
+                for(int i=0; i<intervals.size(); i++) {
+                    constants.add(intervals.get(i).lower);
+                    constants.add(intervals.get(i).upper);
+                }
+                emit(INSET, intervals.size(), off, 1, 1);
+                return true;
+            }
+
+            if(exp instanceof Element || exp instanceof ElementOne || exp instanceof SafeElement) {
+                ASTNode mat=exp.getChildConst(0);
+                if(!(mat instanceof CompoundMatrix) || mat.numChildren()<2) {
+                    return false;
+                }
+                for(int i=1; i<mat.numChildren(); i++) {
+                    if(!compileNode(mat.getChild(i))) {
+                        return false;
+                    }
+                }
+                if(!compileNode(exp.getChild(1))) {
+                    return false;
+                }
+                int op=(exp instanceof SafeElement)?SAFEELEMENT:ELEMENT;
+                int indexbase=(exp instanceof ElementOne)?1:0;
+                emit(op, mat.numChildren()-1, indexbase, 1, mat.numChildren());
+                return true;
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+    
+    This file is part of Savile Row.
+    
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+    
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+    
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import java.util.*;
+
+//  Set of short supports (or full-length tuples) on a fixed list of variables, 
+//  used while tabulating an expression. The supports are packed into one
+//  growable long array, numvars entries each, with WILDCARD for a variable that
+//  is not in the support. Each variable has a list of the supports that are
+//  watching it, and each support has two watched variables (only the first is
+//  used by the one-watched-literal scheme). 
+
+public final class ShortSupportStore
+{
+    public static final long WILDCARD=Long.MIN_VALUE;
+    
+    private final int numvars;
+    
+    private long[] sups;
+    private int size;
+    
+    private int[] watch1;
+    private int[] watch2;
+    
+    private int[][] watches;   //  For each variable, the indices of the supports watching it.
+    private int[] numwatches;
+    
+    public ShortSupportStore(int _numvars) {
+        numvars=_numvars;
+        sups=new long[16*Math.max(numvars, 1)];
+        size=0;
+        watch1=new int[16];
+        watch2=new int[16];
+        watches=new int[numvars][];
+        numwatches=new int[numvars];
+        for(int i=0; i<numvars; i++) {
+            watches[i]=new int[4];
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int numVars() {
+        return numvars;
+    }
+    
+    //  Value of variable var in support supidx, or WILDCARD. 
+    public long get(int supidx, int var) {
+        return sups[supidx*numvars+var];
+    }
+    
+    //  Copy sup into the store and return its index. 
+    public int add(long[] sup) {
+        assert sup.length==numvars;
+        if((size+1)*numvars>sups.length) {
+            sups=Arrays.copyOf(sups, Math.max(sups.length*2, (size+1)*numvars));
+        }
+        if(size==watch1.length) {
+            watch1=Arrays.copyOf(watch1, size*2);
+            watch2=Arrays.copyOf(watch2, size*2);
+        }
+        System.arraycopy(sup, 0, sups, size*numvars, numvars);
+        watch1[size]=-1;
+        watch2[size]=-1;
+        size++;
+        return size-1;
+    }
+    
+    //  Copy out support supidx. 
+    public long[] getSupport(int supidx) {
+        return Arrays.copyOfRange(sups, supidx*numvars, (supidx+1)*numvars);
+    }
+    
+    //  Copy the supports of each store in others to the end of this store, without 
+    //  watches. If dedup is true, supports that are already present are skipped. 
+    public void addAll(List<ShortSupportStore> others, boolean dedup) {
+        HashSet<List<Long>> present=null;
+        if(dedup) {
+            present=new HashSet<List<Long>>();
+            for(int i=0; i<size; i++) {
+                present.add(asList(i));
+            }
+        }
+        for(ShortSupportStore other : others) {
+            assert other.numvars==numvars;
+            for(int i=0; i<other.size; i++) {
+                if(dedup && !present.add(other.asList(i))) {
+                    continue;
+                }
+                add(other.getSupport(i));
+            }
+        }
+    }
+    
+    //  The packed supports, size()*numVars() entries in use. Not a copy. 
+    public long[] array() {
+        return sups;
+    }
+    
+    //  Free the watch lists when the search is finished with them. 
+    public void releaseWatches() {
+        watch1=null;
+        watch2=null;
+        watches=null;
+        numwatches=null;
+    }
+    
+    private List<Long> asList(int supidx) {
+        ArrayList<Long> l=new ArrayList<Long>(numvars);
+        for(int i=0; i<numvars; i++) {
+            l.add(sups[supidx*numvars+i]);
+        }
+        return l;
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //  Watch lists
+    
+    public int getWatch1(int supidx) {
+        return watch1[supidx];
+    }
+    
+    public int getWatch2(int supidx) {
+        return watch2[supidx];
+    }
+    
+    public void setWatch1(int supidx, int var) {
+        watch1[supidx]=var;
+    }
+    
+    public void setWatch2(int supidx, int var) {
+        watch2[supidx]=var;
+    }
+    
+    public int numWatches(int var) {
+        return numwatches[var];
+    }
+    
+    //  Index of the support at position pos in the watch list of var.
+    public int getWatch(int var, int pos) {
+        return watches[var][pos];
+    }
+    
+    //  Add support supidx to the watch list of var. 
+    public void watch(int var, int supidx) {
+        int n=numwatches[var];
+        if(n==watches[var].length) {
+            watches[var]=Arrays.copyOf(watches[var], n*2);
+        }
+        watches[var][n]=supidx;
+        numwatches[var]=n+1;
+    }
+    
+    //  Remove the support at position pos from the watch list of var by moving
+    //  the last entry into its place. 
+    public void unwatch(int var, int pos) {
+        int n=numwatches[var]-1;
+        watches[var][pos]=watches[var][n];
+        numwatches[var]=n;
+    }
+}
@@ -0,0 +1,216 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.expression.*;
+import savilerow.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+//  Key for the in-memory tabulation caches: a normalised expression with its
+//  decision variables identified only by their order of first occurrence, plus
+//  the domains of the variables and whether the table is short.
+//
+//  A 128-bit hash is computed in one bottom-up pass over the expression. Two
+//  keys are equal if their hashes match and the expressions are structurally
+//  equal when each variable is replaced by its position in the variable list,
+//  which is checked without copying. Equal keys have equal key strings for the
+//  disk cache (the expression with variables renamed to xxxx_0, xxxx_1, ...,
+//  and the domains), and the string is built only when the disk cache needs it.
+
+public final class TableKey {
+    private final Model m;
+    private final ASTNode exp;
+    private final HashMap<ASTNode, Integer> varidx;
+    final ArrayList<ASTNode> vars;
+    final ArrayList<ASTNode> doms;
+    final boolean shorttable;
+    
+    private final long h1;
+    private final long h2;
+    
+    String str=null;    //  Key string for the disk cache, built by TransformMakeTable when first needed.
+    
+    //  With -tabulation-canonical, the expression has its variables renamed by a canonical
+    //  labelling (see CanonicalLabelling), and with -tabulation-shift each variable stands for
+    //  a caller's variable minus a constant. Then these are the caller's variables in order of
+    //  first occurrence (the columns of the caller's table), the position in vars of each, and 
+    //  the constant for each (null without -tabulation-shift). They are not part of the key. 
+    ArrayList<ASTNode> callervars=null;
+    int[] labels=null;
+    long[] shifts=null;
+    
+    public TableKey(Model _m, ASTNode _exp, ArrayList<ASTNode> _vars, ArrayList<ASTNode> _doms, boolean _shorttable) {
+        m=_m;
+        exp=_exp;
+        vars=_vars;
+        doms=_doms;
+        shorttable=_shorttable;
+        varidx=new HashMap<ASTNode, Integer>();
+        for(int i=0; i<vars.size(); i++) {
+            varidx.put(vars.get(i), i);
+        }
+        
+        long[] h=new long[2];
+        hashNode(exp, h);
+        for(int i=0; i<doms.size(); i++) {
+            mix(h, doms.get(i).hashCode());
+        }
+        mix(h, shorttable ? 1 : 0);
+        h1=fmix(h[0]);
+        h2=fmix(h[1]);
+    }
+    
+    private void hashNode(ASTNode a, long[] h) {
+        if(a instanceof Identifier) {
+            Integer v=varidx.get(a);
+            if(v!=null) {
+                mix(h, 0x5652L);     //  Variable, by position only.
+                mix(h, v);
+                return;
+            }
+        }
+        mix(h, a.getClass().getName().hashCode());
+        int n=a.numChildren();
+        if(n==0) {
+            mix(h, a.hashCode());
+            return;
+        }
+        mix(h, n);
+        if(a instanceof WeightedSum) {
+            long[] w=((WeightedSum)a).getWeightsArray();
+            for(int i=0; i<w.length; i++) {
+                mix(h, w[i]);
+            }
+        }
+        else if(a instanceof Mapping) {
+            mix(h, ((Mapping)a).map.hashCode());
+            mix(h, ((Mapping)a).defaultval);
+        }
+        for(int i=0; i<n; i++) {
+            hashNode(a.getChild(i), h);
+        }
+    }
+    
+    //  Two independent multiplicative lanes.
+    private static void mix(long[] h, long x) {
+        h[0]=(h[0]^x)*0x9E3779B97F4A7C15L;
+        h[0]=Long.rotateLeft(h[0], 31);
+        h[1]=(h[1]+x)*0xC2B2AE3D27D4EB4FL;
+        h[1]=Long.rotateLeft(h[1], 27)^(h[1]>>>29);
+    }
+    
+    private static long fmix(long k) {
+        k^=k>>>33;
+        k*=0xff51afd7ed558ccdL;
+        k^=k>>>33;
+        k*=0xc4ceb9fe1a85ec53L;
+        k^=k>>>33;
+        return k;
+    }
+    
+    @Override
+    public int hashCode() {
+        return (int)(h1^(h1>>>32));
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof TableKey)) {
+            return false;
+        }
+        TableKey k=(TableKey)o;
+        return h1==k.h1 && h2==k.h2 && shorttable==k.shorttable
+            && vars.size()==k.vars.size() && doms.equals(k.doms)
+            && sameNode(exp, k, k.exp);
+    }
+    
+    //  Structural equality of a (in this key) and b (in key k), with variables compared by position.
+    private boolean sameNode(ASTNode a, TableKey k, ASTNode b) {
+        Integer va=(a instanceof Identifier) ? varidx.get(a) : null;
+        Integer vb=(b instanceof Identifier) ? k.varidx.get(b) : null;
+        if(va!=null || vb!=null) {
+            return va!=null && va.equals(vb);
+        }
+        if(a.getClass()!=b.getClass() || a.numChildren()!=b.numChildren()) {
+            return false;
+        }
+        if(a.numChildren()==0) {
+            return a.equals(b);
+        }
+        if(a instanceof WeightedSum) {
+            if(!Arrays.equals(((WeightedSum)a).getWeightsArray(), ((WeightedSum)b).getWeightsArray())) {
+                return false;
+            }
+        }
+        else if(a instanceof Mapping) {
+            if(!((Mapping)a).map.equals(((Mapping)b).map) || ((Mapping)a).defaultval!=((Mapping)b).defaultval) {
+                return false;
+            }
+        }
+        else if(!hasDefaultEquals(a)) {
+            //  Internal state not known here. Compare with the variables renamed.
+            return renamed(a).equals(k.renamed(b));
+        }
+        for(int i=0; i<a.numChildren(); i++) {
+            if(!sameNode(a.getChild(i), k, b.getChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private ASTNode renamed(ASTNode a) {
+        a=a.copy();
+        for(int i=0; i<vars.size(); i++) {
+            ReplaceASTNode r=new ReplaceASTNode(vars.get(i), new Identifier(m, "xxxx_"+i));
+            a=r.transform(a);
+        }
+        return a;
+    }
+    
+    //  Classes whose equals compares only the class and the children. 
+    private static final ConcurrentHashMap<Class<?>, Boolean> defaultEquals=new ConcurrentHashMap<Class<?>, Boolean>();
+    
+    private static boolean hasDefaultEquals(ASTNode a) {
+        Boolean d=defaultEquals.get(a.getClass());
+        if(d==null) {
+            try {
+                d=a.getClass().getMethod("equals", Object.class).getDeclaringClass()==ASTNodeC.class;
+            }
+            catch(NoSuchMethodException e) {
+                d=false;
+            }
+            defaultEquals.put(a.getClass(), d);
+        }
+        return d;
+    }
+    
+    ASTNode getExpression() {
+        return exp;
+    }
+    
+    public String toString() {
+        return (str!=null) ? str : exp.toString();
+    }
+}
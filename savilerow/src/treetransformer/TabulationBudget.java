@@ -0,0 +1,178 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+
+//  Time and memory budgets for tabulating the constraints chosen by the heuristic,
+//  on top of the limits on the number of search nodes. Each attempt to tabulate a
+//  constraint gets a budget from start(), which the search checks as it goes.
+//
+//  There are limits for one constraint and for the whole run, in milliseconds and in
+//  bytes of table (eight per value in the search's store of supports). Time for the
+//  whole run is the wall-clock time during which at least one attempt is running, so
+//  attempts running in parallel (-tabulation-threads) are not counted twice. Bytes for
+//  the whole run are the total size of the tables made, plus the size so far of the
+//  tables of the attempts still running. With -timelimit, the budget for the whole
+//  run also ends when the time limit does.
+//
+//  The time for one constraint is adjusted as the run goes. A failed attempt uses
+//  all of its budget, so while more attempts have failed than succeeded it is cut to
+//  four times the longest success so far (but not below a sixteenth of the limit).
+
+public final class TabulationBudget {
+    private final long start;       //  System.nanoTime() at the start of the attempt.
+    private final long deadline;    //  System.nanoTime() to stop at.
+    private final long maxbytes;
+    private long reported=0;        //  Bytes of this attempt counted in inflightbytes.
+
+    //  Totals for the run.
+    private static long attempts=0;
+    private static long successes=0;
+    private static long failures=0;
+    private static long outofbudget=0;
+    private static long spentbytes=0;
+    private static long inflightbytes=0;    //  Of the attempts still running.
+    private static int running=0;
+    private static long runningsince=0;     //  System.nanoTime() when running last became non-zero.
+    private static long busyns=0;           //  Time with at least one attempt running, up to runningsince.
+    private static long longestsuccess=0;   //  ms
+
+    private TabulationBudget(long ms, long bytes) {
+        start=System.nanoTime();
+        deadline=start+Math.min(ms, Long.MAX_VALUE/2000000L)*1000000L;
+        maxbytes=bytes;
+    }
+
+    private static boolean enabled() {
+        return CmdFlags.tabulation_time>0 || CmdFlags.tabulation_total_time>0
+            || CmdFlags.tabulation_bytes>0 || CmdFlags.tabulation_total_bytes>0;
+    }
+
+    //  Budget for one attempt, or null if no budgets are set.
+    public static synchronized TabulationBudget start() {
+        if(!enabled()) {
+            return null;
+        }
+        attempts++;
+
+        long ms=Long.MAX_VALUE;
+        if(CmdFlags.tabulation_time>0) {
+            ms=CmdFlags.tabulation_time;
+            if(failures>successes && successes>0) {
+                ms=Math.min(ms, Math.max(4*longestsuccess, ms/16));
+            }
+        }
+        if(CmdFlags.tabulation_total_time>0) {
+            //  The time used grows at the same rate however many attempts are running, 
+            //  so the rest of the total is the longest this attempt can run. 
+            ms=Math.min(ms, CmdFlags.tabulation_total_time-busyms());
+        }
+        if(CmdFlags.getTimeLimit()>0) {
+            ms=Math.min(ms, CmdFlags.getTimeLimit()-(System.currentTimeMillis()-CmdFlags.startTime));
+        }
+
+        long bytes=Long.MAX_VALUE;
+        if(CmdFlags.tabulation_bytes>0) {
+            bytes=CmdFlags.tabulation_bytes;
+        }
+        if(CmdFlags.tabulation_total_bytes>0) {
+            bytes=Math.min(bytes, CmdFlags.tabulation_total_bytes-spentbytes);
+        }
+
+        if(running==0) {
+            runningsince=System.nanoTime();
+        }
+        running++;
+        return new TabulationBudget(Math.max(ms, 0), Math.max(bytes, 0));
+    }
+    
+    //  Time used so far for the whole run. 
+    private static long busyms() {
+        long ns=busyns;
+        if(running>0) {
+            ns+=System.nanoTime()-runningsince;
+        }
+        return ns/1000000L;
+    }
+
+    //  Nothing left for this attempt, so there is no point starting the search.
+    public boolean usedUp() {
+        return deadline<=start || maxbytes==0;
+    }
+
+    //  Has the attempt run out of time, or made a table of more than the byte budget?
+    //  Called from the search, possibly from several threads.
+    public boolean exceeded(long bytes) {
+        if(bytes>maxbytes || System.nanoTime()-deadline>0) {
+            return true;
+        }
+        if(CmdFlags.tabulation_total_bytes>0) {
+            synchronized(TabulationBudget.class) {
+                if(bytes>reported) {
+                    inflightbytes+=bytes-reported;
+                    reported=bytes;
+                }
+                return spentbytes+inflightbytes>CmdFlags.tabulation_total_bytes;
+            }
+        }
+        return false;
+    }
+
+    //  Record the outcome of the attempt. bytes is the size of the table when the search stopped.
+    //  The search only checks the budget now and then, so a table that was completed
+    //  but is over the byte budget is turned into a failure here. Returns false if so.
+    public boolean finish(boolean success, boolean budgetused, long bytes) {
+        long ms=(System.nanoTime()-start)/1000000L;
+        synchronized(TabulationBudget.class) {
+            running--;
+            if(running==0) {
+                busyns+=System.nanoTime()-runningsince;
+            }
+            inflightbytes-=reported;
+            reported=0;
+            if(success && (bytes>maxbytes || (CmdFlags.tabulation_total_bytes>0 && spentbytes+bytes>CmdFlags.tabulation_total_bytes))) {
+                success=false;
+                budgetused=true;
+            }
+            if(success) {
+                successes++;
+                spentbytes+=bytes;
+                longestsuccess=Math.max(longestsuccess, ms);
+            }
+            else {
+                failures++;
+                if(budgetused) {
+                    outofbudget++;
+                }
+            }
+            return success;
+        }
+    }
+
+    public static synchronized void printStats() {
+        if(enabled()) {
+            CmdFlags.printlnIfVerbose("Tabulation budget: "+attempts+" attempts, "+successes+" succeeded, "+failures+" failed ("
+                +outofbudget+" out of budget), "+busyms()+" ms, "+spentbytes+" bytes.");
+        }
+    }
+}
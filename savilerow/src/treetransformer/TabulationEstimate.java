@@ -0,0 +1,182 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+
+import java.util.*;
+
+//  Cheap prediction of the cost of tabulating an expression, made before the
+//  search so that hopeless candidates can be rejected (-tabulation-estimate).
+//
+//  The search tree is sampled by random probes (Knuth's estimator). Each probe
+//  assigns the variables in order, each to a random value of its domain, until the
+//  compiled expression is true or false (or false on the bounds of the unassigned
+//  variables, as the search finds by simplifying). The product of the domain sizes along the
+//  probe estimates the number of nodes at each depth, so the sizes at a false leaf
+//  estimate the number of failures, and at a true leaf the number of supports (for
+//  a conventional table, times the number of assignments of the rest of the
+//  variables). The averages over all probes are unbiased estimates for the search
+//  for a conventional table. They do not model the pruning done by short supports,
+//  which can be many orders of magnitude, so for short tables they are only upper
+//  estimates and are not used to reject. If the bounds of the expression already
+//  show it is true or false, there is no search to estimate.
+//
+//  After a search that was not rejected, record() compares the prediction with
+//  the real counts. The error is printed with -v, for tuning the rejection rule.
+
+public final class TabulationEstimate {
+    private static final int PROBES=64;
+
+    //  Reject when the prediction is more than this many times the limit.
+    private static final double REJECT_FACTOR=10.0;
+
+    public final double failures;
+    public final double supports;
+    private final String exp;
+
+    //  Totals for the run.
+    private static long estimates=0;
+    private static long rejected=0;
+    private static long recorded=0;
+    private static double failerror=0.0;   //  Sum of |log10 of predicted/actual|.
+    private static double superror=0.0;
+
+    private TabulationEstimate(double f, double s, String e) {
+        failures=f;
+        supports=s;
+        exp=e;
+    }
+
+    //  Estimate for exp over the variables in varlist with domains doms, or null if
+    //  exp cannot be evaluated quickly.
+    public static TabulationEstimate estimate(ASTNode exp, ArrayList<ASTNode> varlist, ArrayList<ASTNode> doms, boolean shorttable) {
+        ArrayList<Intpair> bnds=exp.getIntervalSetExp();
+        if(bnds.size()==1 && bnds.get(0).lower==bnds.get(0).upper && exp.isRelation()) {
+            //  Always true or always false.
+            return count(new TabulationEstimate(0.0, 1.0, exp.toString()));
+        }
+
+        CompiledExpression ce=CompiledExpression.compile(exp, varlist);
+        if(ce==null) {
+            return null;
+        }
+
+        int n=varlist.size();
+        ArrayList<ArrayList<Intpair>> intervals=new ArrayList<ArrayList<Intpair>>(n);
+        double[] size=new double[n];
+        double[] rest=new double[n+1];    //  rest[i] is the number of assignments of variables i..n-1.
+        long[] lo=new long[n];
+        long[] hi=new long[n];
+        for(int i=0; i<n; i++) {
+            intervals.add(doms.get(i).getIntervalSet());
+            size[i]=Intpair.numValues(intervals.get(i));
+            if(size[i]==0) {
+                return count(new TabulationEstimate(0.0, 0.0, exp.toString()));
+            }
+            lo[i]=intervals.get(i).get(0).lower;
+            hi[i]=intervals.get(i).get(intervals.get(i).size()-1).upper;
+        }
+        rest[n]=1.0;
+        for(int i=n-1; i>=0; i--) {
+            rest[i]=rest[i+1]*size[i];
+        }
+
+        Random r=new Random(0);
+        double fails=0.0;
+        double sups=0.0;
+        for(int p=0; p<PROBES; p++) {
+            ce.clearAll();
+            double w=1.0;
+            for(int i=0; i<=n; i++) {
+                long v=ce.evaluate();
+                if(v==0 || (v==CompiledExpression.UNKNOWN && !ce.mayBeTrue(lo, hi))) {
+                    fails+=w;
+                    break;
+                }
+                if(v==1) {
+                    sups+=shorttable ? w : w*rest[i];
+                    break;
+                }
+                if(i==n) {
+                    break;   //  Should not happen: every variable is assigned.
+                }
+                ce.setValue(i, randomValue(intervals.get(i), (long)size[i], r));
+                w*=size[i];
+            }
+        }
+        ce.clearAll();
+        return count(new TabulationEstimate(fails/PROBES, sups/PROBES, exp.toString()));
+    }
+
+    private static long randomValue(ArrayList<Intpair> intervals, long size, Random r) {
+        long k=(long)(r.nextDouble()*size);
+        for(int j=0; j<intervals.size(); j++) {
+            long len=intervals.get(j).upper-intervals.get(j).lower+1;
+            if(k<len) {
+                return intervals.get(j).lower+k;
+            }
+            k-=len;
+        }
+        return intervals.get(intervals.size()-1).upper;
+    }
+
+    private static synchronized TabulationEstimate count(TabulationEstimate e) {
+        estimates++;
+        return e;
+    }
+
+    //  Is the search for a conventional table predicted to go well over its limits?
+    public boolean hopeless(long suplimit, long faillimit) {
+        boolean h=failures>REJECT_FACTOR*faillimit || supports>REJECT_FACTOR*suplimit;
+        if(h) {
+            synchronized(TabulationEstimate.class) {
+                rejected++;
+            }
+            CmdFlags.printlnIfVerbose("Tabulation estimate rejected "+exp+": "+Math.round(failures)+" failures, "+Math.round(supports)+" supports.");
+        }
+        return h;
+    }
+
+    //  Compare with the counts from the search. complete is false if the search stopped
+    //  at a limit, when the counts are only lower bounds and are not included in the error.
+    public void record(long actualfailures, long actualsupports, boolean complete) {
+        CmdFlags.printlnIfVerbose("Tabulation estimate "+Math.round(failures)+" failures, "+Math.round(supports)+" supports; search "
+            +actualfailures+" failures, "+actualsupports+" supports"+(complete ? "" : " (stopped at a limit)")+".");
+        if(complete) {
+            synchronized(TabulationEstimate.class) {
+                recorded++;
+                failerror+=Math.abs(Math.log10((failures+1.0)/(actualfailures+1.0)));
+                superror+=Math.abs(Math.log10((supports+1.0)/(actualsupports+1.0)));
+            }
+        }
+    }
+
+    public static synchronized void printStats() {
+        if(estimates>0) {
+            String err=(recorded==0) ? "" : String.format(", mean error %.2f (failures) and %.2f (supports) orders of magnitude over %d searches",
+                failerror/recorded, superror/recorded, recorded);
+            CmdFlags.printlnIfVerbose("Tabulation estimates: "+estimates+" made, "+rejected+" rejected"+err+".");
+        }
+    }
+}
@@ -37,15 +37,15 @@ public class TransformDecomposeNegativeTable extends TreeTransformerBottomUpNoWr
 	{
 	    if(curnode instanceof NegativeTable)
         {
-            ASTNode table=curnode.getChildConst(1);
+            PackedMatrix table=PackedMatrix.getTable(m, curnode.getChild(1), false);
             
             ArrayList<ASTNode> and=new ArrayList<ASTNode>();
             
-            for(int i=1; i<table.numChildren(); i++) {
+            for(int i=0; i<table.numRows(); i++) {
                 ArrayList<ASTNode> orlist=new ArrayList<ASTNode>();
                 
                 for(int j=1; j<curnode.getChild(0).numChildren(); j++) {
-                    orlist.add(new AllDifferent(curnode.getChild(0).getChild(j), table.getChild(i).getChild(j)));
+                    orlist.add(new AllDifferent(curnode.getChild(0).getChild(j), NumberConstant.make(table.get(i, j-1))));
                 }
                 
                 and.add(new Or(orlist));
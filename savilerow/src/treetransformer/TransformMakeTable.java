@@ -27,6 +27,8 @@ import savilerow.model.*;
 import savilerow.eprimeparser.EPrimeReader;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 //  Turn MakeTable type into tableshort constraint.
 
@@ -36,29 +38,40 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
     
     private static boolean twowatchedlits=false;
     
-    private static boolean diskcache=false;   //  Whether to use the persistent cache.
+    private boolean diskcache;   //  Whether to use the persistent cache.
     
-    PersistentCache pcache;      // On-disk cache of successful conversions.
-    HashSet<String> failCache;   // In-memory cache of failed conversions.
-    HashMap<String, ASTNode> memCache;   // In-memory cache of successful conversions, either read from disk or done in this process. 
+    TableCache pcache;      // On-disk cache of successful conversions.
+    HashSet<TableKey> failCache;   // In-memory cache of failed conversions. Use isKnownFailure and addFailure. 
+    HashMap<TableKey, ASTNode> memCache;   // In-memory cache of successful conversions, either read from disk or done in this process. 
+    HashMap<TableKey, int[]> memLabels;    // For tables in memCache made in this process with -tabulation-canonical or -tabulation-shift, the position of the variable of each column in the key. 
+    HashMap<TableKey, long[]> memShifts;   // For tables in memCache made in this process with -tabulation-shift, the offset of the values in each column from the key's. 
+    HashSet<TableKey> memNegative;         // Tables in memCache that hold the conflicts of a negative table (-tabulation-negative). These are not saved on disk. 
     
     boolean prop;
     public TransformMakeTable(Model _m, boolean propagate) {
         super(_m);
+        diskcache=CmdFlags.tabulation_cache;
         if(diskcache) {
-            pcache = new PersistentCache();
+            pcache = TableCache.getCache();
         }
-        failCache=new HashSet<String>();
-        memCache=new HashMap<String,ASTNode>();
+        failCache=new HashSet<TableKey>();
+        memCache=new HashMap<TableKey,ASTNode>();
+        memLabels=new HashMap<TableKey,int[]>();
+        memShifts=new HashMap<TableKey,long[]>();
+        memNegative=new HashSet<TableKey>();
         prop=propagate;
     }
     public TransformMakeTable(Model _m) {
         super(_m);
+        diskcache=CmdFlags.tabulation_cache;
         if(diskcache) {
-            pcache = new PersistentCache();
+            pcache = TableCache.getCache();
         }
-        failCache=new HashSet<String>();
-        memCache=new HashMap<String,ASTNode>();
+        failCache=new HashSet<TableKey>();
+        memCache=new HashMap<TableKey,ASTNode>();
+        memLabels=new HashMap<TableKey,int[]>();
+        memShifts=new HashMap<TableKey,long[]>();
+        memNegative=new HashSet<TableKey>();
         prop=false;
     }
     
@@ -66,23 +79,42 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         // node must be the string containing the expression, domains etc. We pass it in because we already
         // know it, and it is expensive to recalculate
         
-        StringBuilder eprime = new StringBuilder();
-        eprime.append("letting tab" + PersistentCache.getHash(node) + " = ");
-        
-        ASTNode table=newTable.getChildConst(1);
-        if(!(table.isMatrixLiteral())) {
-            System.out.println(table.toString());
+        if(diskcache) {
+            saveToDiskCache(node, newTable);
+        }
+    }
+    
+    //  Write the table of newTable (a Table or TableShort constraint) to the disk cache
+    //  in packed form, without building its matrix literal. 
+    private void saveToDiskCache(String node, ASTNode newTable) {
+        if(newTable.getChild(1).getCategory()!=ASTNode.Constant) {
             CmdFlags.errorExit("Confused ShortTable");
         }
-        
-        eprime.append(table.toString());
-        if(diskcache) {
-            pcache.addToCache(node, eprime.toString());
+        pcache.addTable(node, PackedMatrix.getTable(m, newTable.getChild(1), newTable instanceof TableShort));
+    }
+    
+    //  Look up the disk cache, and put the table in the constant matrix store if it is there.
+    //  Returns the identifier of the table, or null. 
+    protected ASTNode loadFromDiskCache(String expstring) {
+        if(!diskcache) {
+            return null;
+        }
+        ASTNode tab=pcache.findTable(expstring);
+        if(tab==null) {
+            if(verbose) {
+                System.out.println("Cache miss");
+            }
+            return null;
         }
+        if(verbose) {
+            System.out.println("Cache match!");
+        }
+        return m.cmstore.newConstantMatrixDedup(tab);
     }
     
     public class RetPair {
-        public String expstring;
+        public String expstring;   //  Key for tryCache.
+        public TableKey key;       //  Key for tryCacheNormalised.
         public NodeReplacement nodereplace;
     }
     
@@ -113,38 +145,13 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         
         ret.expstring = decorateExpressionString(curnode, shorttable, domains);
         
-        String cache = null;
-        if(diskcache) {
-            cache=pcache.findInCache(ret.expstring);
-        }
-        if(cache != null) {
-            if(verbose) {
-                System.out.println("Cache match!");
-            }
-            EPrimeReader epr = new EPrimeReader(cache, false);
-            ArrayList<ASTNode> parsed = epr.readParameterFile(m);
-            if (verbose) {
-                System.out.println("Cache read!");
-            }
-            ASTNode tab = parsed.get(0).getChild(1);
-            
-            TransformSimplify ts=new TransformSimplify();
-            tab=ts.transform(tab);
-            
-            tab=m.cmstore.newConstantMatrixDedup(tab);
-            
+        ASTNode tab=loadFromDiskCache(ret.expstring);
+        if(tab != null) {
             if(!shorttable) {
                 ret.nodereplace = new NodeReplacement(new Table(m, CompoundMatrix.make(varlist), tab));
-                return ret;
             }
             else {
                 ret.nodereplace = new NodeReplacement(new TableShort(m, CompoundMatrix.make(varlist), tab));
-                return ret;
-            }
-        }
-        else {
-            if(verbose) {
-                System.out.println("Cache miss");
             }
         }
         return ret;
@@ -178,14 +185,10 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
 	            //  Make short table constraint.
                 newTable = makeTableShort(a, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
             }
-            saveToCacheNormalised(ret.expstring, a, newTable);
+            saveToCacheNormalised(ret.key, a, newTable);
             return new NodeReplacement(newTable);
         }
-        else if(!prop && (CmdFlags.make_short_tab==3 || CmdFlags.make_short_tab==4) 
-            && !(curnode instanceof And) && curnode.getParent()!=null && curnode.getParent().inTopAnd() 
-            && !(curnode instanceof Tag) && curnode.isRelation()
-            && !(curnode instanceof Table) && !(curnode instanceof TableShort) && !(curnode instanceof NegativeTable)
-            && !(curnode instanceof BooleanConstant)) {
+        else if(isCandidate(curnode)) {
             //   Heuristic for applying the short table converter. 
             //   Only applied in final tailoring process.
             //   If curnode is directly contained in the top-level conjunction (or Top) then:
@@ -200,36 +203,43 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
                 if(ret.nodereplace != null) {
                     return ret.nodereplace;
                 }
-                if(failCache.contains(ret.expstring)) {   /// Ideally this check should go above the pcache check.
+                if(isKnownFailure(ret.key)) {   /// Ideally this check should go above the pcache check.
+                    return new NodeReplacement(new Tag(curnode));
+                }
+                if(rejectByEstimate(ret.key, curnode)) {
+                    addFailure(ret.key);
                     return new NodeReplacement(new Tag(curnode));
                 }
                 
                 ASTNode a = normalise(curnode);
-                ASTNode newTable;
-                if(CmdFlags.make_short_tab==3) {
-                    newTable=makeTableLong(a, 10000, 100000);
-                }
-                else {
-                    newTable=makeTableShort(a, 10000, 100000, 100000);
-                }
+                ASTNode newTable=makeTableLimited(ret.key, a);
                 
                 if(newTable==null) {
-                    failCache.add(ret.expstring);
+                    addFailure(ret.key);
                     if(verbose) {
-                        System.out.println("Adding to failCache:"+ret.expstring);
+                        System.out.println("Adding to failCache:"+ret.key);
                     }
                     return new NodeReplacement(new Tag(curnode));
                 }
                 
                 // Save in the cache
-                saveToCacheNormalised(ret.expstring, a, newTable);
+                saveToCacheNormalised(ret.key, a, newTable);
                 return new NodeReplacement(newTable);
             }
         }
         return null;
     }
     
-    private boolean heuristic(ASTNode curnode) {
+    //  Is curnode a top-level constraint that the heuristic may consider?
+    private boolean isCandidate(ASTNode curnode) {
+        return !prop && (CmdFlags.make_short_tab==3 || CmdFlags.make_short_tab==4) 
+            && !(curnode instanceof And) && curnode.getParent()!=null && curnode.getParent().inTopAnd() 
+            && !(curnode instanceof Tag) && curnode.isRelation()
+            && !(curnode instanceof Table) && !(curnode instanceof TableShort) && !(curnode instanceof NegativeTable)
+            && !(curnode instanceof BooleanConstant);
+    }
+    
+    public boolean heuristic(ASTNode curnode) {
         ArrayList<ASTNode> varlist=getVariablesOrdered(curnode);
         ArrayList<ASTNode> varlistdups=getVariablesDup(curnode);
         
@@ -280,6 +290,16 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         TransformQuantifiedExpression tqe=new TransformQuantifiedExpression(m);
         curnode=tqe.transform(curnode);
         
+        ASTNode tab=searchTableShort(curnode, suplimit, faillimit, impliedlimit);
+        if(tab==null) return null;
+        
+        return makeTableNode(curnode, tab, true, false);
+    }
+    
+    //  Tabulate an expression (normalised, no quantifiers) with the given limits.
+    //  Returns the matrix of short supports, not yet placed in the constant
+    //  matrix store, or null if a limit was reached. 
+    private ASTNode searchTableShort(ASTNode curnode, long suplimit, long faillimit, long impliedlimit) {
         // Curnode must already be normalised.
         
         //  Use ordered to match the order used in the normalised load/store functions. 
@@ -290,12 +310,16 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         
         ArrayList<ASTNode> vardoms=getDomains(varlist);
         
+        evaluator=CompiledExpression.compile(curnode, varlist);
+        setupMinimiser(curnode, varlist);
+        
         if(twowatchedlits) {
-            setupShortSupports2(varlist.size(), vardoms);
+            setupShortSupports2(vardoms);
         }
         else {
-            setupShortSupports(varlist.size());
+            setupShortSupports(vardoms);
         }
+        setupOrdering(varlist);
         
         failcount=0;
         impliedcount=0;
@@ -321,78 +345,90 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
                 // Find the variables in this disjunct and put them to the start of the variable order. 
                 ArrayList<ASTNode> dvarlist=getVariablesOrdered(curnode.getChild(i));
                 
-                ArrayList<Long> assignment=new ArrayList<Long>(Collections.nCopies(varlist.size(), Long.MIN_VALUE));
+                long[] assignment=new long[varlist.size()];
+                Arrays.fill(assignment, ShortSupportStore.WILDCARD);
                 
-                ArrayList<Integer> vo=new ArrayList<Integer>(varlist.size());
+                int[] vo=new int[varlist.size()];
+                int vosize=0;
                 for(int j=0; j<dvarlist.size(); j++) {
-                    vo.add(varlist.indexOf(dvarlist.get(j)));
+                    vo[vosize++]=varlist.indexOf(dvarlist.get(j));
                 }
                 for(int j=0; j<varlist.size(); j++) {
-                    if(vo.indexOf(j)==-1) {
-                        vo.add(j);
+                    if(!dvarlist.contains(varlist.get(j))) {
+                        vo[vosize++]=j;
                     }
                 }
                 
                 //  Search with a depth limit of dvarlist.size, so only the variables in this disjunct will be assigned (even though vo will change during search)
-                boolean flag=DFS(varlist, vardoms, curnode, curnode, assignment, vo, -1, suplimit, faillimit, impliedlimit, dvarlist.size());
+                boolean flag=DFS(varlist, curnode, curnode, assignment, vo, -1, suplimit, faillimit, impliedlimit, dvarlist.size());
                 if(verbose) System.out.println("Stats of one disjunct: "+failcount+" "+impliedcount+" "+shortsups.size()+" "+flag);
                 if(!flag) return null;
             }
         }
         else {
             // Do the normal search on all variables. 
-            ArrayList<Long> assignment=new ArrayList<Long>(Collections.nCopies(varlist.size(), Long.MIN_VALUE));
-            ArrayList<Integer> vo=new ArrayList<Integer>(varlist.size());
+            long[] assignment=new long[varlist.size()];
+            Arrays.fill(assignment, ShortSupportStore.WILDCARD);
+            int[] vo=new int[varlist.size()];
             for(int i=0; i<varlist.size(); i++) {
-                vo.add(i);
+                vo[i]=i;
             }
             
-            boolean flag=DFS(varlist, vardoms, curnode, curnode, assignment, vo, -1, suplimit, faillimit, impliedlimit, Integer.MAX_VALUE);
+            boolean flag;
+            if(CmdFlags.tabulation_split>0 && varlist.size()>CmdFlags.tabulation_split) {
+                flag=splitDFS(varlist, vardoms, curnode, true, suplimit, faillimit, impliedlimit);
+            }
+            else {
+                flag=DFS(varlist, curnode, curnode, assignment, vo, -1, suplimit, faillimit, impliedlimit, Integer.MAX_VALUE);
+            }
             if(verbose) System.out.println("Stats: "+failcount+" "+impliedcount+" "+shortsups.size()+" "+flag);
             if(!flag) return null;
         }
         
-        // Now convert into a tableshort constraint.
-        
-        ArrayList<ASTNode> shortsups2=new ArrayList<ASTNode>();
-        
-        for(int i=0; i<shortsups.size(); i++) {
-            
-            ArrayList<Long> shortsupold=shortsups.get(i);
-            
-            ArrayList<ASTNode> shortsupnew=new ArrayList<ASTNode>();
-            
-            for(int j=0; j<shortsupold.size(); j++) {
-                if(shortsupold.get(j)!=Long.MIN_VALUE) {
-                    shortsupnew.add(CompoundMatrix.make(NumberConstant.make(j+1), NumberConstant.make(shortsupold.get(j))));
-                }
-            }
-            
-            shortsups2.add(CompoundMatrix.make(shortsupnew));
-        }
-        
-        ASTNode tab=CompoundMatrix.make(shortsups2);
-        
         //  Further compress the set of short tuples using an extension of the IJCAI'13 algorithm.
+        //  The squeezer reads the supports where they are, and the watches are no longer needed.
+        //  Supports are not merged while the search runs, because checkShortSupports needs 
+        //  every support found so far, and squeezing the whole set decides the output. 
+        shortsups.releaseWatches();
         ArrayList<ArrayList<Intpair>> doms = new ArrayList<ArrayList<Intpair>>(vardoms.size());
         for(int i=0; i<vardoms.size(); i++) doms.add(vardoms.get(i).getIntervalSet());
-        ASTNode compressed=TransformShortTableSquash.compressShortTab(tab, doms);
+        ArrayList<long[]> compressed=TransformShortTableSquash.compressShortTuples(shortsups, doms);
         
-        if(compressed!=null) {
-            CmdFlags.printlnIfVerbose("In: " + tab +"\n\n"+doms);
-            CmdFlags.printlnIfVerbose("Out: " + compressed.numChildren());
-            tab=compressed;
+        ArrayList<long[]> sups=compressed;
+        if(compressed==null || CmdFlags.getVerbose()) {
+            sups=new ArrayList<long[]>(shortsups.size());
+            for(int i=0; i<shortsups.size(); i++) {
+                sups.add(shortsups.getSupport(i));   //  ShortSupportStore.WILDCARD is TupleCompress.free_value.
+            }
         }
         
-        tab=m.cmstore.newConstantMatrixDedup(tab);
+        if(compressed!=null) {
+            if(CmdFlags.getVerbose()) {
+                CmdFlags.println("In: " + TransformShortTableSquash.packShortTuples(sups) +"\n\n"+doms);
+                CmdFlags.println("Out: " + compressed.size());
+            }
+            sups=compressed;
+        }
         
-        return new TableShort(m, CompoundMatrix.make(varlist), tab);
+        // Now convert into a tableshort constraint.
+        return TransformShortTableSquash.packShortTuples(sups);
     }
     
     public ASTNode makeTableLong(ASTNode curnode, long suplimit, long faillimit) {
         TransformQuantifiedExpression tqe=new TransformQuantifiedExpression(m);
         curnode=tqe.transform(curnode);
         
+        ASTNode tab=searchTableLong(curnode, suplimit, faillimit, -1);
+        if(tab==null) return null;
+        
+        return makeTableNode(curnode, tab, false, false);
+    }
+    
+    //  As searchTableShort, for a conventional table. If conflimit is not negative,
+    //  the conflicts are collected as well (see addConflicts) and when there are more
+    //  than suplimit supports but at most conflimit conflicts the conflicts are 
+    //  returned instead, with negative set. 
+    private ASTNode searchTableLong(ASTNode curnode, long suplimit, long faillimit, long conflimit) {
         //  Option 1 or 3 -- turn makeTable function into a table constraint.
         
         //  Should normalise here. 
@@ -402,35 +438,345 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         ArrayList<ASTNode> varlist=getVariablesOrdered(curnode);
         ArrayList<ASTNode> vardoms=getDomains(varlist);
         
-        setupShortSupports(varlist.size());
+        evaluator=CompiledExpression.compile(curnode, varlist);
+        
+        setupShortSupports(vardoms);
         
         failcount=0;
-        boolean flag=DFSfull(varlist, vardoms, curnode, new ArrayList<Long>(), suplimit, faillimit);
+        negative=false;
+        conflicts=null;
+        boolean flag;
+        if(CmdFlags.tabulation_split>0 && varlist.size()>CmdFlags.tabulation_split) {
+            flag=splitDFS(varlist, vardoms, curnode, false, suplimit, faillimit, Long.MAX_VALUE);
+        }
+        else {
+            long[] assignment=new long[varlist.size()];
+            Arrays.fill(assignment, ShortSupportStore.WILDCARD);
+            if(conflimit>=0) {
+                conflicts=new ShortSupportStore(varlist.size());
+                this.conflimit=conflimit;
+            }
+            flag=DFSfull(varlist, curnode, assignment, 0, suplimit, faillimit);
+        }
         if(verbose && !flag) {
             System.out.println("DFS hit some limit.");
         }
         if(!flag) return null;
         
-        ArrayList<ASTNode> shortsups2=new ArrayList<ASTNode>();
+        ShortSupportStore rows=shortsups;
+        if(negative) {
+            rows=conflicts;
+            if(verbose) {
+                System.out.println("Made negative table with "+rows.size()+" conflicts.");
+            }
+        }
+        conflicts=null;
         
-        for(int i=0; i<shortsups.size(); i++) {
-            
-            ArrayList<Long> shortsupold=shortsups.get(i);
-            
-            ArrayList<ASTNode> shortsupnew=new ArrayList<ASTNode>(varlist.size());
-            
-            for(int j=0; j<shortsupold.size(); j++) {
-                shortsupnew.add(NumberConstant.make(shortsupold.get(j)));
+        long[] vals=new long[rows.size()*varlist.size()];
+        
+        for(int i=0; i<rows.size(); i++) {
+            for(int j=0; j<varlist.size(); j++) {
+                vals[i*varlist.size()+j]=rows.get(i, j);
             }
-            
-            shortsups2.add(CompoundMatrix.make(shortsupnew));
         }
         
-        ASTNode tab=CompoundMatrix.make(shortsups2);
+        return PackedMatrix.makeTable(vals, rows.size(), varlist.size());
+    }
+    
+    //  Put the table into the constant matrix store and make the table constraint on the variables of curnode.
+    //  If negative is set, tab holds the conflicts and the constraint is a negative table. 
+    private ASTNode makeTableNode(ASTNode curnode, ASTNode tab, boolean shorttable, boolean negative) {
+        ArrayList<ASTNode> varlist=getVariablesOrdered(curnode);
         
         tab=m.cmstore.newConstantMatrixDedup(tab);
         
-        return new Table(m, CompoundMatrix.make(varlist), tab);
+        if(negative) {
+            return new NegativeTable(m, CompoundMatrix.make(varlist), tab);
+        }
+        if(shorttable) {
+            return new TableShort(m, CompoundMatrix.make(varlist), tab);
+        }
+        else {
+            return new Table(m, CompoundMatrix.make(varlist), tab);
+        }
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Tabulation of candidates in parallel. The tables are computed in 
+    //   advance, then collected in the order the serial transformation asks for 
+    //   them, so the output does not depend on the number of threads or on 
+    //   which task finishes first.
+    
+    private HashMap<TableKey, ASTNode> precomputed;   //  Raw tables by key, null for a failed conversion. 
+    private HashMap<TableKey, int[]> precomputedLabels;   //  Column positions the table was made with (-tabulation-canonical or -tabulation-shift). 
+    private HashMap<TableKey, long[]> precomputedShifts;  //  Column offsets the table was made with (-tabulation-shift). 
+    private HashSet<TableKey> precomputedOutOfBudget;     //  Failed conversions that ran out of time or memory budget. 
+    private HashMap<TableKey, TabulationEstimate> precomputedEstimates;   //  Estimates made before the search (-tabulation-estimate), null if there was none. 
+    private HashSet<TableKey> precomputedRejected;        //  Candidates rejected by their estimate. 
+    private HashMap<TableKey, long[]> precomputedCounts;  //  Failures and supports of the search, when it did not run out of budget. 
+    private HashSet<TableKey> precomputedNegative;        //  Tables that hold the conflicts (-tabulation-negative). 
+    
+    //  Tabulate a normalised candidate constraint with the limits used by the heuristic,
+    //  using the table from precomputeTables if there is one. 
+    public ASTNode makeTableLimited(TableKey key, ASTNode a) {
+        outOfBudget=false;
+        if(precomputed!=null && precomputed.containsKey(key) && sameLabels(key)) {
+            ASTNode tab=precomputed.get(key);
+            outOfBudget=precomputedOutOfBudget.contains(key);
+            if(estimate!=null && precomputedCounts.containsKey(key)) {
+                estimate.record(precomputedCounts.get(key)[0], precomputedCounts.get(key)[1], tab!=null);
+            }
+            estimate=null;
+            if(tab==null) {
+                return null;
+            }
+            TransformQuantifiedExpression tqe=new TransformQuantifiedExpression(m);
+            a=tqe.transform(a);
+            return makeTableNode(a, tab, CmdFlags.make_short_tab==4, precomputedNegative.contains(key));
+        }
+        
+        TransformQuantifiedExpression tqe=new TransformQuantifiedExpression(m);
+        a=tqe.transform(a);
+        ASTNode tab=searchTableLimited(a);
+        if(estimate!=null && !outOfBudget && !negative) {
+            estimate.record(failcount, shortsups.size(), tab!=null);
+        }
+        estimate=null;
+        if(tab==null) {
+            return null;
+        }
+        return makeTableNode(a, tab, CmdFlags.make_short_tab==4, negative);
+    }
+    
+    //  Estimate for the candidate being tabulated, from rejectByEstimate. 
+    private TabulationEstimate estimate;
+    
+    //  Set when the last candidate was rejected by rejectByEstimate. 
+    private boolean rejected=false;
+    
+    //  As rejectByEstimate below, reusing the verdict from precomputeTables for key if there is one,
+    //  so each candidate is estimated and counted once. 
+    public boolean rejectByEstimate(TableKey key, ASTNode curnode) {
+        if(precomputedEstimates!=null && precomputedEstimates.containsKey(key)) {
+            rejected=precomputedRejected.contains(key);
+            estimate=precomputedEstimates.get(key);
+            return rejected;
+        }
+        return rejectByEstimate(curnode);
+    }
+    
+    //  With -tabulation-estimate, predict the cost of tabulating the candidate curnode
+    //  before it is normalised (see TabulationEstimate) and return true if it is hopeless. 
+    //  Only conventional tables are rejected. Otherwise the estimate is compared with 
+    //  the search in makeTableLimited. 
+    public boolean rejectByEstimate(ASTNode curnode) {
+        rejected=false;
+        estimate=null;
+        if(!CmdFlags.tabulation_estimate) {
+            return false;
+        }
+        ArrayList<ASTNode> varlist=getVariablesOrdered(curnode);
+        boolean shorttable=(CmdFlags.make_short_tab==4);
+        TabulationEstimate e=TabulationEstimate.estimate(curnode, varlist, getDomains(varlist), shorttable);
+        if(e==null) {
+            return false;
+        }
+        if(!shorttable && e.hopeless(HEURISTIC_SUPLIMIT, HEURISTIC_FAILLIMIT)) {
+            rejected=true;
+            return true;
+        }
+        estimate=e;
+        return false;
+    }
+    
+    //  Search with the limits used by the heuristic and the time and memory budgets
+    //  (see TabulationBudget). Returns the raw table, or null if a limit was reached or
+    //  the budget ran out, when outOfBudget is set. 
+    private ASTNode searchTableLimited(ASTNode a) {
+        outOfBudget=false;
+        negative=false;
+        TabulationBudget b=TabulationBudget.start();
+        if(b!=null && b.usedUp()) {
+            b.finish(false, true, 0);
+            outOfBudget=true;
+            return null;
+        }
+        budget=b;
+        ASTNode tab;
+        if(CmdFlags.make_short_tab==3) {
+            tab=searchTableLong(a, HEURISTIC_SUPLIMIT, HEURISTIC_FAILLIMIT, CmdFlags.tabulation_negative ? HEURISTIC_CONFLIMIT : -1);
+        }
+        else {
+            tab=searchTableShort(a, HEURISTIC_SUPLIMIT, HEURISTIC_FAILLIMIT, HEURISTIC_IMPLIEDLIMIT);
+        }
+        budget=null;
+        if(b!=null && !b.finish(tab!=null, outOfBudget, tableBytes())) {
+            outOfBudget=true;
+            tab=null;
+        }
+        return tab;
+    }
+    
+    //  Was the precomputed table for key made with its columns in the same order as key's, 
+    //  and the same values? Only with -tabulation-canonical can an isomorphic constraint with 
+    //  its variables in another order have the same key, and only with -tabulation-shift can
+    //  a constraint over shifted values.
+    private boolean sameLabels(TableKey key) {
+        return (key.labels==null || Arrays.equals(precomputedLabels.get(key), key.labels))
+            && (key.shifts==null || Arrays.equals(precomputedShifts.get(key), key.shifts));
+    }
+    
+    //  Limits on the search used when tabulating candidates chosen by the heuristic. 
+    public static final long HEURISTIC_SUPLIMIT=10000;
+    public static final long HEURISTIC_FAILLIMIT=100000;
+    public static final long HEURISTIC_IMPLIEDLIMIT=100000;
+    public static final long HEURISTIC_CONFLIMIT=10000;
+    
+    //  Has tabulating this candidate (with the heuristic limits) failed before, in this run
+    //  or, with the disk cache, in an earlier run with limits at least as large?
+    public boolean isKnownFailure(TableKey key) {
+        return failCache.contains(key) || (diskcache && pcache.hasFailure(failureKeyString(key), heuristicLimits()));
+    }
+    
+    //  A failure because the time or memory budget ran out (outOfBudget), or a candidate
+    //  rejected by its estimate, is not saved on disk, because it might not happen again. 
+    public void addFailure(TableKey key) {
+        failCache.add(key);
+        if(diskcache && !outOfBudget && !rejected) {
+            pcache.addFailure(failureKeyString(key), heuristicLimits());
+        }
+    }
+    
+    //  Splitting, propagation, the search order and collecting conflicts change whether the 
+    //  search succeeds within the limits, so a failure on disk only applies to a search with 
+    //  the same options. 
+    private String failureKeyString(TableKey key) {
+        return keyString(key)+"|||split "+CmdFlags.tabulation_split+" propagate "+CmdFlags.tabulation_propagate
+            +" order "+CmdFlags.tabulation_order+(CmdFlags.tabulation_negative ? " negative" : "");
+    }
+    
+    private static long[] heuristicLimits() {
+        if(CmdFlags.make_short_tab==3) {
+            return new long[]{HEURISTIC_SUPLIMIT, HEURISTIC_FAILLIMIT};
+        }
+        return new long[]{HEURISTIC_SUPLIMIT, HEURISTIC_FAILLIMIT, HEURISTIC_IMPLIEDLIMIT};
+    }
+    
+    //  Collect the top-level constraints that the heuristic would tabulate and
+    //  run the searches in parallel. Called before transform. 
+    public void precomputeHeuristic() {
+        ArrayList<ASTNode> cts=new ArrayList<ASTNode>();
+        collectCandidates(m.constraints, cts);
+        precomputeTables(cts);
+    }
+    
+    private void collectCandidates(ASTNode curnode, ArrayList<ASTNode> cts) {
+        for(int i=0; i<curnode.numChildren(); i++) {
+            collectCandidates(curnode.getChild(i), cts);
+        }
+        if(isCandidate(curnode) && heuristic(curnode)) {
+            cts.add(curnode);
+        }
+    }
+    
+    //  Tabulate each expression in cts with the heuristic limits, using 
+    //  CmdFlags.tabulation_threads threads. Expressions that are already in the 
+    //  memory or disk cache, or appear more than once, are searched at most once.
+    //  The results are used by makeTableLimited. 
+    public void precomputeTables(ArrayList<ASTNode> cts) {
+        if(CmdFlags.tabulation_threads<=1) {
+            return;
+        }
+        if(precomputed==null) {
+            precomputed=new HashMap<TableKey, ASTNode>();
+            precomputedLabels=new HashMap<TableKey, int[]>();
+            precomputedShifts=new HashMap<TableKey, long[]>();
+            precomputedOutOfBudget=new HashSet<TableKey>();
+            precomputedEstimates=new HashMap<TableKey, TabulationEstimate>();
+            precomputedRejected=new HashSet<TableKey>();
+            precomputedCounts=new HashMap<TableKey, long[]>();
+            precomputedNegative=new HashSet<TableKey>();
+        }
+        
+        boolean shorttable=(CmdFlags.make_short_tab==2 || CmdFlags.make_short_tab==4);
+        
+        //  Everything that touches the model (normalisation, domains, caches) is done here, sequentially.
+        ArrayList<TableKey> keys=new ArrayList<TableKey>();
+        ArrayList<ASTNode> exps=new ArrayList<ASTNode>();
+        HashSet<TableKey> seen=new HashSet<TableKey>();
+        for(int i=0; i<cts.size(); i++) {
+            ASTNode a=normalise(cts.get(i));
+            TableKey key=makeKey(a, shorttable);
+            
+            if(seen.contains(key) || memCache.containsKey(key) || isKnownFailure(key)
+                || precomputed.containsKey(key) || (diskcache && pcache.contains(keyString(key)))) {
+                continue;
+            }
+            seen.add(key);
+            boolean reject=rejectByEstimate(cts.get(i));
+            precomputedEstimates.put(key, estimate);
+            estimate=null;
+            if(reject) {
+                precomputedRejected.add(key);
+                continue;
+            }
+            a=a.copy();   //  The key holds on to a.
+            
+            TransformQuantifiedExpression tqe=new TransformQuantifiedExpression(m);
+            a=tqe.transform(a);
+            getDomains(getVariablesOrdered(a));
+            
+            keys.add(key);
+            exps.add(a);
+        }
+        
+        if(exps.size()==0) {
+            return;
+        }
+        if(verbose) {
+            System.out.println("Tabulating "+exps.size()+" expressions with "+CmdFlags.tabulation_threads+" threads.");
+        }
+        
+        //  Each task has its own TransformMakeTable so the search state is not shared. 
+        final ArrayList<TransformMakeTable> workers=new ArrayList<TransformMakeTable>();
+        ArrayList<Callable<ASTNode>> tasks=new ArrayList<Callable<ASTNode>>();
+        for(int i=0; i<exps.size(); i++) {
+            final ASTNode a=exps.get(i);
+            final TransformMakeTable worker=new TransformMakeTable(m);
+            workers.add(worker);
+            tasks.add(new Callable<ASTNode>() {
+                public ASTNode call() {
+                    return worker.searchTableLimited(a);
+                }
+            });
+        }
+        
+        try {
+            List<Future<ASTNode>> results=getPool().invokeAll(tasks);
+            for(int i=0; i<results.size(); i++) {
+                precomputed.put(keys.get(i), results.get(i).get());
+                precomputedLabels.put(keys.get(i), keys.get(i).labels);
+                precomputedShifts.put(keys.get(i), keys.get(i).shifts);
+                TransformMakeTable worker=workers.get(i);
+                if(worker.outOfBudget) {
+                    precomputedOutOfBudget.add(keys.get(i));
+                }
+                else if(worker.negative) {
+                    precomputedNegative.add(keys.get(i));
+                }
+                else if(worker.shortsups!=null) {
+                    precomputedCounts.put(keys.get(i), new long[]{worker.failcount, worker.shortsups.size()});
+                }
+            }
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CmdFlags.errorExit("Interrupted while tabulating constraints.");
+        }
+        catch(ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
     }
     
     
@@ -506,33 +852,30 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
             CmdFlags.println("In tryCacheNormalised:"+a);
         }
         
-        ArrayList<ASTNode> varlist=getVariablesOrdered(a);
-        ArrayList<ASTNode> domains=getDomains(varlist);
-        
-        for(int i=0; i<varlist.size(); i++) {
-            ReplaceASTNode r=new ReplaceASTNode(varlist.get(i), new Identifier(m, "xxxx_"+i));
-            a=r.transform(a);
-        }
-        
         RetPair ret = new RetPair();
         
-        ret.expstring = decorateExpressionString(a, shorttable, domains);
+        ret.key = makeKey(a, shorttable);
         
         ////////////////////////////////////////////////////////////////////////
         //
         //   Memory cache lookup
         
-        ASTNode lookupMemCache=memCache.get(ret.expstring);
+        ASTNode lookupMemCache=memCache.get(ret.key);
         if(lookupMemCache != null) {
             assert lookupMemCache instanceof Identifier;  //  Already stored in CM store. 
             if(verbose) {
                 System.out.println("Memory cache read!");
             }
-            if(!shorttable) {
-                ret.nodereplace = new NodeReplacement(new Table(m, CompoundMatrix.make(varlist), lookupMemCache));
+            ArrayList<ASTNode> varlist=scope(ret.key, memLabels.get(ret.key));
+            ASTNode tab=shiftTable(ret.key, lookupMemCache, memLabels.get(ret.key), memShifts.get(ret.key));
+            if(memNegative.contains(ret.key)) {
+                ret.nodereplace = new NodeReplacement(new NegativeTable(m, CompoundMatrix.make(varlist), tab));
+            }
+            else if(!shorttable) {
+                ret.nodereplace = new NodeReplacement(new Table(m, CompoundMatrix.make(varlist), tab));
             }
             else {
-                ret.nodereplace = new NodeReplacement(new TableShort(m, CompoundMatrix.make(varlist), lookupMemCache));
+                ret.nodereplace = new NodeReplacement(new TableShort(m, CompoundMatrix.make(varlist), tab));
             }
             return ret;
         }
@@ -541,81 +884,249 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         //
         //  Disc cache lookup
         
-        String cache = null;
-        if(diskcache) {
-            cache=pcache.findInCache(ret.expstring);
-        }
-        if(cache != null) {
-            if(verbose) {
-                System.out.println("Cache match!");
-            }
-            EPrimeReader epr = new EPrimeReader(cache, false);
-            ArrayList<ASTNode> parsed = epr.readParameterFile(m);
-            if (verbose) {
-                System.out.println("Cache read!");
-            }
-            ASTNode tab = parsed.get(0).getChild(1);
-            
-            TransformSimplify ts=new TransformSimplify();
-            tab=ts.transform(tab);
-            
-            tab=m.cmstore.newConstantMatrixDedup(tab);
-            
-            memCache.put(ret.expstring, tab);
+        ASTNode tab=diskcache ? loadFromDiskCache(keyString(ret.key)) : null;
+        if(tab != null) {
+            memCache.put(ret.key, tab);
             
+            ArrayList<ASTNode> varlist=scope(ret.key, null);
+            tab=shiftTable(ret.key, tab, null, null);
             if(!shorttable) {
                 ret.nodereplace = new NodeReplacement(new Table(m, CompoundMatrix.make(varlist), tab));
             }
             else {
                 ret.nodereplace = new NodeReplacement(new TableShort(m, CompoundMatrix.make(varlist), tab));
             }
-            return ret;
-        }
-        else {
-            if(verbose) {
-                System.out.println("Cache miss");
-            }
         }
         return ret;
     }
     
-    //   Save to cache. curnode MUST be already normalised using the normalise function, 
-    //   AND newTable MUST have its columns in the normalised order. 
-    public void saveToCacheNormalised(String node, ASTNode curnode, ASTNode newTable) {
-        // node is the string containing the expression and domains. We pass it in because we already
-        // know it, and it is expensive to recalculate
-        
-        ArrayList<ASTNode> varlist=getVariablesOrdered(curnode);
-        ArrayList<ASTNode> domains=getDomains(varlist);
+    //  Key for the memory caches. a must be already normalised, and must not be changed afterwards. 
+    public TableKey makeKey(ASTNode a, boolean shorttable) {
+        ArrayList<ASTNode> varlist=getVariablesOrdered(a);
+        ArrayList<ASTNode> doms=getDomains(varlist);
+        if(!CmdFlags.tabulation_canonical && !CmdFlags.tabulation_shift) {
+            return new TableKey(m, a, varlist, doms, shorttable);
+        }
+        
+        //  The expression for the key, its variables and their domains, and the 
+        //  position in kvars of each variable of a. 
+        ASTNode c=a;
+        ArrayList<ASTNode> kvars=varlist;
+        ArrayList<ASTNode> kdoms=doms;
+        int[] pos=new int[varlist.size()];
+        for(int i=0; i<pos.length; i++) {
+            pos[i]=i;
+        }
+        long[] shifts=null;
+        
+        if(CmdFlags.tabulation_shift) {
+            shifts=new long[varlist.size()];
+            ArrayList<ASTNode> sids=new ArrayList<ASTNode>();
+            ArrayList<ASTNode> sdoms=new ArrayList<ASTNode>();
+            ASTNode s=shiftExpression(a, varlist, doms, shifts, sids, sdoms);
+            ArrayList<ASTNode> svars=(s==null) ? null : getVariablesOrdered(s);
+            if(svars!=null && svars.size()==varlist.size()) {
+                c=s;
+                kvars=svars;
+                kdoms=new ArrayList<ASTNode>();
+                for(int j=0; j<svars.size(); j++) {
+                    int i=sids.indexOf(svars.get(j));
+                    pos[i]=j;
+                    kdoms.add(sdoms.get(i));
+                }
+            }
+            else {
+                //  A domain that cannot be shifted, or simplification removed a variable.
+                //  Use the expression as it is.
+                Arrays.fill(shifts, 0);
+            }
+        }
         
-        ASTNode a_copy=curnode.copy();
+        if(CmdFlags.tabulation_canonical) {
+            //  Rename each variable to its canonical position, then sort the 
+            //  commutative operators again under the new names. 
+            int[] lab=CanonicalLabelling.label(c, kvars, kdoms);
+            c=c.copy();
+            ArrayList<ASTNode> cvars=new ArrayList<ASTNode>(Collections.nCopies(kvars.size(), (ASTNode)null));
+            ArrayList<ASTNode> cdoms=new ArrayList<ASTNode>(Collections.nCopies(kvars.size(), (ASTNode)null));
+            for(int j=0; j<kvars.size(); j++) {
+                ASTNode id=new Identifier(m, "xxxx_"+lab[j]);
+                ReplaceASTNode r=new ReplaceASTNode(kvars.get(j), id);
+                c=r.transform(c);
+                cvars.set(lab[j], id);
+                cdoms.set(lab[j], kdoms.get(j));
+            }
+            TransformNormaliseAlpha tn=new TransformNormaliseAlpha(m);
+            c=tn.transform(c);
+            kvars=cvars;
+            kdoms=cdoms;
+            for(int i=0; i<pos.length; i++) {
+                pos[i]=lab[pos[i]];
+            }
+        }
         
+        TableKey key=new TableKey(m, c, kvars, kdoms, shorttable);
+        key.callervars=varlist;
+        key.labels=pos;
+        key.shifts=shifts;
+        return key;
+    }
+    
+    //  With -tabulation-shift, a copy of a with each integer variable replaced by a new 
+    //  variable for its value minus its lower bound, simplified. The new variables are
+    //  declared in a scratch model with the shifted domains, so that simplification 
+    //  uses the right bounds. Constraints that differ only by translating the values 
+    //  of their variables (and the constants that go with them) then become the same. 
+    //  Fills in the lower bounds, new variables and their domains. Returns null if a 
+    //  domain is not a set of integers. 
+    private ASTNode shiftExpression(ASTNode a, ArrayList<ASTNode> varlist, ArrayList<ASTNode> doms, long[] shifts, ArrayList<ASTNode> sids, ArrayList<ASTNode> sdoms) {
+        SymbolTable st=new SymbolTable();
         for(int i=0; i<varlist.size(); i++) {
-            ReplaceASTNode r=new ReplaceASTNode(varlist.get(i), new Identifier(m, "xxxx_"+i));
-            a_copy=r.transform(a_copy);
+            ASTNode dom=doms.get(i);
+            if(dom instanceof BooleanDomain) {
+                shifts[i]=0;
+                sdoms.add(dom);
+            }
+            else {
+                if(dom.getCategory()!=ASTNode.Constant || !dom.isFiniteSet()) {
+                    return null;
+                }
+                ArrayList<Intpair> intervals=dom.getIntervalSet();
+                if(intervals.size()==0) {
+                    return null;
+                }
+                shifts[i]=intervals.get(0).lower;
+                ArrayList<ASTNode> ranges=new ArrayList<ASTNode>();
+                for(int j=0; j<intervals.size(); j++) {
+                    ranges.add(new Range(NumberConstant.make(intervals.get(j).lower-shifts[i]), NumberConstant.make(intervals.get(j).upper-shifts[i])));
+                }
+                sdoms.add(new IntegerDomain(ranges));
+            }
+            st.newVariable("shft_"+i, sdoms.get(i), ASTNode.Decision);
         }
+        Model sm=new Model();
+        sm.setup(new Top(new BooleanConstant(true)), st, null, null, null, null);
         
-        if(node==null) {
-            node = decorateExpressionString(a_copy, (newTable instanceof TableShort), domains);
+        ASTNode c=a.copy();
+        for(int i=0; i<varlist.size(); i++) {
+            ASTNode id=new Identifier(sm, "shft_"+i);
+            sids.add(id);
+            ReplaceASTNode r=new ReplaceASTNode(varlist.get(i), (shifts[i]==0) ? id : new WeightedSum(id, NumberConstant.make(shifts[i])));
+            c=r.transform(c);
         }
-        
-        StringBuilder eprime = new StringBuilder();
-        eprime.append("letting tab" + PersistentCache.getHash(node) + " = ");
-        
-        ASTNode table=newTable.getChildConst(1);
-        if(!(table.isMatrixLiteral())) {
-            System.out.println(table.toString());
-            CmdFlags.errorExit("Confused ShortTable");
+        TransformSimplify ts=new TransformSimplify();
+        c=ts.transform(c);
+        TransformNormaliseAlpha tn=new TransformNormaliseAlpha(m);
+        return tn.transform(c);
+    }
+    
+    //  Scope for a cached table of key, where column j has the variable at position
+    //  labels[j] of the key (or j when labels is null). Without -tabulation-canonical 
+    //  or -tabulation-shift it is just the variables in order of first occurrence. 
+    private ArrayList<ASTNode> scope(TableKey key, int[] labels) {
+        if(key.labels==null) {
+            return key.vars;
+        }
+        ASTNode[] bycanon=new ASTNode[key.labels.length];
+        for(int i=0; i<key.labels.length; i++) {
+            bycanon[key.labels[i]]=key.callervars.get(i);
+        }
+        ArrayList<ASTNode> sc=new ArrayList<ASTNode>(bycanon.length);
+        for(int j=0; j<bycanon.length; j++) {
+            sc.add(bycanon[(labels==null) ? j : labels[j]]);
+        }
+        return sc;
+    }
+    
+    //  Table for the caller of key from a cached table tab, where column j has the variable
+    //  at position labels[j] of the key (or j) and its values are offset by tabshifts[j] (or 0)
+    //  from the key's. With -tabulation-shift, if the caller's variables are offset differently
+    //  the result is a view of tab with the values moved, added to the constant matrix store. 
+    private ASTNode shiftTable(TableKey key, ASTNode tab, int[] labels, long[] tabshifts) {
+        if(key.shifts==null) {
+            return tab;
+        }
+        long[] bypos=new long[key.shifts.length];
+        for(int i=0; i<key.shifts.length; i++) {
+            bypos[key.labels[i]]=key.shifts[i];
+        }
+        long[] d=new long[bypos.length];
+        boolean moved=false;
+        for(int j=0; j<d.length; j++) {
+            d[j]=bypos[(labels==null) ? j : labels[j]]-((tabshifts==null) ? 0 : tabshifts[j]);
+            moved=moved || d[j]!=0;
+        }
+        if(!moved) {
+            return tab;
+        }
+        PackedMatrix p=PackedMatrix.getTable(m, tab, key.shorttable);
+        if(p.numRows()==0) {
+            return tab;
+        }
+        p=p.shiftColumns(d);
+        for(int r=0; r<p.numRows(); r++) {
+            if(p.rowLength(r)==0) {
+                return m.cmstore.newConstantMatrixDedup(p.toAST());
+            }
         }
-        
-        eprime.append(table.toString());
-        if(diskcache) {
-            pcache.addToCache(node, eprime.toString());
+        return m.cmstore.newConstantMatrixDedup(p);
+    }
+    
+    //  Key string for the disk cache: the expression with its variables renamed to xxxx_0, xxxx_1, ..., and their domains.
+    //  Built the first time it is needed. 
+    private String keyString(TableKey key) {
+        if(key.str==null) {
+            ASTNode a=key.getExpression().copy();
+            for(int i=0; !CmdFlags.tabulation_canonical && i<key.vars.size(); i++) {   //  Canonical keys are already renamed.
+                ReplaceASTNode r=new ReplaceASTNode(key.vars.get(i), new Identifier(m, "xxxx_"+i));
+                a=r.transform(a);
+            }
+            key.str=decorateExpressionString(a, key.shorttable, key.doms);
+        }
+        return key.str;
+    }
+    
+    //   Save to cache. curnode MUST be already normalised using the normalise function, 
+    //   AND newTable MUST have its columns in the normalised order. A negative table 
+    //   is only kept in memory. 
+    public void saveToCacheNormalised(TableKey key, ASTNode curnode, ASTNode newTable) {
+        // key is normally the one from tryCacheNormalised. We pass it in because we already
+        // know it, and it is expensive to recalculate
+        if(key==null) {
+            key=makeKey(curnode.copy(), (newTable instanceof TableShort));
+        }
+        
+        if(newTable instanceof NegativeTable) {
+            memNegative.add(key);
+        }
+        else if(diskcache) {
+            if(key.labels!=null) {
+                //  The disk cache holds the table with its columns in the order of the 
+                //  key's variables, and the values of the key. 
+                PackedMatrix tab=PackedMatrix.getTable(m, newTable.getChild(1), newTable instanceof TableShort);
+                if(key.shifts!=null) {
+                    long[] d=new long[key.shifts.length];
+                    for(int j=0; j<d.length; j++) {
+                        d[j]=-key.shifts[j];
+                    }
+                    tab=tab.shiftColumns(d);
+                }
+                pcache.addTable(keyString(key), tab.permuteColumns(key.labels));
+            }
+            else {
+                saveToDiskCache(keyString(key), newTable);
+            }
         }
         
         //  Save to memory cache as well. 
         assert newTable.getChild(1) instanceof Identifier;
-        memCache.put(node, newTable.getChild(1));
+        memCache.put(key, newTable.getChild(1));
+        if(key.labels!=null) {
+            memLabels.put(key, key.labels);
+        }
+        if(key.shifts!=null) {
+            memShifts.put(key, key.shifts);
+        }
     }
     
     ////////////////////////////////////////////////////////////////////////////
@@ -625,31 +1136,93 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
     long failcount=0;
     long impliedcount=0;
     
+    //  When the search is split across threads (see splitDFS) the limits apply 
+    //  to the totals over all parts. shared holds the totals, indexed by the 
+    //  constants below, and stop is set when any part fails. Both are null otherwise. 
+    private AtomicLongArray shared;
+    private AtomicBoolean stop;
+    
+    private static final int SUPS=0;
+    private static final int FAILS=1;
+    private static final int IMPLIED=2;
+    
+    //  Time and memory budget of the current search (see searchTableLimited), or null. 
+    //  outOfBudget is set when the search stops because the budget ran out. 
+    private TabulationBudget budget;
+    private int budgetcheck=0;
+    boolean outOfBudget=false;
+    
+    //  Has the budget run out? Checked only every 256 calls because it reads the clock.
+    private boolean overBudget() {
+        if(budget==null) {
+            return false;
+        }
+        if(!outOfBudget && (++budgetcheck & 255)==0 && budget.exceeded(tableBytes())) {
+            outOfBudget=true;
+        }
+        return outOfBudget;
+    }
+    
+    //  Size of the tables found so far, over all parts of a split search. 
+    private long tableBytes() {
+        if(shortsups==null) {
+            return 0;
+        }
+        long n=(shared==null) ? shortsups.size() : shared.get(SUPS);
+        if(conflicts!=null) {
+            n+=conflicts.size();
+        }
+        return n*initial_domains.length*8;
+    }
+    
+    //  Each returns the count after incrementing it, over all parts of a split search. 
+    private long countSupport() {
+        return (shared==null) ? shortsups.size() : shared.incrementAndGet(SUPS);
+    }
+    
+    private long countFail() {
+        failcount++;
+        return (shared==null) ? failcount : shared.incrementAndGet(FAILS);
+    }
+    
+    private long countImplied() {
+        impliedcount++;
+        return (shared==null) ? impliedcount : shared.incrementAndGet(IMPLIED);
+    }
+    
     // Place justassignedidx at the start of varorder.
-    void promoteIdx(ArrayList<Integer> varorder, int justassignedidx) {
+    void promoteIdx(int[] varorder, int justassignedidx) {
         if(justassignedidx!=-1) {
-            int voidx=varorder.indexOf(justassignedidx);
+            int voidx=0;
+            while(varorder[voidx]!=justassignedidx) {
+                voidx++;
+            }
             
-            int tmp=varorder.get(voidx);
+            int tmp=varorder[voidx];
             for(int i=voidx; i>0; i--) {
-                varorder.set(i, varorder.get(i-1));
+                varorder[i]=varorder[i-1];
             }
-            varorder.set(0, tmp);
+            varorder[0]=tmp;
         }
     }
     
     // exp is the local copy of the expression.
     // When this becomes true, generate a short support and continue.
     // When this becomes false, backtrack.
-    private boolean DFS(ArrayList<ASTNode> varlist, ArrayList<ASTNode> vardoms, ASTNode orig_exp, ASTNode exp, ArrayList<Long> assignment, ArrayList<Integer> varorder, int justassignedidx, long suplimit, long faillimit, long impliedlimit, int depthlimit) {
-        // Check the set of short supports to see if any cover the current assignment.
-        if((!twowatchedlits) && checkShortSupports(assignment, justassignedidx)) {
-            impliedcount++;
-            return impliedcount<impliedlimit;  //  A short support has already been generated to cover this assignment.
+    private boolean DFS(ArrayList<ASTNode> varlist, ASTNode orig_exp, ASTNode exp, long[] assignment, int[] varorder, int justassignedidx, long suplimit, long faillimit, long impliedlimit, int depthlimit) {
+        if(stop!=null && stop.get()) {
+            return false;   //  Another part of a split search hit a limit.
         }
-        if(twowatchedlits && checkShortSupports2(assignment, justassignedidx)) {
-            impliedcount++;
-            return impliedcount<impliedlimit;  //  A short support has already been generated to cover this assignment.
+        if(overBudget()) {
+            return false;
+        }
+        
+        // Check the set of short supports to see if any cover the current assignment.
+        if((!twowatchedlits) && checkShortSupports(assignment, justassignedidx)) {
+            return countImplied()<impliedlimit;  //  A short support has already been generated to cover this assignment.
+        }
+        if(twowatchedlits && checkShortSupports2(justassignedidx)) {
+            return countImplied()<impliedlimit;  //  A short support has already been generated to cover this assignment.
         }
         
         if(exp instanceof BooleanConstant) {
@@ -665,79 +1238,73 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
                     addShortSupport2(varlist, orig_exp, assignment, justassignedidx);
                 }
                 
-                if(shortsups.size()>suplimit) {
+                if(countSupport()>suplimit) {
                     return false;   ///  Check the limit.
                 }
                 return true;
             }
             else {
-                failcount++;
-                return failcount<faillimit;   // continue search iff failcount<=faillimit.
+                return countFail()<faillimit;   // continue search iff failcount<=faillimit.
             }
         }
         
         // check depthlimit
-        if(depthlimit<assignment.size()) {
+        if(depthlimit<assignment.length) {
             int countassign=0;
-            for(int i=0; i<assignment.size(); i++) {
-                if(assignment.get(i)!=Long.MIN_VALUE) countassign++;
+            for(int i=0; i<assignment.length; i++) {
+                if(assignment[i]!=ShortSupportStore.WILDCARD) countassign++;
             }
             if(countassign>=depthlimit) {
                 return true;
             }
         }
         
-        //  Iterate through the domain of the current variable assigning each value in turn.
-        int curvaridx=-1;
-        varorderloop:
-        for(int i=0; i<varorder.size(); i++) {
-            if(assignment.get(varorder.get(i))==Long.MIN_VALUE) {
-                curvaridx=varorder.get(i);
-                break varorderloop;
-            }
+        if(propagate() && !evaluator.mayBeTrue(domlo, domhi)) {
+            return countFail()<faillimit;
         }
         
+        //  Iterate through the domain of the current variable assigning each value in turn.
+        int curvaridx=selectVariable(exp, assignment, varorder);
+        
         ASTNode curvar=varlist.get(curvaridx);
         TransformSimplify ts=new TransformSimplify();
+        long[] init_dom=initial_domains[curvaridx];
+        int[] valorder=valueOrder(curvaridx);
         
         if(!twowatchedlits) {
-            ArrayList<Long> vals=vardoms.get(curvaridx).getValueSet();
-            for(int i=0; i<vals.size(); i++) {
-                ASTNode local_exp=exp.copy();
+            for(int k=0; k<init_dom.length; k++) {
+                int i=(valorder==null) ? k : valorder[k];
+                ASTNode local_exp=assignAndSimplify(exp, curvar, curvaridx, init_dom[i], ts);  // make the assignment and simplify.
+                learn(curvaridx, i, local_exp);
                 
-                local_exp=assignValue(local_exp, curvar, vals.get(i));
+                assignment[curvaridx]=init_dom[i];
                 
-                local_exp=ts.transform(local_exp);  // make the assignment and simplify.
-                
-                assignment.set(curvaridx, vals.get(i));
-                
-                boolean flag=DFS(varlist, vardoms, orig_exp, local_exp, assignment, varorder, curvaridx, suplimit, faillimit, impliedlimit, depthlimit);
+                boolean flag=DFS(varlist, orig_exp, local_exp, assignment, varorder, curvaridx, suplimit, faillimit, impliedlimit, depthlimit);
                 if(!flag) return false;
                 
-                assignment.set(curvaridx, Long.MIN_VALUE);   //  delete this assignment.
+                assignment[curvaridx]=ShortSupportStore.WILDCARD;   //  delete this assignment.
+                unassignCompiled(curvaridx);
             }
         }
         else {
             //  Two watched literals in use. Search using domains.
-            long[] init_dom=initial_domains.get(curvaridx);
-            boolean[] cur_dom=current_domains.get(curvaridx);
-            for(int i=0; i<init_dom.length; i++) {
+            boolean[] cur_dom=current_domains[curvaridx];
+            for(int k=0; k<init_dom.length; k++) {
+                int i=(valorder==null) ? k : valorder[k];
                 if(cur_dom[i]) {
-                    ASTNode local_exp=exp.copy();
-                    
-                    local_exp=assignValue(local_exp, curvar, init_dom[i]);
+                    ASTNode local_exp=assignAndSimplify(exp, curvar, curvaridx, init_dom[i], ts);  // make the assignment and simplify.
+                    learn(curvaridx, i, local_exp);
                     
-                    local_exp=ts.transform(local_exp);  // make the assignment and simplify.
-                    
-                    assignment.set(curvaridx, init_dom[i]);
+                    assignment[curvaridx]=init_dom[i];
                     
                     BTMark();
                     
                     assign(curvaridx, i);
                     
-                    boolean flag=DFS(varlist, vardoms, orig_exp, local_exp, assignment, varorder, curvaridx, suplimit, faillimit, impliedlimit, depthlimit);
+                    boolean flag=DFS(varlist, orig_exp, local_exp, assignment, varorder, curvaridx, suplimit, faillimit, impliedlimit, depthlimit);
                     
-                    assignment.set(curvaridx, Long.MIN_VALUE);   //  delete this assignment.
+                    assignment[curvaridx]=ShortSupportStore.WILDCARD;   //  delete this assignment.
+                    unassignCompiled(curvaridx);
                     BTRevert();
                     unassign(curvaridx);
                     
@@ -748,121 +1315,414 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         return true;
     }
     
-    //   List of short supports, and one-watched-literal data structures.
-    //   The one watched literal indicates a literal that is either false or unknown.
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Variable and value ordering in DFS (CmdFlags.tabulation_order). 
+    //   0 is the static order, where the variable that was just assigned is moved 
+    //   to the front when a support or failure is found (see promoteIdx).
+    //   Otherwise only the variables still in the simplified expression are 
+    //   considered, and the next is the one with the smallest initial domain (1), 
+    //   the most occurrences (2), or whose assignments have most often made the 
+    //   expression true or false so far in this search (3, impact). Ties go to the 
+    //   static order. Domains are not pruned during the search (bounds reasoning 
+    //   only fails nodes), so 1 compares the domain sizes the search started with.
+    //   For 1-3 values are tried in decreasing order of the number of supports they
+    //   have led to so far, so that supports found early cover more of the search. 
+    
+    private HashMap<ASTNode, Integer> varindex;
+    private long[] impactTries;
+    private long[] impactHits;
+    private long[][] valueSupports;
     
-    private ArrayList<ArrayList<Long>> shortsups;   //  Wildcard is Long.MIN_VALUE
-    private ArrayList<ArrayList<Integer>> var_to_watched_sup;   ///   map from variable number to list of shortsups that are watching that variable.
+    //  Buffers reused at every node. A variable is assigned at most once on a path
+    //  of the search, so one value order per variable is enough. 
+    private int[] occ;
+    private int[][] valueOrders;
     
-    private void setupShortSupports(int numvars) {
-        shortsups=new ArrayList<ArrayList<Long>>();
-        var_to_watched_sup=new ArrayList<ArrayList<Integer>>();
+    private void setupOrdering(ArrayList<ASTNode> varlist) {
+        if(CmdFlags.tabulation_order==0) {
+            return;
+        }
+        int numvars=varlist.size();
+        varindex=new HashMap<ASTNode, Integer>();
         for(int i=0; i<numvars; i++) {
-            var_to_watched_sup.add(new ArrayList<Integer>());
+            varindex.put(varlist.get(i), i);
+        }
+        impactTries=new long[numvars];
+        impactHits=new long[numvars];
+        valueSupports=new long[numvars][];
+        valueOrders=new int[numvars][];
+        for(int i=0; i<numvars; i++) {
+            valueSupports[i]=new long[initial_domains[i].length];
+            valueOrders[i]=new int[initial_domains[i].length];
+        }
+        occ=new int[numvars];
+    }
+    
+    private int selectVariable(ASTNode exp, long[] assignment, int[] varorder) {
+        int best=-1;
+        if(CmdFlags.tabulation_order!=0) {
+            Arrays.fill(occ, 0);
+            countOccurrences(exp, occ);
+            for(int i=0; i<varorder.length; i++) {
+                int v=varorder[i];
+                if(assignment[v]==ShortSupportStore.WILDCARD && occ[v]>0 && (best==-1 || better(v, best, occ))) {
+                    best=v;
+                }
+            }
+        }
+        if(best==-1) {
+            for(int i=0; i<varorder.length; i++) {
+                if(assignment[varorder[i]]==ShortSupportStore.WILDCARD) {
+                    best=varorder[i];
+                    break;
+                }
+            }
+        }
+        return best;
+    }
+    
+    //  Is variable a strictly better choice than b?
+    private boolean better(int a, int b, int[] occ) {
+        switch(CmdFlags.tabulation_order) {
+            case 1:
+                return domainSize(a)<domainSize(b);
+            case 2:
+                return occ[a]>occ[b];
+            default:
+                //  Compare the proportions of assignments that decided the expression, 
+                //  counting an untried variable as deciding half of the time.
+                return (impactHits[a]*2+1)*(impactTries[b]+1)>(impactHits[b]*2+1)*(impactTries[a]+1);
+        }
+    }
+    
+    //  Size of the domain of var. Only the two watched literal search removes values
+    //  from domains, so otherwise this is the initial domain size. 
+    private int domainSize(int var) {
+        return twowatchedlits ? domsize[var] : initial_domains[var].length;
+    }
+    
+    private void countOccurrences(ASTNode a, int[] occ) {
+        if(a instanceof Identifier || a instanceof MatrixDeref || a instanceof SafeMatrixDeref) {
+            Integer idx=varindex.get(a);
+            if(idx!=null) {
+                occ[idx]++;
+                return;
+            }
+        }
+        for(int i=0; i<a.numChildren(); i++) {
+            countOccurrences(a.getChild(i), occ);
+        }
+    }
+    
+    //  Indices of the values of var in the order to try them, or null for ascending order. 
+    //  Stable insertion sort, so values with equal counts stay in ascending order. 
+    private int[] valueOrder(int var) {
+        if(CmdFlags.tabulation_order==0) {
+            return null;
+        }
+        long[] sups=valueSupports[var];
+        boolean allzero=true;
+        for(int i=0; i<sups.length; i++) {
+            if(sups[i]!=0) {
+                allzero=false;
+                break;
+            }
+        }
+        if(allzero) {
+            return null;
+        }
+        int[] vo=valueOrders[var];
+        for(int i=0; i<vo.length; i++) {
+            int v=i;
+            int j=i-1;
+            while(j>=0 && sups[vo[j]]<sups[v]) {
+                vo[j+1]=vo[j];
+                j--;
+            }
+            vo[j+1]=v;
         }
+        return vo;
     }
     
-    private void addShortSupport(ArrayList<ASTNode> varlist, ASTNode orig_exp, ArrayList<Long> assignment, int curvar) {
-        ArrayList<Long> sup=new ArrayList<Long>(assignment);   //copy
+    //  Record the outcome of assigning value validx to var. 
+    private void learn(int var, int validx, ASTNode local_exp) {
+        if(CmdFlags.tabulation_order==0) {
+            return;
+        }
+        impactTries[var]++;
+        if(local_exp instanceof BooleanConstant) {
+            impactHits[var]++;
+            if(local_exp.getValue()==1) {
+                valueSupports[var][validx]++;
+            }
+        }
+    }
+    
+    //   Set of short supports with one-watched-literal data structures (see ShortSupportStore).
+    //   The one watched literal indicates a literal that is either false or unknown.
+    
+    private ShortSupportStore shortsups;
+    
+    //   Values of each variable in ascending order. 
+    private long[][] initial_domains;
+    
+    private void setupShortSupports(ArrayList<ASTNode> vardoms) {
+        int numvars=vardoms.size();
+        initial_domains=new long[numvars][];
+        for(int i=0; i<numvars; i++) {
+            ArrayList<Intpair> dom=vardoms.get(i).getIntervalSet();
+            long[] allValues=new long[(int)Intpair.numValues(dom)];
+            int cur=0;
+            for(int j=0; j<dom.size(); j++) {
+                for(long val=dom.get(j).lower; val<=dom.get(j).upper; val++) {
+                    allValues[cur]=val;
+                    cur++;
+                }
+            }
+            initial_domains[i]=allValues;
+        }
+        
+        shortsups=new ShortSupportStore(numvars);
         
-        ArrayList<Integer> assignedIdx=new ArrayList<Integer>();
-        for(int i=0; i<sup.size(); i++) {
-            if(sup.get(i)!=Long.MIN_VALUE) {
-                assignedIdx.add(i);
+        domlo=new long[numvars];
+        domhi=new long[numvars];
+        for(int i=0; i<numvars; i++) {
+            domlo[i]=initial_domains[i][0];
+            domhi[i]=initial_domains[i][initial_domains[i].length-1];
+        }
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Bounds reasoning during the search (CmdFlags.tabulation_propagate).
+    //   The compiled expression is evaluated over intervals, with each 
+    //   unassigned variable ranging over the bounds of its domain. A node
+    //   fails as soon as the expression cannot be true, before any further
+    //   copying and simplifying of the expression. 
+    
+    private long[] domlo;
+    private long[] domhi;
+    
+    private boolean propagate() {
+        return CmdFlags.tabulation_propagate && evaluator!=null;
+    }
+    
+    //  Copy the current assignment and minimise it to make a new short support. 
+    private long[] minimalSupport(ArrayList<ASTNode> varlist, ASTNode orig_exp, long[] assignment, int curvar) {
+        long[] sup=assignment.clone();
+        
+        int numassigned=0;
+        for(int i=0; i<sup.length; i++) {
+            if(sup[i]!=ShortSupportStore.WILDCARD) {
+                numassigned++;
+            }
+        }
+        int[] assignedIdx=new int[numassigned];
+        numassigned=0;
+        for(int i=0; i<sup.length; i++) {
+            if(sup[i]!=ShortSupportStore.WILDCARD) {
+                assignedIdx[numassigned++]=i;
             }
         }
         
-        shortSupportMinDivideConquer(0, assignedIdx.size(), assignedIdx, varlist, orig_exp, sup, curvar); 
+        long[] test=new long[sup.length];
+        Arrays.fill(test, ShortSupportStore.WILDCARD);
+        shortSupportMinDivideConquer(0, assignedIdx.length, assignedIdx, varlist, new PartialExpression(orig_exp), sup, test, curvar); 
         
         //shortSupportMinLinear(varlist, orig_exp, sup, curvar);
         
-        assert sup.get(curvar)!=Long.MIN_VALUE;
+        assert sup[curvar]!=ShortSupportStore.WILDCARD;
         
         // No need to extend sup to full length.  Short sups can contain tuples that are truncated on the right.
         if(verbose) {
             System.out.print("Adding short support: ");
-            for(int i=0; i<sup.size(); i++) {
-                System.out.print((sup.get(i)!=Long.MIN_VALUE?String.valueOf(sup.get(i)):"*")+" ");
+            for(int i=0; i<sup.length; i++) {
+                System.out.print((sup[i]!=ShortSupportStore.WILDCARD?String.valueOf(sup[i]):"*")+" ");
             }
             System.out.println(" " + failcount+" "+impliedcount + " "+shortsups.size());
         }
+        return sup;
+    }
+    
+    private void addShortSupport(ArrayList<ASTNode> varlist, ASTNode orig_exp, long[] assignment, int curvar) {
+        long[] sup=minimalSupport(varlist, orig_exp, assignment, curvar);
         
-        shortsups.add(sup);
-        var_to_watched_sup.get(curvar).add(shortsups.size()-1);
+        int supidx=shortsups.add(sup);
+        shortsups.watch(curvar, supidx);
     }
     
     // Different method of minimising the short support -- divide and conquer
     // can eliminate 1/2, 1/4  etc of all elements in one test. 
     //  sup is changed in place. 
     // assignedIdx gives the indices in sup of the assignments made by the DFS alg. This allows neat binary splits on assignedIdx without worrying about gaps in sup. 
-    private void shortSupportMinDivideConquer(int lower, int upper, ArrayList<Integer> assignedIdx, ArrayList<ASTNode> varlist, ASTNode local_exp, ArrayList<Long> sup, int curvar) {
+    //  test holds the assignment made in local_exp, and is kept in the slots of minEvaluator. 
+    private void shortSupportMinDivideConquer(int lower, int upper, int[] assignedIdx, ArrayList<ASTNode> varlist, PartialExpression local_exp, long[] sup, long[] test, int curvar) {
         // Base case. Only one element remaining. local_exp is NOT True so we must need this final element in sup. Just return true. 
         if(upper==lower+1) {
             return;
         }
         
-        TransformSimplify ts=new TransformSimplify();
-        
         //  Divide into [lower..mid-1],  [mid..upper-1]  inclusive. 
         int mid=(upper-lower)/2+lower;
         
         // Left branch.
         // Assign the literals from mid..upper-1.
         // If this assignment leads to True, then can eliminate everything in the left interval. 
-        ASTNode left_exp=local_exp.copy();
-        for(int i=mid; i<upper; i++) {
-            int varidx=assignedIdx.get(i);
-            if(sup.get(varidx)!=Long.MIN_VALUE) {
-                assignValue(left_exp, varlist.get(varidx), sup.get(varidx));
-            }
-        }
-        left_exp=ts.transform(left_exp);
-        if(left_exp instanceof BooleanConstant) {
-            assert left_exp.getValue()==1;
+        PartialExpression left_exp=new PartialExpression(local_exp, mid, upper, assignedIdx, sup, test);
+        if(isEntailed(left_exp, varlist, test)) {
             // Eliminate everything on the left.
             for(int i=lower; i<mid; i++) {
-                int varidx=assignedIdx.get(i);
-                sup.set(varidx, Long.MIN_VALUE);
+                sup[assignedIdx[i]]=ShortSupportStore.WILDCARD;
             }
         }
         else {
-            shortSupportMinDivideConquer(lower, mid, assignedIdx, varlist, left_exp, sup, curvar);
+            shortSupportMinDivideConquer(lower, mid, assignedIdx, varlist, left_exp, sup, test, curvar);
         }
+        left_exp.unassign(test);
         
         // Right branch. 
         // Assign literals from lower to mid-1.
-        ASTNode right_exp=local_exp.copy();
-        for(int i=lower; i<mid; i++) {
-            int varidx=assignedIdx.get(i);
-            if(sup.get(varidx)!=Long.MIN_VALUE) {
-                assignValue(right_exp, varlist.get(varidx), sup.get(varidx));
-            }
-        }
-        right_exp=ts.transform(right_exp);
-        if(right_exp instanceof BooleanConstant) {
-            assert right_exp.getValue()==1;
+        PartialExpression right_exp=new PartialExpression(local_exp, lower, mid, assignedIdx, sup, test);
+        if(isEntailed(right_exp, varlist, test)) {
             // Eliminate everything on the right.
             for(int i=mid; i<upper; i++) {
-                int varidx=assignedIdx.get(i);
-                sup.set(varidx, Long.MIN_VALUE);
+                sup[assignedIdx[i]]=ShortSupportStore.WILDCARD;
             }
         }
         else {
-            shortSupportMinDivideConquer(mid, upper, assignedIdx, varlist, right_exp, sup, curvar);
+            shortSupportMinDivideConquer(mid, upper, assignedIdx, varlist, right_exp, sup, test, curvar);
+        }
+        right_exp.unassign(test);
+    }
+    
+    //  The minimiser tests whether partial assignments make the expression true. 
+    //  minEvaluator is a compiled copy of the expression (the slots of evaluator hold 
+    //  the assignment of the DFS), which decides most tests without copying the 
+    //  expression. Otherwise the expression is assigned and simplified, and the 
+    //  result is kept in minMemo for the rest of the search. 
+    
+    private CompiledExpression minEvaluator;
+    private HashMap<AssignmentKey, Boolean> minMemo;
+    
+    private static final int MIN_MEMO_LIMIT=100000;
+    
+    private void setupMinimiser(ASTNode curnode, ArrayList<ASTNode> varlist) {
+        minEvaluator=CompiledExpression.compile(curnode, varlist);
+        minMemo=new HashMap<AssignmentKey, Boolean>();
+    }
+    
+    //  Is the expression true for every extension of the assignment in test? 
+    private boolean isEntailed(PartialExpression exp, ArrayList<ASTNode> varlist, long[] test) {
+        if(minEvaluator!=null && minEvaluator.evaluate()==1) {
+            return true;
+        }
+        AssignmentKey key=new AssignmentKey(test.clone());
+        Boolean res=minMemo.get(key);
+        if(res==null) {
+            ASTNode e=exp.get(varlist);
+            res=(e instanceof BooleanConstant);
+            assert !res || e.getValue()==1;
+            if(minMemo.size()>=MIN_MEMO_LIMIT) {
+                minMemo.clear();
+            }
+            minMemo.put(key, res);
+        }
+        return res;
+    }
+    
+    //  An expression with some variables assigned, simplified only when it is needed. 
+    //  It is made from its parent by assigning the non-wildcard values of sup at 
+    //  positions lower..upper-1 of assignedIdx, which are also set in test. 
+    private final class PartialExpression {
+        private final PartialExpression parent;
+        private final int[] vars;
+        private final long[] vals;
+        private ASTNode exp;
+        
+        PartialExpression(ASTNode e) {
+            parent=null;
+            vars=new int[0];
+            vals=new long[0];
+            exp=e;
+        }
+        
+        PartialExpression(PartialExpression p, int lower, int upper, int[] assignedIdx, long[] sup, long[] test) {
+            parent=p;
+            int n=0;
+            for(int i=lower; i<upper; i++) {
+                if(sup[assignedIdx[i]]!=ShortSupportStore.WILDCARD) {
+                    n++;
+                }
+            }
+            vars=new int[n];
+            vals=new long[n];
+            n=0;
+            for(int i=lower; i<upper; i++) {
+                int varidx=assignedIdx[i];
+                if(sup[varidx]!=ShortSupportStore.WILDCARD) {
+                    vars[n]=varidx;
+                    vals[n]=sup[varidx];
+                    n++;
+                    test[varidx]=sup[varidx];
+                    if(minEvaluator!=null) {
+                        minEvaluator.setValue(varidx, sup[varidx]);
+                    }
+                }
+            }
+        }
+        
+        void unassign(long[] test) {
+            for(int i=0; i<vars.length; i++) {
+                test[vars[i]]=ShortSupportStore.WILDCARD;
+                if(minEvaluator!=null) {
+                    minEvaluator.clearValue(vars[i]);
+                }
+            }
+        }
+        
+        ASTNode get(ArrayList<ASTNode> varlist) {
+            if(exp==null) {
+                ASTNode e=parent.get(varlist).copy();
+                for(int i=0; i<vars.length; i++) {
+                    e=assignValue(e, varlist.get(vars[i]), vals[i]);
+                }
+                exp=new TransformSimplify().transform(e);
+            }
+            return exp;
+        }
+    }
+    
+    //  An assignment (with wildcards) as a hash key. 
+    private static final class AssignmentKey {
+        private final long[] a;
+        private final int hash;
+        
+        AssignmentKey(long[] _a) {
+            a=_a;
+            hash=Arrays.hashCode(a);
+        }
+        
+        public int hashCode() {
+            return hash;
+        }
+        
+        public boolean equals(Object o) {
+            return (o instanceof AssignmentKey) && Arrays.equals(a, ((AssignmentKey)o).a);
         }
     }
     
-    private void shortSupportMinLinear(ArrayList<ASTNode> varlist, ASTNode orig_exp, ArrayList<Long> sup, int curvar) {
-        for(int i=0; i<sup.size(); i++) {
-            if(i!=curvar && sup.get(i)!=Long.MIN_VALUE) {
+    private void shortSupportMinLinear(ArrayList<ASTNode> varlist, ASTNode orig_exp, long[] sup, int curvar) {
+        for(int i=0; i<sup.length; i++) {
+            if(i!=curvar && sup[i]!=ShortSupportStore.WILDCARD) {
                 //  For all but the last assignment in sup, try removing it and see if the expression still evaluates to true.
                 
                 ASTNode local_exp=orig_exp.copy();
                 
-                for(int j=0; j<sup.size(); j++) {
-                    if(j!=i && sup.get(j)!=Long.MIN_VALUE) {
+                for(int j=0; j<sup.length; j++) {
+                    if(j!=i && sup[j]!=ShortSupportStore.WILDCARD) {
                         // j is not a wildcard, and not the one we are testing. 
-                        local_exp=assignValue(local_exp, varlist.get(j), sup.get(j));
+                        local_exp=assignValue(local_exp, varlist.get(j), sup[j]);
                     }
                 }
                 
@@ -871,7 +1731,7 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
                 
                 if(local_exp instanceof BooleanConstant) {
                     assert local_exp.getValue()==1;
-                    sup.set(i, Long.MIN_VALUE);  //  Set variable i to the wildcard value.
+                    sup[i]=ShortSupportStore.WILDCARD;  //  Set variable i to the wildcard value.
                 }
             }
         }
@@ -888,54 +1748,64 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         return r1.transform(exp);  // make the assignment, probably destructive on exp. 
     }
     
-    private boolean checkShortSupports(ArrayList<Long> assignment, int curvar) {
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //   Compiled form of the expression being tabulated. Null when the
+    //   expression contains something CompiledExpression does not handle.
+    
+    private CompiledExpression evaluator;
+    
+    private final BooleanConstant trueConstant=new BooleanConstant(true);
+    private final BooleanConstant falseConstant=new BooleanConstant(false);
+    
+    //  Assign var (index varidx) to val in exp and simplify. If the compiled
+    //  expression can be evaluated, exp is not copied at all and one of the
+    //  shared boolean constants is returned.
+    private ASTNode assignAndSimplify(ASTNode exp, ASTNode var, int varidx, long val, TransformSimplify ts) {
+        if(evaluator!=null) {
+            evaluator.setValue(varidx, val);
+            long res=evaluator.evaluate();
+            if(res!=CompiledExpression.UNKNOWN) {
+                return (res==1)?trueConstant:falseConstant;
+            }
+        }
+        
+        ASTNode local_exp=exp.copy();
+        local_exp=assignValue(local_exp, var, val);
+        return ts.transform(local_exp);
+    }
+    
+    private void unassignCompiled(int varidx) {
+        if(evaluator!=null) {
+            evaluator.clearValue(varidx);
+        }
+    }
+    
+    private boolean checkShortSupports(long[] assignment, int curvar) {
         if(curvar==-1) {
             return false;
         }
         
-        long val=assignment.get(curvar);
+        long val=assignment[curvar];
+        int numvars=assignment.length;
         
         //   Check watches of "false or unknown" literals in short supports.
         
-        ArrayList<Integer> watchlist=var_to_watched_sup.get(curvar);
-        
-        for(int i=watchlist.size()-1; i>=0; i--) {
-            int shortsup_index=watchlist.get(i);
+        for(int i=shortsups.numWatches(curvar)-1; i>=0; i--) {
+            int shortsup_index=shortsups.getWatch(curvar, i);
             
-            ArrayList<Long> shortsup=shortsups.get(shortsup_index);
+            assert shortsups.get(shortsup_index, curvar)!=ShortSupportStore.WILDCARD;
             
-            assert shortsup.get(curvar)!=Long.MIN_VALUE;
-            
-            if(shortsup.get(curvar)==val) {
+            if(shortsups.get(shortsup_index, curvar)==val) {
                 //  This literal is true...  loop through the short support to find another that is false or unknown. 
                 
                 boolean litfound=false;
-                for(int j=curvar+1; j<shortsup.size() && !litfound; j++) {
-                    if(shortsup.get(j)!=Long.MIN_VALUE && ( assignment.get(j)==Long.MIN_VALUE || shortsup.get(j)!=assignment.get(j))) {
-                        // This is a non-wildcard false or unknown literal. 
-                        litfound=true;
-                        
-                        //  Remove this shortsup from its current watchlist.
-                        watchlist.set(i, watchlist.get(watchlist.size()-1));
-                        watchlist.remove(watchlist.size()-1);
-                        
-                        // Insert into the other watchlist.
-                        var_to_watched_sup.get(j).add(shortsup_index);
-                    }
+                for(int j=curvar+1; j<numvars && !litfound; j++) {
+                    litfound=moveWatch(assignment, shortsup_index, curvar, i, j);
                 }
                 
                 for(int j=0; j<curvar && !litfound; j++) {
-                    if(shortsup.get(j)!=Long.MIN_VALUE && ( assignment.get(j)==Long.MIN_VALUE || shortsup.get(j)!=assignment.get(j))) {
-                        // This is a non-wildcard false or unknown literal. 
-                        litfound=true;
-                        
-                        //  Remove this shortsup from its current watchlist.
-                        watchlist.set(i, watchlist.get(watchlist.size()-1));
-                        watchlist.remove(watchlist.size()-1);
-                        
-                        // Insert into the other watchlist.
-                        var_to_watched_sup.get(j).add(shortsup_index);
-                    }
+                    litfound=moveWatch(assignment, shortsup_index, curvar, i, j);
                 }
                 
                 if(!litfound) {
@@ -948,190 +1818,146 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         return false;
     }
     
+    //  If the literal on var j in the short support is false or unknown, move the watch 
+    //  at position pos in the watch list of curvar to var j. 
+    private boolean moveWatch(long[] assignment, int shortsup_index, int curvar, int pos, int j) {
+        long supval=shortsups.get(shortsup_index, j);
+        if(supval!=ShortSupportStore.WILDCARD && ( assignment[j]==ShortSupportStore.WILDCARD || supval!=assignment[j])) {
+            // This is a non-wildcard false or unknown literal. 
+            //  Remove this shortsup from its current watchlist.
+            shortsups.unwatch(curvar, pos);
+            
+            // Insert into the other watchlist.
+            shortsups.watch(j, shortsup_index);
+            return true;
+        }
+        return false;
+    }
+    
     ////////////////////////////////////////////////////////////////////////////
     //
     //  Second version of short support handling, this one with domains and 
     //  2-watched lits
     
-    ArrayList<boolean[]> current_domains;
-    ArrayList<long[]> initial_domains;
-    ArrayList<Integer> domsize;
-    
-    ArrayList<Integer> watch1;
-    ArrayList<Integer> watch2;
+    boolean[][] current_domains;
+    int[] domsize;
     
-    private void setupShortSupports2(int numvars, ArrayList<ASTNode> vardoms) {
-        
-        initial_domains=new ArrayList<long[]>();
-        current_domains=new ArrayList<boolean[]>();
-        
-        backtrack_var=new ArrayList<Integer>();
-        backtrack_val=new ArrayList<Integer>();
+    private void setupShortSupports2(ArrayList<ASTNode> vardoms) {
+        setupShortSupports(vardoms);
         
-        search_assignments=new ArrayList<Integer>();
+        int numvars=vardoms.size();
         
-        watch1=new ArrayList<Integer>();
-        watch2=new ArrayList<Integer>();
-        
-        domsize=new ArrayList<Integer>();
-        
-        for(int i=0; i<numvars; i++) {
-            ArrayList<Intpair> dom=vardoms.get(i).getIntervalSet();
-            long[] allValues=new long[(int)Intpair.numValues(dom)];
-            boolean[] valuesIn=new boolean[allValues.length];
-            int cur=0;
-            for(int j=0; j<dom.size(); j++) {
-                for(long val=dom.get(j).lower; val<=dom.get(j).upper; val++) {
-                    allValues[cur]=val;
-                    valuesIn[cur]=true;
-                    cur++;
-                }
-            }
-            initial_domains.add(allValues);
-            current_domains.add(valuesIn);
-            domsize.add(allValues.length);
-        }
-        
-        shortsups=new ArrayList<ArrayList<Long>>();
-        var_to_watched_sup=new ArrayList<ArrayList<Integer>>();
+        current_domains=new boolean[numvars][];
+        domsize=new int[numvars];
         for(int i=0; i<numvars; i++) {
-            var_to_watched_sup.add(new ArrayList<Integer>());
+            current_domains[i]=new boolean[initial_domains[i].length];
+            Arrays.fill(current_domains[i], true);
+            domsize[i]=initial_domains[i].length;
         }
-    }
-    
-    private void addShortSupport2(ArrayList<ASTNode> varlist, ASTNode orig_exp, ArrayList<Long> assignment, int curvar) {
         
-        ArrayList<Long> sup=new ArrayList<Long>(assignment);   //copy
+        backtrack_var=new int[16];
+        backtrack_val=new int[16];
+        backtrack_size=0;
         
-        ArrayList<Integer> assignedIdx=new ArrayList<Integer>();
-        for(int i=0; i<sup.size(); i++) {
-            if(sup.get(i)!=Long.MIN_VALUE) {
-                assignedIdx.add(i);
-            }
-        }
+        search_assignments=new int[numvars];
+        num_search_assignments=0;
         
-        shortSupportMinDivideConquer(0, assignedIdx.size(), assignedIdx, varlist, orig_exp, sup, curvar); 
-        
-        //shortSupportMinLinear(varlist, orig_exp, sup, curvar);
-        
-        assert sup.get(curvar)!=Long.MIN_VALUE;
-        
-        // No need to extend sup to full length.  Short sups can contain tuples that are truncated on the right.
-        if(verbose) {
-            System.out.print("Adding short support: ");
-            for(int i=0; i<sup.size(); i++) {
-                System.out.print((sup.get(i)!=Long.MIN_VALUE?String.valueOf(sup.get(i)):"*")+" ");
-            }
-            System.out.println(" " + failcount+" "+impliedcount + " "+shortsups.size());
-        }
+        queue=new int[numvars];
+        in_q=new boolean[numvars];
+    }
+    
+    private void addShortSupport2(ArrayList<ASTNode> varlist, ASTNode orig_exp, long[] assignment, int curvar) {
+        long[] sup=minimalSupport(varlist, orig_exp, assignment, curvar);
         
-        int supidx=shortsups.size();
-        shortsups.add(sup);
+        int supidx=shortsups.add(sup);
         
         //  Watch the most recently assigned var
-        var_to_watched_sup.get(curvar).add(supidx);
-        watch1.add(curvar);
+        shortsups.watch(curvar, supidx);
+        shortsups.setWatch1(supidx, curvar);
         
         //  Scan back in the assignment order to find the next var to watch.
         
-        for(int trailidx=search_assignments.size()-1; trailidx>=0; trailidx--) {
-            int btvar=search_assignments.get(trailidx);
+        for(int trailidx=num_search_assignments-1; trailidx>=0; trailidx--) {
+            int btvar=search_assignments[trailidx];
             
-            if(btvar!=curvar && sup.size()>btvar && sup.get(btvar)!=Long.MIN_VALUE) {
-                var_to_watched_sup.get(btvar).add(supidx);
-                watch2.add(btvar);
+            if(btvar!=curvar && sup[btvar]!=ShortSupportStore.WILDCARD) {
+                shortsups.watch(btvar, supidx);
+                shortsups.setWatch2(supidx, btvar);
                 return;
             }
         }
         
-        assert sup.size()==1;
-        var_to_watched_sup.get(curvar).add(supidx);
-        watch2.add(curvar);  //  Just watch curvar twice in this case.
+        shortsups.watch(curvar, supidx);
+        shortsups.setWatch2(supidx, curvar);  //  Just watch curvar twice in this case.
     }
     
+    //  Queue of variables that have changed, used by checkShortSupports2. 
+    private int[] queue;
+    private boolean[] in_q;
+    
     //  Propagate short supports. 
-    private boolean checkShortSupports2(ArrayList<Long> assignment, int in_curvar) {
+    private boolean checkShortSupports2(int in_curvar) {
         if(in_curvar==-1) {
             return false;
         }
         
-        //  Make a queue of variables that have changed. 
-        ArrayList<Integer> q=new ArrayList<Integer>(); 
-        boolean[] in_q=new boolean[assignment.size()];
-        
+        int qsize=0;
         in_q[in_curvar]=true;
-        q.add(in_curvar);
+        queue[qsize++]=in_curvar;
         
         //   Check watches of "false or unknown" literals in short supports.
         
-        while(q.size()>0) {
-            int curvar=q.remove(q.size()-1);
+        while(qsize>0) {
+            int curvar=queue[--qsize];
             in_q[curvar]=false;
             
             //  Iterate through the watchlist for curvar. 
-            ArrayList<Integer> watchlist=var_to_watched_sup.get(curvar);
-            
-            for(int i=watchlist.size()-1; i>=0; i--) {
-                int shortsup_index=watchlist.get(i);
-                
-                ArrayList<Long> shortsup=shortsups.get(shortsup_index);
+            for(int i=shortsups.numWatches(curvar)-1; i>=0; i--) {
+                int shortsup_index=shortsups.getWatch(curvar, i);
                 
                 //  Check the short support does contain curvar.
-                assert shortsup.get(curvar)!=Long.MIN_VALUE;
+                assert shortsups.get(shortsup_index, curvar)!=ShortSupportStore.WILDCARD;
                 
-                int validx=Arrays.binarySearch(initial_domains.get(curvar), shortsup.get(curvar));
+                int validx=Arrays.binarySearch(initial_domains[curvar], shortsups.get(shortsup_index, curvar));
                 
                 //  Is the literal true, as opposed to false or unknown?
-                if(current_domains.get(curvar)[validx] && domsize.get(curvar)==1) {
+                if(current_domains[curvar][validx] && domsize[curvar]==1) {
                     //  This literal is true...  loop through the short support to find another that is false or unknown. 
                     // Update watches.
                     
-                    int w1=watch1.get(shortsup_index);  //  Which variables are watched by this short support?
-                    int w2=watch2.get(shortsup_index);
+                    int w1=shortsups.getWatch1(shortsup_index);  //  Which variables are watched by this short support?
+                    int w2=shortsups.getWatch2(shortsup_index);
                     
                     if(w1==curvar) {
                         // Update w1.  Avoid w2.
-                        boolean litfound=false;
-                        for(int j=0; j<shortsup.size(); j++) {
-                            if(j!=w2 && shortsup.get(j)!=Long.MIN_VALUE) {
-                                //  Get the value in the short sup
-                                long val=shortsup.get(j);
-                                int validxj=Arrays.binarySearch(initial_domains.get(j), val);
-                                
-                                //  val is either false (removed) or unknown
-                                if((!current_domains.get(j)[validxj]) || domsize.get(j)>1) {
-                                    w1=j;
-                                    litfound=true;
-                                    break;
-                                }
-                            }
-                        }
+                        int newwatch=findUnsetLiteral(shortsup_index, w2);
                         
-                        if(!litfound) {
+                        if(newwatch==-1) {
                             //  w2 points to the only literal that might falsify this short support. 
                             //  Prune the value if it is present. 
-                            int validxprune=Arrays.binarySearch(initial_domains.get(w2), shortsup.get(w2));
-                            if(current_domains.get(w2)[validxprune]) {
+                            int validxprune=Arrays.binarySearch(initial_domains[w2], shortsups.get(shortsup_index, w2));
+                            if(current_domains[w2][validxprune]) {
                                 pruneValidx(w2, validxprune);
-                                if(domsize.get(w2)==0) {
+                                if(domsize[w2]==0) {
                                     //  Domain wipeout -- however var w1 is assigned, it will cause some short support to evaluate to true.
+                                    clearQueue(qsize);
                                     return true;
                                 }
                                 if(!in_q[w2]) {
                                     in_q[w2]=true;
-                                    q.add(w2);
+                                    queue[qsize++]=w2;
                                 }
                             }
                         }
                         else {
                             //  Update data structures to set w1. 
-                            watch1.set(shortsup_index, w1);
+                            w1=newwatch;
+                            shortsups.setWatch1(shortsup_index, w1);
                             //  Remove this shortsup from its current watchlist.
-                            watchlist.set(i, watchlist.get(watchlist.size()-1));
-                            watchlist.remove(watchlist.size()-1);
+                            shortsups.unwatch(curvar, i);
                             
                             // Insert into the other watchlist.
-                            var_to_watched_sup.get(w1).add(shortsup_index);
+                            shortsups.watch(w1, shortsup_index);
                         }
                     }
                     
@@ -1139,52 +1965,38 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
                         //  w2 is the watch that is on curvar (or they both were)
                         //  Update w2, avoiding w1.
                         //  If w2 can have no value, then prune the value at w1. 
+                        int newwatch=findUnsetLiteral(shortsup_index, w1);
                         
-                        boolean litfound=false;
-                        for(int j=0; j<shortsup.size(); j++) {
-                            if(j!=w1 && shortsup.get(j)!=Long.MIN_VALUE) {
-                                //  Get the value in the short sup
-                                long val=shortsup.get(j);
-                                int validxj=Arrays.binarySearch(initial_domains.get(j), val);
-                                
-                                //  val is either false (removed) or unknown
-                                if((!current_domains.get(j)[validxj]) || domsize.get(j)>1) {
-                                    w2=j;
-                                    litfound=true;
-                                    break;
-                                }
-                            }
-                        }
-                        
-                        if(!litfound) {
+                        if(newwatch==-1) {
                             //  w1 points to the only literal that can satisfy this short support. 
                             //  Prune the value if it is present. 
-                            int validxprune=Arrays.binarySearch(initial_domains.get(w1), shortsup.get(w1));
-                            if(current_domains.get(w1)[validxprune]) {
+                            int validxprune=Arrays.binarySearch(initial_domains[w1], shortsups.get(shortsup_index, w1));
+                            if(current_domains[w1][validxprune]) {
                                 pruneValidx(w1, validxprune);
-                                if(domsize.get(w1)==0) {
+                                if(domsize[w1]==0) {
                                     //  Domain wipeout -- however var w1 is assigned, it will cause some short support to evaluate to true.
+                                    clearQueue(qsize);
                                     return true;
                                 }
                                 if(!in_q[w1]) {
                                     in_q[w1]=true;
-                                    q.add(w1);
+                                    queue[qsize++]=w1;
                                 }
                             }
                         }
                         else {
                             //  Update data structures to set w2. 
-                            watch2.set(shortsup_index, w2);
+                            w2=newwatch;
+                            shortsups.setWatch2(shortsup_index, w2);
                             
-                            if(watchlist.size()>i && watchlist.get(i)==shortsup_index) {
+                            if(shortsups.numWatches(curvar)>i && shortsups.getWatch(curvar, i)==shortsup_index) {
                                 //  Remove this shortsup from its current watchlist.
                                 //  if it was not already removed when moving w1 (i.e. w1 and w2 were equal).
-                                watchlist.set(i, watchlist.get(watchlist.size()-1));
-                                watchlist.remove(watchlist.size()-1);
+                                shortsups.unwatch(curvar, i);
                             }
                             
                             // Insert into the other watchlist.
-                            var_to_watched_sup.get(w2).add(shortsup_index);
+                            shortsups.watch(w2, shortsup_index);
                         }
                     }
                 }
@@ -1194,113 +2006,388 @@ public class TransformMakeTable extends TreeTransformerBottomUpNoWrapper
         return false;
     }
     
-    ArrayList<Integer> backtrack_var;   //  For restoring the domains.
-    ArrayList<Integer> backtrack_val;
+    //  Find a variable other than avoid whose literal in the short support is false or unknown, or -1. 
+    private int findUnsetLiteral(int shortsup_index, int avoid) {
+        for(int j=0; j<shortsups.numVars(); j++) {
+            long val=shortsups.get(shortsup_index, j);
+            if(j!=avoid && val!=ShortSupportStore.WILDCARD) {
+                int validxj=Arrays.binarySearch(initial_domains[j], val);
+                
+                //  val is either false (removed) or unknown
+                if((!current_domains[j][validxj]) || domsize[j]>1) {
+                    return j;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    private void clearQueue(int qsize) {
+        for(int i=0; i<qsize; i++) {
+            in_q[queue[i]]=false;
+        }
+    }
+    
+    //  Trail for restoring the domains. A mark is stored as var -1.
+    int[] backtrack_var;
+    int[] backtrack_val;
+    int backtrack_size;
+    
+    int[] search_assignments;  //  Assignments made by the search procedure in order they were made. Just var idx. 
+    int num_search_assignments;
     
-    ArrayList<Integer> search_assignments;  //  Assignments made by the search procedure in order they were made. Just var idx. 
+    private void trailPush(int var, int validx) {
+        if(backtrack_size==backtrack_var.length) {
+            backtrack_var=Arrays.copyOf(backtrack_var, backtrack_size*2);
+            backtrack_val=Arrays.copyOf(backtrack_val, backtrack_size*2);
+        }
+        backtrack_var[backtrack_size]=var;
+        backtrack_val[backtrack_size]=validx;
+        backtrack_size++;
+    }
     
     private void BTMark() {
-        backtrack_var.add(null);
-        backtrack_val.add(null);
+        trailPush(-1, -1);
     }
     
     private void BTRevert() {
-        while(backtrack_var.size()>0) {
-            Integer btvar=backtrack_var.remove(backtrack_var.size()-1);
-            Integer btvalidx=backtrack_val.remove(backtrack_val.size()-1);
-            if(btvar==null) {
+        while(backtrack_size>0) {
+            backtrack_size--;
+            int btvar=backtrack_var[backtrack_size];
+            if(btvar==-1) {
                 return;
             }
             
             //  Restore val to var.
-            current_domains.get(btvar)[btvalidx]=true;
-            domsize.set(btvar, domsize.get(btvar)+1);
+            current_domains[btvar][backtrack_val[backtrack_size]]=true;
+            domsize[btvar]++;
         }
     }
     
     //  Prune a value and add backtrack record. 
     private boolean prune(int var, long val) {
-        int validx=Arrays.binarySearch(initial_domains.get(var), val);
+        int validx=Arrays.binarySearch(initial_domains[var], val);
         return pruneValidx(var,validx);
     }
     
     private boolean pruneValidx(int var, int validx) {
-        if(current_domains.get(var)[validx]) {
-            current_domains.get(var)[validx]=false;
-            backtrack_var.add(var);
-            backtrack_val.add(validx);
+        if(current_domains[var][validx]) {
+            current_domains[var][validx]=false;
+            trailPush(var, validx);
             
-            domsize.set(var, domsize.get(var)-1);
-            return domsize.get(var) > 0;
+            domsize[var]--;
+            return domsize[var] > 0;
         }
         return true;
     }
     
     private void assign(int var, int validx) {
-        boolean[] curdom=current_domains.get(var);
+        boolean[] curdom=current_domains[var];
         
         assert curdom[validx];
         
         for(int i=0; i<curdom.length; i++) {
             if(i!=validx && curdom[i]) {
-                assert pruneValidx(var, i);
+                pruneValidx(var, i);
             }
         }
-        assert domsize.get(var)==1;
+        assert domsize[var]==1;
         
-        search_assignments.add(var);
+        search_assignments[num_search_assignments++]=var;
     }
     
     private void unassign(int var) {
-        int var2=search_assignments.remove(search_assignments.size()-1);
+        int var2=search_assignments[--num_search_assignments];
         assert var==var2;
     }
     
     ////////////////////////////////////////////////////////////////////////////
     //
-    //    Convert to full-length table
+    //    Split search. The first CmdFlags.tabulation_split variables are assigned
+    //    here, and the subtree below each partial assignment is searched by a 
+    //    separate TransformMakeTable on the fork-join pool. Each part has its
+    //    own set of short supports; they are concatenated in the order the 
+    //    serial search would visit them. For full-length tables the result is
+    //    identical to DFSfull. 
     
-    private boolean DFSfull(ArrayList<ASTNode> varlist, ArrayList<ASTNode> vardoms, ASTNode exp, ArrayList<Long> assignment, long suplimit, long faillimit) {
+    private boolean splitDFS(ArrayList<ASTNode> varlist, ArrayList<ASTNode> vardoms, ASTNode curnode, boolean shorttable, long suplimit, long faillimit, long impliedlimit) {
+        shared=new AtomicLongArray(3);
+        stop=new AtomicBoolean(false);
+        
+        ArrayList<ArrayList<Long>> prefixes=new ArrayList<ArrayList<Long>>();
+        ArrayList<ASTNode> prefixexps=new ArrayList<ASTNode>();
+        boolean flag=enumeratePrefixes(varlist, vardoms, curnode, new ArrayList<Long>(), shorttable, faillimit, prefixes, prefixexps);
+        
+        ArrayList<TransformMakeTable> parts=new ArrayList<TransformMakeTable>();
+        ArrayList<Callable<Boolean>> tasks=new ArrayList<Callable<Boolean>>();
+        
+        for(int i=0; flag && i<prefixes.size(); i++) {
+            final TransformMakeTable part=new TransformMakeTable(m);
+            part.shared=shared;
+            part.stop=stop;
+            part.budget=budget;
+            parts.add(part);
+            tasks.add(part.subtreeSearch(varlist, vardoms, curnode, prefixes.get(i), prefixexps.get(i), shorttable, suplimit, faillimit, impliedlimit));
+        }
+        
+        if(verbose) {
+            System.out.println("Split search into "+tasks.size()+" parts.");
+        }
+        
+        if(flag && tasks.size()>0) {
+            try {
+                List<Future<Boolean>> results=getPool().invokeAll(tasks);
+                for(int i=0; i<results.size(); i++) {
+                    flag=flag && results.get(i).get();
+                }
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                CmdFlags.errorExit("Interrupted while tabulating a constraint.");
+            }
+            catch(ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        
+        //  Merge the parts. Identical short supports found in more than one part are kept once. 
+        if(flag) {
+            ArrayList<ShortSupportStore> stores=new ArrayList<ShortSupportStore>();
+            for(int i=0; i<parts.size(); i++) {
+                stores.add(parts.get(i).shortsups);
+            }
+            shortsups.addAll(stores, shorttable);
+        }
+        for(int i=0; i<parts.size(); i++) {
+            outOfBudget=outOfBudget || parts.get(i).outOfBudget;
+        }
+        
+        failcount=shared.get(FAILS);
+        impliedcount=shared.get(IMPLIED);
+        shared=null;
+        stop=null;
+        return flag;
+    }
+    
+    //  Assign the first variables in order, collecting the partial assignments that 
+    //  are CmdFlags.tabulation_split long, or that make the expression true when 
+    //  making short supports. Failures are counted as the serial search counts them. 
+    private boolean enumeratePrefixes(ArrayList<ASTNode> varlist, ArrayList<ASTNode> vardoms, ASTNode exp, ArrayList<Long> assignment, boolean shorttable, long faillimit,
+        ArrayList<ArrayList<Long>> prefixes, ArrayList<ASTNode> prefixexps) {
         int depth=assignment.size();
         
+        if(overBudget()) {
+            return false;
+        }
+        
+        if(exp instanceof BooleanConstant) {
+            if(exp.getValue()==0) {
+                return shorttable ? countFail()<faillimit : countFail()<=faillimit;
+            }
+            if(shorttable) {
+                prefixes.add(new ArrayList<Long>(assignment));
+                prefixexps.add(exp);
+                return true;
+            }
+        }
+        
+        if(depth==CmdFlags.tabulation_split) {
+            prefixes.add(new ArrayList<Long>(assignment));
+            prefixexps.add(exp);
+            return true;
+        }
+        
+        ASTNode curvar=varlist.get(depth);
+        ArrayList<Long> vals=vardoms.get(depth).getValueSet();
+        TransformSimplify ts=new TransformSimplify();
+        for(int i=0; i<vals.size(); i++) {
+            ASTNode local_exp=assignAndSimplify(exp, curvar, depth, vals.get(i), ts);
+            
+            assignment.add(vals.get(i));
+            
+            boolean flag=enumeratePrefixes(varlist, vardoms, local_exp, assignment, shorttable, faillimit, prefixes, prefixexps);
+            
+            assignment.remove(assignment.size()-1);
+            unassignCompiled(depth);
+            
+            if(!flag) return false;
+        }
+        return true;
+    }
+    
+    //  Task to search the subtree below one partial assignment, using this object's search state. 
+    private Callable<Boolean> subtreeSearch(final ArrayList<ASTNode> varlist, final ArrayList<ASTNode> vardoms, final ASTNode curnode, final ArrayList<Long> prefix, final ASTNode exp, 
+        final boolean shorttable, final long suplimit, final long faillimit, final long impliedlimit) {
+        return new Callable<Boolean>() {
+            public Boolean call() {
+                evaluator=CompiledExpression.compile(curnode, varlist);
+                setupMinimiser(curnode, varlist);
+                if(evaluator!=null) {
+                    for(int i=0; i<prefix.size(); i++) {
+                        evaluator.setValue(i, prefix.get(i));
+                    }
+                }
+                
+                long[] assignment=new long[varlist.size()];
+                Arrays.fill(assignment, ShortSupportStore.WILDCARD);
+                for(int i=0; i<prefix.size(); i++) {
+                    assignment[i]=prefix.get(i);
+                }
+                
+                boolean flag;
+                if(shorttable) {
+                    if(twowatchedlits) {
+                        setupShortSupports2(vardoms);
+                        for(int i=0; i<prefix.size(); i++) {
+                            BTMark();
+                            assign(i, Arrays.binarySearch(initial_domains[i], prefix.get(i)));
+                        }
+                    }
+                    else {
+                        setupShortSupports(vardoms);
+                    }
+                    setupOrdering(varlist);
+                    
+                    int[] vo=new int[varlist.size()];
+                    for(int i=0; i<varlist.size(); i++) {
+                        vo[i]=i;
+                    }
+                    
+                    flag=DFS(varlist, curnode, exp, assignment, vo, prefix.size()-1, suplimit, faillimit, impliedlimit, Integer.MAX_VALUE);
+                }
+                else {
+                    setupShortSupports(vardoms);
+                    flag=DFSfull(varlist, exp, assignment, prefix.size(), suplimit, faillimit);
+                }
+                
+                if(!flag) {
+                    stop.set(true);
+                }
+                return flag;
+            }
+        };
+    }
+    
+    //  Pool shared by all parallel tabulation, with CmdFlags.tabulation_threads threads. 
+    private static ForkJoinPool pool;
+    
+    public static synchronized ForkJoinPool getPool() {
+        if(pool==null) {
+            pool=new ForkJoinPool(CmdFlags.tabulation_threads);
+        }
+        return pool;
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //    Convert to full-length table
+    
+    //  Variables 0..depth-1 are assigned in assignment. 
+    private boolean DFSfull(ArrayList<ASTNode> varlist, ASTNode exp, long[] assignment, int depth, long suplimit, long faillimit) {
+        if(stop!=null && stop.get()) {
+            return false;   //  Another part of a split search hit a limit.
+        }
+        if(overBudget()) {
+            return false;
+        }
+        
         if(exp instanceof BooleanConstant) {
             if(depth==varlist.size() && exp.getValue()==1) {
+                if(negative) {
+                    return true;   //  Over the sup limit, only the conflicts are collected. 
+                }
                 // Copy the current assignment into shortsups.
-                shortsups.add(new ArrayList<Long>(assignment));
-                if(verbose && shortsups.size()>suplimit) {
+                shortsups.add(assignment);
+                long supcount=countSupport();
+                if(verbose && supcount>suplimit) {
                     System.out.println("DFS hit supports limit");
                 }
-                return shortsups.size()<=suplimit; //  Continue search iff within sup limit.
+                if(supcount>suplimit && conflicts!=null) {
+                    //  Carry on for the conflicts, and drop the supports. 
+                    negative=true;
+                    shortsups=new ShortSupportStore(varlist.size());
+                    return true;
+                }
+                return supcount<=suplimit; //  Continue search iff within sup limit.
             }
             if(exp.getValue()==0) {
-                failcount++;
-                if(verbose && failcount>faillimit) {
+                long fails=countFail();
+                if(verbose && fails>faillimit) {
                     System.out.println("DFS hit fail limit");
                 }
-                return failcount<=faillimit;   // continue search iff failcount<=faillimit.
+                return fails<=faillimit && addConflicts(assignment, depth);   // continue search iff failcount<=faillimit.
             }
             // When the expression evaluates to true but assignment is not long enough, continue forwardtracking.
         }
         
+        if(propagate() && !(exp instanceof BooleanConstant) && !evaluator.mayBeTrue(domlo, domhi)) {
+            return countFail()<=faillimit && addConflicts(assignment, depth);
+        }
+        
         //  Iterate through the domain of the current variable assigning each value in turn.
         ASTNode curvar=varlist.get(depth);
-        ArrayList<Long> vals=vardoms.get(depth).getValueSet();
+        long[] vals=initial_domains[depth];
         TransformSimplify ts=new TransformSimplify();
-        for(int i=0; i<vals.size(); i++) {
-            
-            ASTNode local_exp=exp.copy();
+        for(int i=0; i<vals.length; i++) {
             
-            local_exp=assignValue(local_exp, curvar, vals.get(i));
+            ASTNode local_exp=assignAndSimplify(exp, curvar, depth, vals[i], ts);  // make the assignment and simplify.
             
-            local_exp=ts.transform(local_exp);  // make the assignment and simplify.
+            assignment[depth]=vals[i];
             
-            assignment.add(vals.get(i));
-            
-            boolean flag=DFSfull(varlist, vardoms, local_exp, assignment, suplimit, faillimit);
+            boolean flag=DFSfull(varlist, local_exp, assignment, depth+1, suplimit, faillimit);
             if(!flag) return false;
             
-            assignment.remove(assignment.size()-1);   //  delete this assignment.
+            assignment[depth]=ShortSupportStore.WILDCARD;   //  delete this assignment.
+            unassignCompiled(depth);
         }
         return true;
     }
+    
+    ////////////////////////////////////////////////////////////////////////////
+    //
+    //    Conflicts for a negative table (-tabulation-negative). DFSfull also 
+    //    stores the full assignments that falsify the expression, up to conflimit 
+    //    of them, so that a loose constraint with too many supports can still be 
+    //    tabulated as a negative table. When the supports go over their limit 
+    //    negative is set and only the conflicts are kept. The search fails when 
+    //    both are over their limits. Only the serial search collects conflicts. 
+    
+    private ShortSupportStore conflicts;   //  null if not collected, or over conflimit. 
+    private long conflimit;
+    boolean negative=false;
+    
+    //  Store every full assignment that extends the first depth variables of assignment
+    //  as a conflict. Returns false if that takes the conflicts over their limit after 
+    //  the supports went over theirs. 
+    private boolean addConflicts(long[] assignment, int depth) {
+        if(conflicts==null) {
+            return !negative;
+        }
+        long n=1;
+        for(int i=depth; i<assignment.length && n<=conflimit; i++) {
+            n=n*initial_domains[i].length;
+        }
+        if(conflicts.size()+n>conflimit) {
+            if(verbose) {
+                System.out.println("DFS hit conflicts limit");
+            }
+            conflicts=null;
+            return !negative;
+        }
+        addCompletions(assignment, depth);
+        return true;
+    }
+    
+    private void addCompletions(long[] assignment, int depth) {
+        if(depth==assignment.length) {
+            conflicts.add(assignment);
+            return;
+        }
+        long[] vals=initial_domains[depth];
+        for(int i=0; i<vals.length; i++) {
+            assignment[depth]=vals[i];
+            addCompletions(assignment, depth+1);
+        }
+        assignment[depth]=ShortSupportStore.WILDCARD;
+    }
 }
@@ -28,58 +28,117 @@ import savilerow.eprimeparser.EPrimeReader;
 
 import java.util.*;
 
-//  Turn MakeTable type into tableshort constraint BEFORE unrolling quantifiers.
-//  Extends TransformMakeTable to inherit methods.
+//  Turn MakeTable type into table or tableshort constraint BEFORE unrolling quantifiers
+//  (-tabulation-early). Extends TransformMakeTable to inherit methods.
+//
+//  If the body of a makeTable function does not depend on the values of the
+//  quantifier variables outside it (except in the indices of matrices of decision
+//  variables), it is tabulated once with the matrix derefs as its variables. 
+//  Unrolling the quantifiers then stamps out one table constraint per instance, 
+//  all referring to the same table in the constant matrix store. 
+//  Otherwise the makeTable is left alone, and the same transformation is applied 
+//  again after unrolling. Either way the tables are shared by signature: the body 
+//  with its variables replaced by their positions, and the domains of the variables. 
+//  So the number of searches is the number of distinct signatures, not the number 
+//  of instances. 
 
 public class TransformMakeTableEarly extends TransformMakeTable
 {
     private static boolean verbose=false;
     
+    //  Identifier of the table made for each signature. 
+    private HashMap<String, ASTNode> signatures=new HashMap<String, ASTNode>();
+    
+    private long instances=0;
     
     public TransformMakeTableEarly(Model _m) {
-      super(_m);
+        super(_m);
     }
     
     protected NodeReplacement processNode(ASTNode curnode)
-	{
-	    if(curnode instanceof MakeTable) {
-	        if(CmdFlags.make_short_tab==0) {
-	            //  Option 0 given on command line. 
-	            //  Just throw away the MakeTable function
-	            return new NodeReplacement(curnode.getChild(0));
-	        }
-	        
-	        if(expressionInvariantExceptVars(curnode.getChild(0), curnode.getChild(0))) {
-	            boolean shorttable=(CmdFlags.make_short_tab==2 || CmdFlags.make_short_tab==4);
-                RetPair ret = tryCache(curnode, shorttable);
-                if(ret.nodereplace != null) {
-                    return ret.nodereplace;
-                }
-                
-                if(verbose) { 
-                    System.out.println(curnode);
-                    System.out.println(getVariables(curnode));
-                    System.out.println(getDomains(getVariables(curnode)));
-                }
-                
-                if(CmdFlags.make_short_tab==1 || CmdFlags.make_short_tab==3) {
-                    //  Make conventional table constraint
-                    ASTNode newTable = makeTableLong(curnode.getChild(0), Long.MAX_VALUE, Long.MAX_VALUE);
-                    saveToCache(ret.expstring, curnode, newTable);
-                    return new NodeReplacement(newTable);
-                }
-                else if(CmdFlags.make_short_tab==2 || CmdFlags.make_short_tab==4) {
-                    //  Make short table constraint.
-                    ASTNode newTable = makeTableShort(curnode.getChild(0), Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
-                    saveToCache(ret.expstring, curnode, newTable);
-                    return new NodeReplacement(newTable);
+    {
+        if(curnode instanceof MakeTable) {
+            if(CmdFlags.make_short_tab==0) {
+                //  Option 0 given on command line. 
+                //  Just throw away the MakeTable function
+                return new NodeReplacement(curnode.getChild(0));
+            }
+            
+            if(!expressionInvariantExceptVars(curnode.getChild(0), curnode.getChild(0))) {
+                //  Depends on the values of quantifier variables -- wait until they are unrolled.
+                return null;
+            }
+            
+            boolean shorttable=(CmdFlags.make_short_tab==2 || CmdFlags.make_short_tab==4);
+            
+            //  Unroll any quantifiers within the body, so the variables are identifiers and matrix derefs. 
+            TransformQuantifiedExpression tqe=new TransformQuantifiedExpression(m);
+            TransformSimplify ts=new TransformSimplify();
+            ASTNode body=ts.transform(tqe.transform(curnode.getChild(0).copy()));
+            
+            ArrayList<ASTNode> varlist=getVariablesOrdered(body);
+            String sig=signature(body, varlist, shorttable);
+            
+            if(verbose) {
+                System.out.println(curnode);
+                System.out.println(varlist);
+                System.out.println(sig);
+            }
+            
+            ASTNode tab=signatures.get(sig);
+            if(tab==null) {
+                tab=loadFromDiskCache(sig);
+                if(tab==null) {
+                    ASTNode newTable;
+                    if(shorttable) {
+                        newTable=makeTableShort(body, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+                    }
+                    else {
+                        newTable=makeTableLong(body, Long.MAX_VALUE, Long.MAX_VALUE);
+                    }
+                    saveToCache(sig, body, newTable);
+                    tab=newTable.getChild(1);
                 }
+                signatures.put(sig, tab);
+            }
+            instances++;
+            
+            if(shorttable) {
+                return new NodeReplacement(new TableShort(m, CompoundMatrix.make(varlist), tab));
+            }
+            else {
+                return new NodeReplacement(new Table(m, CompoundMatrix.make(varlist), tab));
             }
         }
         
         return null;
     }
     
+    //  The body with each variable replaced by its position in varlist, followed by the domains. 
+    //  Also used as the key for the disk cache. 
+    private String signature(ASTNode body, ArrayList<ASTNode> varlist, boolean shorttable) {
+        ASTNode a=body.copy();
+        for(int i=0; i<varlist.size(); i++) {
+            ReplaceASTNode r=new ReplaceASTNode(varlist.get(i), new Identifier(m, "#"+(i+1)));
+            a=r.transform(a);
+        }
+        
+        StringBuilder b=new StringBuilder();
+        b.append(shorttable ? "EarlyShort|||" : "EarlyLong|||");
+        b.append(a);
+        for(ASTNode d : getDomains(varlist)) {
+            b.append("|||");
+            b.append(d);
+        }
+        return b.toString();
+    }
+    
+    public void printStats() {
+        if(instances>0) {
+            CmdFlags.printlnIfVerbose("Early tabulation: "+instances+" makeTable functions, "+signatures.size()+" distinct signatures.");
+        }
+    }
+    
     // Check if quantifier variables will affect the table.
     //  No quantifier variables are allowed anywhere except in the indices of a matrix deref that is indexing into a matrix of decision variables. 
     public boolean expressionInvariantExceptVars(ASTNode top_exp, ASTNode exp) {
@@ -89,7 +148,7 @@ public class TransformMakeTableEarly extends TransformMakeTable
         }
         else if(exp instanceof MatrixDeref || exp instanceof SafeMatrixDeref) {
             //  Two cases. (1) Allow a constant matrix on the left, and recursively check the index expressions,
-            //  OR  (2) decision variable matrix on the left, and anything is allowed for the indices
+            //  OR  (2) decision variable matrix on the left, and anything except decision variables is allowed for the indices
             if(exp.getChild(0).getCategory()==ASTNode.Constant) {
                 for(int i=1; i<exp.numChildren(); i++) {
                     if(!expressionInvariantExceptVars(top_exp, exp.getChild(i))) {
@@ -99,7 +158,8 @@ public class TransformMakeTableEarly extends TransformMakeTable
                 return true;
             }
             else {
-                // Here we are allowed quantifier variables in indices. In fact we don't care what the indices are.
+                // Here we are allowed quantifier variables in indices. The deref becomes a variable of 
+                // the table, so the indices must be fixed once the quantifiers are unrolled.
                 //  Not allowing anything complex on the left of the deref.
                 if(! (exp.getChild(0) instanceof Identifier)) {
                     return false;
@@ -107,6 +167,11 @@ public class TransformMakeTableEarly extends TransformMakeTable
                 if(exp.getChild(0).getCategory()<ASTNode.Decision) {
                     return false;
                 }
+                for(int i=1; i<exp.numChildren(); i++) {
+                    if(exp.getChild(i).getCategory()>=ASTNode.Decision) {
+                        return false;
+                    }
+                }
                 return true;
             }
         }
@@ -118,7 +183,8 @@ public class TransformMakeTableEarly extends TransformMakeTable
                 
                 return p==null;   // If the defining quantifier is within top_exp, p is null.
             }
-            return true;  // A decision variable.
+            // A decision variable. Not allowing a whole matrix of decision variables. 
+            return !(exp.getCategory()==ASTNode.Decision && m.global_symbols.getDomain(exp.toString()) instanceof MatrixDomain);
         }
         else {
             for(int i=0; i<exp.numChildren(); i++) {
@@ -130,32 +196,37 @@ public class TransformMakeTableEarly extends TransformMakeTable
         }
     }
     
-    //  Replace getVariables to collect matrix derefs.
-    public ArrayList<ASTNode> getVariables(ASTNode exp) {
+    //  Replace getVariablesOrdered to collect matrix derefs.
+    public ArrayList<ASTNode> getVariablesOrdered(ASTNode exp) {
         HashSet<ASTNode> tmp=new HashSet<ASTNode>();
-        getVariablesInner(exp, tmp);
-        return new ArrayList<ASTNode>(tmp);
+        ArrayList<ASTNode> vars_ordered=new ArrayList<ASTNode>();
+        getVariablesInner(exp, tmp, vars_ordered);
+        return vars_ordered;
     }
     
-    private void getVariablesInner(ASTNode exp, HashSet<ASTNode> varset) {
+    private void getVariablesInner(ASTNode exp, HashSet<ASTNode> varset, ArrayList<ASTNode> varlist) {
         if(exp instanceof Identifier && exp.getCategory()==ASTNode.Decision) {
             // Collect all decision variable identifiers -- exclude those that refer to a constant matrix and quantifier vars.
-            varset.add(exp);
+            if(! varset.contains(exp)) {
+                varset.add(exp);
+                varlist.add(exp);
+            }
         }
         else if( (exp instanceof MatrixDeref || exp instanceof SafeMatrixDeref) ) {
             if(exp.getChild(0).getCategory()==ASTNode.Constant) {
                 for(int i=1; i<exp.numChildren(); i++) {   //  Recurse for indices.
-                    getVariablesInner(exp.getChild(i), varset);
+                    getVariablesInner(exp.getChild(i), varset, varlist);
                 }
             }
-            else {
+            else if(! varset.contains(exp)) {
                 varset.add(exp);
+                varlist.add(exp);
                 // Don't recurse into the matrix deref.
             }
         }
         else {
             for(int i=0; i<exp.numChildren(); i++) {
-                getVariablesInner(exp.getChild(i), varset);
+                getVariablesInner(exp.getChild(i), varset, varlist);
             }
         }
     }
@@ -163,14 +234,14 @@ public class TransformMakeTableEarly extends TransformMakeTable
     //  Replace getDomains to fetch domains of matrix derefs. 
     public ArrayList<ASTNode> getDomains(ArrayList<ASTNode> varlist) {
         ArrayList<ASTNode> vardoms=new ArrayList<ASTNode>();
-        
+        TransformSimplify ts=new TransformSimplify();
         for(int i=0; i<varlist.size(); i++) {
             if(varlist.get(i) instanceof Identifier) {
-                vardoms.add(m.global_symbols.getDomain(varlist.get(i).toString()));
+                vardoms.add(ts.transform(m.global_symbols.getDomain(varlist.get(i).toString())));
             }
             else {
                 assert varlist.get(i).getChild(0) instanceof Identifier;
-                vardoms.add(m.global_symbols.getDomain(varlist.get(i).getChild(0).toString()).getChild(0));   //  Grab the base domain out of the matrix domain.
+                vardoms.add(ts.transform(m.global_symbols.getDomain(varlist.get(i).getChild(0).toString()).getChild(0)));   //  Grab the base domain out of the matrix domain.
             }
         }
         return vardoms;
@@ -30,6 +30,7 @@ import java.util.*;
 
 //  Collect constraints with same scopes
 //  Attempt to run tabulator on groups of constraints on same scope. 
+//  With -tabulation-cluster, also on groups of constraints with overlapping scopes. 
 
 public class TransformMakeTableScopes extends TreeTransformerBottomUpNoWrapper
 {
@@ -64,52 +65,222 @@ public class TransformMakeTableScopes extends TreeTransformerBottomUpNoWrapper
     
     //   To be called after the tree traversal when scopeslist is populated.
     //   A conversion is attempted of any set of constraints with same scope.
+    //   With -tabulation-cluster, sets with overlapping scopes are joined first (see cluster).
     public void doIt() {
         boolean shorttable=(CmdFlags.make_short_tab==2 || CmdFlags.make_short_tab==4);
         
+        //  Each group is a list of sets of constraints with the same scope. 
+        ArrayList<ArrayList<ArrayList<ASTNode>>> groups=new ArrayList<ArrayList<ArrayList<ASTNode>>>();
+        ArrayList<ArrayList<ASTNode>> groupscopes=new ArrayList<ArrayList<ASTNode>>();
         for(Map.Entry<ArrayList<ASTNode>,ArrayList<ASTNode>> p : scopeslist.entrySet()) {
-            ArrayList<ASTNode> ctlist=p.getValue();
+            ArrayList<ArrayList<ASTNode>> g=new ArrayList<ArrayList<ASTNode>>();
+            g.add(p.getValue());
+            groups.add(g);
+            groupscopes.add(p.getKey());
+        }
+        if(CmdFlags.tabulation_cluster>0) {
+            cluster(groups, groupscopes);
+        }
+        
+        if(CmdFlags.tabulation_threads>1) {
+            //  Tabulate all the groups in parallel first. 
+            ArrayList<ASTNode> cts=new ArrayList<ASTNode>();
+            for(int i=0; i<groups.size(); i++) {
+                ArrayList<ASTNode> ctlist=constraints(groups.get(i));
+                if(ctlist.size()>1) {
+                    cts.add(new And(ctlist));
+                }
+            }
+            tmt.precomputeTables(cts);
+        }
+        
+        for(int i=0; i<groups.size(); i++) {
+            ArrayList<ASTNode> ctlist=constraints(groups.get(i));
             if(ctlist.size()>1) {
-                ASTNode totabulate=new And(ctlist);
-                
-                if(TransformMakeTable.verbose) {
-                    System.out.println("H4");
-                    System.out.println("Trying ct:"+totabulate);
+                if(groups.get(i).size()==1) {
+                    tabulate(ctlist, shorttable);
                 }
-                
-                //  Check the cache.
-                TransformMakeTable.RetPair ret = tmt.tryCacheNormalised(totabulate, shorttable);
-                if(ret.nodereplace != null) {
-                    replaceConstraintSet(ctlist, ret.nodereplace.current_node);
-                    continue;
+                else {
+                    //  A cluster. Report the size and time, and fall back to the sets 
+                    //  with identical scopes if it fails. 
+                    long start=System.currentTimeMillis();
+                    ASTNode newTable=tabulate(ctlist, shorttable);
+                    long time=System.currentTimeMillis()-start;
+                    if(newTable!=null) {
+                        PackedMatrix tab=m.cmstore.getConstantMatrixPacked(newTable.getChild(1).toString());
+                        CmdFlags.printlnIfVerbose("Tabulated cluster of "+ctlist.size()+" constraints on "+groupscopes.get(i).size()+" variables: "
+                            +(tab==null ? "?" : String.valueOf(tab.numRows()))+" rows in "+time+" ms.");
+                    }
+                    else {
+                        CmdFlags.printlnIfVerbose("Failed to tabulate cluster of "+ctlist.size()+" constraints on "+groupscopes.get(i).size()+" variables in "+time+" ms.");
+                        for(ArrayList<ASTNode> same : groups.get(i)) {
+                            if(same.size()>1) {
+                                tabulate(same, shorttable);
+                            }
+                        }
+                    }
                 }
-                if(tmt.failCache.contains(ret.expstring)) {   /// Ideally this check should go above the pcache check.
-                    continue;
+            }
+        }
+    }
+    
+    //  Try to tabulate the conjunction of ctlist and replace the constraints with the table.
+    //  Returns the new table constraint, or null.
+    private ASTNode tabulate(ArrayList<ASTNode> ctlist, boolean shorttable) {
+        ASTNode totabulate=new And(ctlist);
+        
+        if(TransformMakeTable.verbose) {
+            System.out.println("H4");
+            System.out.println("Trying ct:"+totabulate);
+        }
+        
+        //  Check the cache.
+        TransformMakeTable.RetPair ret = tmt.tryCacheNormalised(totabulate, shorttable);
+        if(ret.nodereplace != null) {
+            replaceConstraintSet(ctlist, ret.nodereplace.current_node);
+            return ret.nodereplace.current_node;
+        }
+        if(tmt.isKnownFailure(ret.key)) {   /// Ideally this check should go above the pcache check.
+            return null;
+        }
+        if(tmt.rejectByEstimate(ret.key, totabulate)) {
+            tmt.addFailure(ret.key);
+            return null;
+        }
+        
+        ASTNode a = tmt.normalise(totabulate);
+        ASTNode newTable=tmt.makeTableLimited(ret.key, a);
+        
+        if(newTable==null) {
+            tmt.addFailure(ret.key);
+            if(TransformMakeTable.verbose) {
+                System.out.println("Adding to failCache:"+ret.key);
+            }
+            return null;
+        }
+        
+        // Save in the cache
+        tmt.saveToCacheNormalised(ret.key, a, newTable);
+        
+        replaceConstraintSet(ctlist, newTable);
+        return newTable;
+    }
+    
+    private static ArrayList<ASTNode> constraints(ArrayList<ArrayList<ASTNode>> group) {
+        ArrayList<ASTNode> ctlist=new ArrayList<ASTNode>();
+        for(ArrayList<ASTNode> same : group) {
+            ctlist.addAll(same);
+        }
+        return ctlist;
+    }
+    
+    //  Join groups whose scopes overlap heavily: one scope contains the other, or
+    //  the union has at most one variable more than the larger scope. The product of 
+    //  the domain sizes of the joined scope must be within -tabulation-cluster. 
+    //  Only groups that would be tabulated anyway (more than one constraint, or one 
+    //  chosen by the heuristic) are joined together. Any other constraint is only
+    //  added to a group that already contains its scope, so it does not make the table longer.
+    //  Greedy: each group is joined with the neighbour that adds fewest variables
+    //  (then the smallest product), until no more joins are possible. 
+    private void cluster(ArrayList<ArrayList<ArrayList<ASTNode>>> groups, ArrayList<ArrayList<ASTNode>> groupscopes) {
+        int n=groups.size();
+        
+        //  Domain size of each variable. 
+        HashMap<ASTNode, Double> domsize=new HashMap<ASTNode, Double>();
+        for(int i=0; i<n; i++) {
+            ArrayList<ASTNode> scope=groupscopes.get(i);
+            ArrayList<ASTNode> doms=tmt.getDomains(scope);
+            for(int j=0; j<scope.size(); j++) {
+                domsize.put(scope.get(j), (double) Intpair.numValues(doms.get(j).getIntervalSet()));
+            }
+        }
+        
+        //  Groups containing each variable. 
+        HashMap<ASTNode, ArrayList<Integer>> occurs=new HashMap<ASTNode, ArrayList<Integer>>();
+        ArrayList<HashSet<ASTNode>> scopes=new ArrayList<HashSet<ASTNode>>(n);
+        boolean[] alive=new boolean[n];
+        boolean[] seed=new boolean[n];
+        for(int i=0; i<n; i++) {
+            scopes.add(new HashSet<ASTNode>(groupscopes.get(i)));
+            alive[i]=groupscopes.get(i).size()>0;
+            seed[i]=groups.get(i).get(0).size()>1 || tmt.heuristic(groups.get(i).get(0).get(0));
+            for(ASTNode v : groupscopes.get(i)) {
+                if(!occurs.containsKey(v)) {
+                    occurs.put(v, new ArrayList<Integer>());
                 }
-                
-                ASTNode a = tmt.normalise(totabulate);
-                ASTNode newTable;
-                if(CmdFlags.make_short_tab==3) {
-                    newTable=tmt.makeTableLong(a, 10000, 100000);
+                occurs.get(v).add(i);
+            }
+        }
+        
+        boolean changed=true;
+        while(changed) {
+            changed=false;
+            for(int i=0; i<n; i++) {
+                if(!alive[i] || !seed[i]) {
+                    continue;
                 }
-                else {
-                    newTable=tmt.makeTableShort(a, 10000, 100000, 100000);
+                int best=-1;
+                int bestextra=0;
+                double bestprod=0.0;
+                HashSet<Integer> seen=new HashSet<Integer>();
+                for(ASTNode v : scopes.get(i)) {
+                    for(int j : occurs.get(v)) {
+                        if(j==i || !alive[j] || !seen.add(j)) {
+                            continue;
+                        }
+                        if(!seed[j] && !scopes.get(i).containsAll(scopes.get(j))) {
+                            continue;
+                        }
+                        HashSet<ASTNode> union=new HashSet<ASTNode>(scopes.get(i));
+                        union.addAll(scopes.get(j));
+                        int extra=union.size()-Math.max(scopes.get(i).size(), scopes.get(j).size());
+                        if(extra>1) {
+                            continue;
+                        }
+                        double prod=1.0;
+                        for(ASTNode u : union) {
+                            prod*=domsize.get(u);
+                        }
+                        if(prod>CmdFlags.tabulation_cluster) {
+                            continue;
+                        }
+                        if(best==-1 || extra<bestextra || (extra==bestextra && (prod<bestprod || (prod==bestprod && j<best)))) {
+                            best=j;
+                            bestextra=extra;
+                            bestprod=prod;
+                        }
+                    }
                 }
                 
-                if(newTable==null) {
-                    tmt.failCache.add(ret.expstring);
-                    if(TransformMakeTable.verbose) {
-                        System.out.println("Adding to failCache:"+ret.expstring);
+                if(best!=-1) {
+                    //  Join best into i. 
+                    groups.get(i).addAll(groups.get(best));
+                    for(ASTNode v : scopes.get(best)) {
+                        if(scopes.get(i).add(v)) {
+                            occurs.get(v).add(i);
+                        }
                     }
+                    alive[best]=false;
+                    changed=true;
                 }
-                else {
-                    // Save in the cache
-                    tmt.saveToCacheNormalised(ret.expstring, a, newTable);
-                    
-                    replaceConstraintSet(ctlist, newTable);
-                }
             }
         }
+        
+        //  Remove the groups that were joined into others, and sort the scopes of the rest.
+        ArrayList<ArrayList<ArrayList<ASTNode>>> newgroups=new ArrayList<ArrayList<ArrayList<ASTNode>>>();
+        ArrayList<ArrayList<ASTNode>> newscopes=new ArrayList<ArrayList<ASTNode>>();
+        for(int i=0; i<n; i++) {
+            if(alive[i] || groupscopes.get(i).size()==0) {
+                newgroups.add(groups.get(i));
+                ArrayList<ASTNode> scope=new ArrayList<ASTNode>(scopes.get(i));
+                ASTNode.sortByAlpha(scope);
+                newscopes.add(scope);
+            }
+        }
+        groups.clear();
+        groups.addAll(newgroups);
+        groupscopes.clear();
+        groupscopes.addAll(newscopes);
     }
     
     private void replaceConstraintSet(ArrayList<ASTNode> ctlist, ASTNode replacement) {
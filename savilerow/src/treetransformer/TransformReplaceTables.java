@@ -0,0 +1,112 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+import savilerow.model.*;
+
+import java.util.*;
+
+//  Base for the transformations that replace top-level table and short table
+//  constraints on packed tables with another constraint (TransformTableToMDD and
+//  TransformTableToNegative). Tables on variables that will have bound domains
+//  are left alone, as they are by TransformForBoundVars. References to each
+//  packed table are counted, so that afterwards deleteUnusedTables can remove
+//  the tables that are no longer referenced.
+
+public abstract class TransformReplaceTables extends TreeTransformerBottomUpNoWrapper
+{
+    public TransformReplaceTables(Model _m) { super(_m); }
+    
+    //  Number of references to each packed table, and how many were replaced.
+    private HashMap<String, Integer> refs=new HashMap<String, Integer>();
+    private HashMap<String, Integer> replaced=new HashMap<String, Integer>();
+    
+    //  The replacement for a table or short table constraint with a packed table, or null to keep it. 
+    protected abstract ASTNode replaceTable(ASTNode curnode, PackedMatrix tab);
+    
+    protected NodeReplacement processNode(ASTNode curnode)
+    {
+        if(curnode instanceof Identifier && m.cmstore.isPackedTable(curnode)) {
+            String name=((Identifier)curnode).getName();
+            refs.put(name, (refs.containsKey(name) ? refs.get(name) : 0)+1);
+            return null;
+        }
+        
+        if((curnode instanceof Table || curnode instanceof TableShort) && curnode.getParent()!=null && curnode.getParent().inTopAnd()
+            && curnode.getChild(0) instanceof CompoundMatrix && m.cmstore.isPackedTable(curnode.getChild(1))) {
+            for(int i=1; i<curnode.getChild(0).numChildren(); i++) {
+                if(curnode.getChild(0).getChild(i).exceedsBoundThreshold()) {
+                    return null;
+                }
+            }
+            
+            String name=((Identifier)curnode.getChild(1)).getName();
+            ASTNode r=replaceTable(curnode, m.cmstore.getConstantMatrixPacked(name));
+            if(r!=null) {
+                replaced.put(name, (replaced.containsKey(name) ? replaced.get(name) : 0)+1);
+                return new NodeReplacement(r);
+            }
+        }
+        return null;
+    }
+    
+    //  Values of each variable in scope in ascending order, or null if the scope 
+    //  is not all decision variables.
+    protected long[][] domainValues(ASTNode scope) {
+        long[][] domvals=new long[scope.numChildren()-1][];
+        TransformSimplify ts=new TransformSimplify();
+        for(int i=1; i<scope.numChildren(); i++) {
+            ASTNode var=scope.getChild(i);
+            if(!(var instanceof Identifier) || var.getCategory()!=ASTNode.Decision) {
+                return null;
+            }
+            ArrayList<Intpair> dom=ts.transform(m.global_symbols.getDomain(var.toString())).getIntervalSet();
+            if(dom==null) {
+                return null;
+            }
+            domvals[i-1]=new long[(int)Intpair.numValues(dom)];
+            int k=0;
+            for(Intpair p : dom) {
+                for(long v=p.lower; v<=p.upper; v++) {
+                    domvals[i-1][k++]=v;
+                }
+            }
+        }
+        return domvals;
+    }
+    
+    //  Were any constraints replaced?
+    protected boolean anyReplaced() {
+        return !replaced.isEmpty();
+    }
+    
+    //  Delete the tables whose only references were replaced, so they are not output.
+    public void deleteUnusedTables() {
+        for(String name : replaced.keySet()) {
+            if(replaced.get(name).equals(refs.get(name))) {
+                m.global_symbols.deleteSymbol(name);
+            }
+        }
+    }
+}
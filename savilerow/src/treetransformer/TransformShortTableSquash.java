@@ -61,29 +61,77 @@ public class TransformShortTableSquash extends TransformTableToShortTable
         
         //System.out.println(vars + "::" + doms);
 
-        HashSet<ArrayList<Long>> long_tuples = new HashSet<ArrayList<Long>>();
+        ArrayList<long[]> long_tuples = new ArrayList<long[]>();
 
         for(int i = 1; i < tuples.numChildren(); i++) {
-          ArrayList<Long> tup;
-          tup = new ArrayList<Long>(Collections.nCopies(doms.size(), TupleCompress.free_value));
+          long[] tup = new long[doms.size()];
+          Arrays.fill(tup, TupleCompress.free_value);
 
           ASTNode child = tuples.getChild(i);
           for(int j = 1; j < child.getChildren().size(); ++j) {
             long var = child.getChild(j).getChild(1).getValue();
             long val = child.getChild(j).getChild(2).getValue();
-            tup.set((int)var-1, val);
+            tup[(int)var-1] = val;
           }
           long_tuples.add(tup);
         }
         //System.out.println(long_tuples);
-        HashSet<ArrayList<Long>> shorttups;
-        shorttups = TupleCompress.full_squeeze_short_tuples(long_tuples, doms, false);
- 
-        if(shorttups.size() < long_tuples.size()) {
-            return convertHashSet(shorttups);
+        ArrayList<long[]> shorttups = compressShortTuples(long_tuples, doms);
+        if(shorttups == null) {
+            return null;
+        }
+        return convertTuples(shorttups);
+    }
+    
+    //  Squeeze short tuples (free_value for the free variables). 
+    //  Returns null if no tuples could be merged. 
+    public static ArrayList<long[]> compressShortTuples(List<long[]> long_tuples, ArrayList<ArrayList<Intpair>> doms) {
+        ArrayList<long[]> shorttups = TupleCompress.full_squeeze_short_tuples(long_tuples, doms);
+        
+        if(shorttups.size() < TupleCompress.numDistinct(long_tuples)) {
+            return shorttups;
         }
         else {
             return null;
         }
     }
+    
+    //  Squeeze the short supports in store, in place. Returns null if no tuples could be merged. 
+    public static ArrayList<long[]> compressShortTuples(ShortSupportStore store, ArrayList<ArrayList<Intpair>> doms) {
+        return TupleCompress.compress_short_tuples(store.array(), store.size(), store.numVars(), doms);
+    }
+    
+    //  Pack short tuples as a table for TableShort, the same as convertTuples then PackedMatrix.fromAST.
+    public static ASTNode packShortTuples(List<long[]> shorttups) {
+        int size = 0;
+        for(long[] tup : shorttups) {
+            for(int j = 0; j < tup.length; ++j) {
+                if(tup[j] != TupleCompress.free_value) {
+                    size++;
+                }
+            }
+        }
+        
+        int[] rowstart = new int[shorttups.size()+1];
+        int[] vars = new int[size];
+        long[] vals = new long[size];
+        int k = 0;
+        for(int i = 0; i < shorttups.size(); ++i) {
+            long[] tup = shorttups.get(i);
+            rowstart[i] = k;
+            for(int j = 0; j < tup.length; ++j) {
+                if(tup[j] != TupleCompress.free_value) {
+                    vars[k] = j+1;
+                    vals[k] = tup[j];
+                    k++;
+                }
+            }
+            if(rowstart[i] == k) {
+                //  A short support with no literals: the table is just true.
+                return CompoundMatrix.make(CompoundMatrix.make(new ArrayList<ASTNode>()));
+            }
+        }
+        rowstart[shorttups.size()] = k;
+        return PackedMatrix.makeShortTable(rowstart, vars, vals, shorttups.size());
+    }
 }
@@ -0,0 +1,62 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+import savilerow.model.*;
+
+import java.util.*;
+
+//  Turn top-level table constraints into MDD constraints (-tabulation-mdd), for
+//  the solvers that have an MDD constraint or encoding (Minion and SAT). Other
+//  solvers keep the table. Short tables are converted for SAT only, because the
+//  mddc constraint in Minion is given all the tuples, which may be far more than
+//  the short supports. The SAT encoding of an MDD has about one clause per edge, 
+//  so a short table is kept if the diagram has more edges than the table has literals.
+//  Full tables are written to Minion as the same list of tuples, so for Minion 
+//  the output is no smaller and only the propagator changes.
+//  The diagram is made from the finished table, so the table is still held in
+//  memory during tabulation.
+
+public class TransformTableToMDD extends TransformReplaceTables
+{
+    public TransformTableToMDD(Model _m) { super(_m); }
+    
+    protected ASTNode replaceTable(ASTNode curnode, PackedMatrix tab) {
+        if(curnode instanceof TableShort) {
+            if(!CmdFlags.getSattrans()) {
+                return null;   //  mddc in Minion reads a list of all the tuples. 
+            }
+            long[][] domvals=domainValues(curnode.getChild(0));
+            if(domvals==null) {
+                return null;
+            }
+            long literals=0;
+            for(int i=0; i<tab.numRows(); i++) {
+                literals+=tab.rowLength(i);
+            }
+            return MDD.fromShortTable(m, curnode.getChild(0), tab, domvals, literals);
+        }
+        return MDD.fromTable(m, curnode.getChild(0), tab);
+    }
+}
@@ -0,0 +1,136 @@
+package savilerow.treetransformer;
+/*
+
+    Savile Row http://savilerow.cs.st-andrews.ac.uk/
+    Copyright (C) 2014-2017 Peter Nightingale
+
+    This file is part of Savile Row.
+
+    Savile Row is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Savile Row is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Savile Row.  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+import savilerow.*;
+import savilerow.expression.*;
+import savilerow.model.*;
+
+import java.util.*;
+
+//  Turn top-level table constraints made by tabulation into negative table
+//  constraints (-tabulation-negative) when the table has fewer conflicts than
+//  supports. Loose constraints such as disequalities over large domains have
+//  nearly the whole Cartesian product as supports. NegativeTable is output directly for Minion
+//  and SAT, and decomposed by TransformDecomposeNegativeTable for Gecode and
+//  Chuffed. Short tables have no negative form, so they are left alone.
+//  Constraints with too many supports to tabulate are made into negative tables
+//  by TransformMakeTable instead, which collects the conflicts during the search.
+
+public class TransformTableToNegative extends TransformReplaceTables
+{
+    public TransformTableToNegative(Model _m) { super(_m); }
+    
+    private long supports=0;
+    private long conflicts=0;
+    
+    protected ASTNode replaceTable(ASTNode curnode, PackedMatrix tab) {
+        if(curnode instanceof TableShort) {
+            return null;
+        }
+        long[][] vals=domainValues(curnode.getChild(0));
+        if(vals==null) {
+            return null;
+        }
+        
+        ASTNode neg=conflictTable(tab, vals);
+        if(neg==null) {
+            return null;
+        }
+        
+        supports+=tab.numRows();
+        if(neg instanceof BooleanConstant) {
+            return neg;
+        }
+        conflicts+=((PackedMatrix)neg).numRows();
+        return new NegativeTable(m, curnode.getChild(0), m.cmstore.newConstantMatrixDedup(neg));
+    }
+    
+    //  The assignments to the variables (with values vals) that are not rows of tab, as a packed table. 
+    //  Returns true if there are none, or null if there are at least as many as rows of tab. 
+    private ASTNode conflictTable(PackedMatrix tab, long[][] vals) {
+        int rows=tab.numRows();
+        int arity=vals.length;
+        
+        //  Number of assignments. There are at least total-rows conflicts, so give up
+        //  as soon as total reaches 2*rows. 
+        long total=1;
+        for(int i=0; i<arity; i++) {
+            total=total*vals[i].length;
+            if(total>=2L*rows) {
+                return null;
+            }
+        }
+        
+        //  Mark the supports by their position in the Cartesian product, first column most significant. 
+        boolean[] sup=new boolean[(int)total];
+        long numsups=0;
+        for(int r=0; r<rows; r++) {
+            int idx=0;
+            for(int c=0; c<arity; c++) {
+                int k=Arrays.binarySearch(vals[c], tab.get(r, c));
+                if(k<0) {
+                    idx=-1;   //  Value not in the domain. 
+                    break;
+                }
+                idx=idx*vals[c].length+k;
+            }
+            if(idx>=0 && !sup[idx]) {
+                sup[idx]=true;
+                numsups++;
+            }
+        }
+        
+        int numconflicts=(int)(total-numsups);
+        if(numconflicts>=rows) {
+            return null;
+        }
+        if(numconflicts==0) {
+            return new BooleanConstant(true);
+        }
+        
+        long[] conf=new long[numconflicts*arity];
+        int[] digits=new int[arity];
+        int pos=0;
+        for(int idx=0; idx<total; idx++) {
+            if(!sup[idx]) {
+                for(int c=0; c<arity; c++) {
+                    conf[pos++]=vals[c][digits[c]];
+                }
+            }
+            for(int c=arity-1; c>=0; c--) {
+                if(++digits[c]<vals[c].length) {
+                    break;
+                }
+                digits[c]=0;
+            }
+        }
+        return PackedMatrix.makeTable(conf, numconflicts, arity);
+    }
+    
+    public void deleteUnusedTables() {
+        super.deleteUnusedTables();
+        if(anyReplaced()) {
+            CmdFlags.printlnIfVerbose("Negative tables: "+supports+" supports replaced with "+conflicts+" conflicts.");
+        }
+    }
+}
@@ -51,17 +51,17 @@ public class TransformTableToShortTable extends TreeTransformerBottomUpNoWrapper
 
     // Return null if there is an empty short support
     // (so the constraint is just true)
-    public static ASTNode convertHashSet(HashSet<ArrayList<Long>> shorttups) 
+    public static ASTNode convertTuples(List<long[]> shorttups) 
     {
         // turn short tuples into correct structure
         ArrayList<ASTNode> shorttuplist = new ArrayList<ASTNode>();
-        for(ArrayList<Long> tup : shorttups) {
+        for(long[] tup : shorttups) {
           ArrayList<ASTNode> stup = new ArrayList<ASTNode>();
-          for(int i = 0; i < tup.size(); ++i) {
-            if(tup.get(i) != TupleCompress.free_value) {
+          for(int i = 0; i < tup.length; ++i) {
+            if(tup[i] != TupleCompress.free_value) {
               ArrayList<ASTNode> pair = new ArrayList<ASTNode>(2);
               pair.add(NumberConstant.make(i+1));
-              pair.add(NumberConstant.make(tup.get(i)));
+              pair.add(NumberConstant.make(tup[i]));
               stup.add(new CompoundMatrix(pair));
             }
           }
@@ -87,23 +87,23 @@ public class TransformTableToShortTable extends TreeTransformerBottomUpNoWrapper
             
             ArrayList<ArrayList<Intpair>> doms = getDomainLists(vars, m);
             
-            HashSet<ArrayList<Long>> long_tuples = new HashSet<ArrayList<Long>>();
+            ArrayList<long[]> long_tuples = new ArrayList<long[]>();
             
             for(int i = 1; i < tuples.numChildren(); i++) {
-              ArrayList<Long> tup = new ArrayList<Long>();
+              long[] tup = new long[vars.size()];
               for(int j = 1; j <= vars.size(); ++j) {
-                tup.add(tuples.getChild(i).getChild(j).getValue());
+                tup[j-1] = tuples.getChild(i).getChild(j).getValue();
               }
               long_tuples.add(tup);
             }
             
-            HashSet<ArrayList<Long>> shorttups;
-            shorttups = TupleCompress.full_squeeze_tuples(long_tuples, doms, false);
+            ArrayList<long[]> shorttups;
+            shorttups = TupleCompress.full_squeeze_tuples(long_tuples, doms);
             if(CmdFlags.verbose_make_short) {
-              System.out.println("Squashed a long table. " + long_tuples.size() + " -> " + shorttups.size());
+              System.out.println("Squashed a long table. " + TupleCompress.numDistinct(long_tuples) + " -> " + shorttups.size());
             }
             
-            ASTNode tup = convertHashSet(shorttups);
+            ASTNode tup = convertTuples(shorttups);
             if(tup == null) {
               if(CmdFlags.verbose_make_short) {
                 System.out.println("Table is just 'true'!");